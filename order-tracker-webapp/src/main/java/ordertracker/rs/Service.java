@@ -2,6 +2,7 @@ package ordertracker.rs;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -13,8 +14,12 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import com.google.common.base.Optional;
+
+import ordertracker.Context;
 import ordertracker.Depot;
 import ordertracker.Order;
+import xuml.tools.model.compiler.runtime.SignalBatch;
 
 @Path("/")
 public class Service {
@@ -108,6 +113,29 @@ public class Service {
 		return Response.ok("marked for delivery again").build();
 	}
 
+	@PUT
+	@Path("/orders/arrivedDepot")
+	public Response arrivedDepotAll(@QueryParam("orderId") List<String> orderIds,
+			@QueryParam("depotId") String depotId) {
+		// one commit for all the signals rather than one per order
+		SignalBatch batch = Context.signalBatch();
+		List<String> unknown = new ArrayList<String>();
+		for (String orderId : orderIds) {
+			Optional<Order> order = Order.find(orderId);
+			if (order.isPresent())
+				batch.signal(order.get(), new Order.Events.ArrivedDepot(depotId));
+			else
+				unknown.add(orderId);
+		}
+		// all or nothing so the caller can simply retry
+		if (!unknown.isEmpty())
+			return Response.status(Response.Status.NOT_FOUND)
+					.entity("orders not found " + unknown).build();
+		batch.submitAndWait(30, TimeUnit.SECONDS);
+		return Response.ok(batch.size() + " orders arrived depot " + depotId)
+				.build();
+	}
+
 	@GET
 	@Path("/depot/{depotId}/ordersReadyForDelivery")
 	@Produces(MediaType.APPLICATION_JSON)
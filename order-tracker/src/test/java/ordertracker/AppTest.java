@@ -23,6 +23,7 @@ import rx.Scheduler;
 import rx.Subscriber;
 import rx.functions.Action1;
 import rx.schedulers.Schedulers;
+import xuml.tools.model.compiler.runtime.SignalBatch;
 import xuml.tools.util.database.DerbyUtil;
 
 public class AppTest {
@@ -66,6 +67,43 @@ public class AppTest {
         latch.await(5000, TimeUnit.MILLISECONDS);
     }
 
+    @Test
+    public void testCreateAllAndCreateAsync() {
+        List<Order.Events.Create> events = new ArrayList<>();
+        for (int i = 10; i < 13; i++)
+            events.add(new Order.Events.Create(i + "", "test order", "canberra", "sydney",
+                    "fred@yahoo.com", "joey@gmail.com", 3, "created"));
+        List<Order> orders = Order.createAll(events);
+        assertEquals(3, orders.size());
+        assertEquals("11", orders.get(1).getId());
+        Order order = Order.createAsync(new Order.Events.Create("13", "test order", "canberra",
+                "sydney", "fred@yahoo.com", "joey@gmail.com", 3, "created")).join();
+        assertEquals("13", order.getId());
+        assertEquals(Order.State.PREPARING.toString(), order.getState());
+    }
+
+    @Test
+    public void testSignalBatch() throws InterruptedException {
+        List<Order.Events.Create> events = new ArrayList<>();
+        for (int i = 20; i < 23; i++)
+            events.add(new Order.Events.Create(i + "", "test order", "canberra", "sydney",
+                    "fred@yahoo.com", "joey@gmail.com", 3, "created"));
+        List<Order> orders = Order.createAll(events);
+        SignalBatch batch = Context.signalBatch();
+        for (Order order : orders)
+            batch.signal(order, new Order.Events.Send());
+        assertEquals(3, batch.submitAndWait(30, TimeUnit.SECONDS).size());
+        long deadline = System.currentTimeMillis() + 30000;
+        for (Order order : orders) {
+            while (!Order.State.READY_FOR_DISPATCH.toString()
+                    .equals(Order.find(order.getId()).get().getState())
+                    && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+            assertEquals(Order.State.READY_FOR_DISPATCH.toString(),
+                    Order.find(order.getId()).get().getState());
+        }
+    }
+
     @Test
     public void testDeliverySequence() throws InterruptedException {
         final List<String> states = new CopyOnWriteArrayList<>();
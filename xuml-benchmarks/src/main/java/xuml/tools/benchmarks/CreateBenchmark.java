@@ -0,0 +1,85 @@
+package xuml.tools.benchmarks;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+
+import ordertracker.Order;
+
+/**
+ * Compares creating {@link #COUNT} orders one transaction at a time
+ * ({@link #create}), concurrently ({@link #createAsync}) and in chunked
+ * transactions with JDBC batching ({@link #createAll}). Scores are per order.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CreateBenchmark {
+
+    private static final int COUNT = 1000;
+
+    @Setup(Level.Trial)
+    public void startup() {
+        OrderTracker.startup();
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        OrderTracker.shutdown();
+    }
+
+    private static List<Order.Events.Create> events() {
+        List<Order.Events.Create> events = Lists.newArrayListWithCapacity(COUNT);
+        for (int i = 0; i < COUNT; i++)
+            events.add(OrderTracker.createEvent(UUID.randomUUID().toString()));
+        return events;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public Order create() {
+        Order order = null;
+        for (Order.Events.Create event : events())
+            order = Order.create(event);
+        return order;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public Order createAsync() {
+        List<CompletableFuture<Order>> futures = Lists.newArrayListWithCapacity(COUNT);
+        for (Order.Events.Create event : events())
+            futures.add(Order.createAsync(event));
+        Order order = null;
+        for (CompletableFuture<Order> future : futures)
+            order = future.join();
+        return order;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public List<Order> createAll() {
+        return Order.createAll(events());
+    }
+
+}
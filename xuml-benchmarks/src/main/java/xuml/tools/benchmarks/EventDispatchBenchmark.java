@@ -0,0 +1,60 @@
+package xuml.tools.benchmarks;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ordertracker.Order;
+
+/**
+ * Measures the generated {@code event()} method of an entity: finding the
+ * event type, the transition from the current state and calling the on entry
+ * procedure. The behaviour does nothing so only the generated dispatch is
+ * measured. {@code ArrivedDepot} is a self transition on {@code IN_TRANSIT}
+ * and is near the end of the event list.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDispatchBenchmark {
+
+    private Order order;
+    private Order.Events.ArrivedDepot arrived;
+
+    @Setup
+    public void setup() {
+        // the generated Context injects the signaller the entity helper uses
+        OrderTracker.startup();
+        Order.Behaviour behaviour = (Order.Behaviour) Proxy.newProxyInstance(
+                Order.Behaviour.class.getClassLoader(), new Class<?>[] { Order.Behaviour.class },
+                (proxy, method, args) -> null);
+        order = new Order(behaviour);
+        order.setState(Order.State.IN_TRANSIT);
+        arrived = new Order.Events.ArrivedDepot(OrderTracker.DEPOT_ID);
+    }
+
+    @TearDown
+    public void shutdown() {
+        OrderTracker.shutdown();
+    }
+
+    @Benchmark
+    public Order event() {
+        return order.event(arrived);
+    }
+
+}
@@ -0,0 +1,122 @@
+package xuml.tools.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import ordertracker.Context;
+import ordertracker.Depot;
+import ordertracker.DepotBehaviour;
+import ordertracker.Order;
+import ordertracker.OrderBehaviour;
+import ordertracker.SystemEvent;
+import ordertracker.SystemEventBehaviour;
+import xuml.tools.model.compiler.runtime.SignalProcessorListener;
+import xuml.tools.model.compiler.runtime.SignalProcessorListenerFactory;
+import xuml.tools.model.compiler.runtime.actor.EntityActor;
+import xuml.tools.model.compiler.runtime.message.Signal;
+
+/**
+ * Starts and stops the order-tracker domain on an in-memory H2 database.
+ * Benchmarks wait for their signals to commit using
+ * {@link #awaitCommitted(String, int)}.
+ */
+final class OrderTracker {
+
+    static final String DEPOT_ID = "1";
+
+    // released once for every signal committed against the entity
+    private static final Map<String, Semaphore> committed = new ConcurrentHashMap<String, Semaphore>();
+
+    private static final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+    private OrderTracker() {
+        // prevent instantiation
+    }
+
+    static void startup() {
+        startup(ConfigFactory.empty());
+    }
+
+    /**
+     * Starts the domain.
+     *
+     * @param config
+     *            overrides for xuml-akka.conf
+     */
+    static void startup(Config config) {
+        EntityManagerFactory emf = Persistence.createEntityManagerFactory("benchmarkPersistenceUnit");
+        Context.setEntityActorListenerFactory(new SignalProcessorListenerFactory() {
+            @Override
+            public SignalProcessorListener create(String entityUniqueId) {
+                return LISTENER;
+            }
+        });
+        int poolSize = Integer
+                .parseInt((String) emf.getProperties().get("hibernate.hikari.maximumPoolSize"));
+        Context.setEntityManagerFactory(emf, poolSize, config);
+        Order.setBehaviourFactory(OrderBehaviour.class);
+        Depot.setBehaviourFactory(DepotBehaviour.class);
+        SystemEvent.setBehaviourFactory(SystemEventBehaviour.class);
+        SystemEvent.create(new SystemEvent.Events.Create("1"));
+        Depot.create(new Depot.Events.Create(DEPOT_ID, "Gundagai", -35.0, 142.0));
+    }
+
+    static void shutdown() {
+        Context.stop();
+        Context.close();
+        committed.clear();
+        failure.set(null);
+    }
+
+    static Order createOrder(String orderId) {
+        return Order.create(createEvent(orderId));
+    }
+
+    static Order.Events.Create createEvent(String orderId) {
+        return new Order.Events.Create(orderId, "benchmark order", "canberra", "sydney",
+                "fred@yahoo.com", "joey@gmail.com", 3, "created");
+    }
+
+    private static Semaphore committed(String entityUniqueId) {
+        return committed.computeIfAbsent(entityUniqueId, id -> new Semaphore(0));
+    }
+
+    static void awaitCommitted(String entityUniqueId, int signals) {
+        try {
+            committed(entityUniqueId).acquire(signals);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        Exception e = failure.get();
+        if (e != null)
+            throw new RuntimeException("signal processing failed", e);
+    }
+
+    private static final SignalProcessorListener LISTENER = new SignalProcessorListener() {
+
+        @Override
+        public void beforeProcessing(Signal<?> signal, EntityActor actor) {
+        }
+
+        @Override
+        public void afterProcessing(Signal<?> signal, EntityActor actor) {
+            committed(signal.getEntityUniqueId()).release();
+        }
+
+        @Override
+        public void failure(Signal<?> signal, Exception e, EntityActor actor) {
+            failure.compareAndSet(null, e);
+            // unblock the waiting benchmark thread so it reports the failure
+            committed(signal.getEntityUniqueId()).release();
+        }
+    };
+
+}
@@ -0,0 +1,102 @@
+package xuml.tools.benchmarks;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.typesafe.config.ConfigFactory;
+
+import ordertracker.Order;
+
+/**
+ * Measures the time from {@code signal()} until the transaction processing the
+ * signal has committed, one signal at a time ({@link #signalToCommit}) and
+ * with a batch of signals outstanding per thread ({@link #throughput}). Each
+ * thread drives its own order through the self transition on
+ * {@code ArrivedDepot}, which also signals the shared {@code SystemEvent}
+ * entity.
+ *
+ * The {@code executor} parameter compares the entity dispatcher's fixed
+ * thread pool with virtual threads (which need Java 21+, otherwise the thread
+ * pool is used for both). Run with many threads (for example {@code -t 64})
+ * to see the difference when most entities are waiting on the database.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignalBenchmark {
+
+    private static final int BATCH = 100;
+
+    @State(Scope.Benchmark)
+    public static class Domain {
+
+        @Param({ "thread-pool", "virtual" })
+        public String executor;
+
+        @Setup(Level.Trial)
+        public void startup() {
+            OrderTracker.startup(ConfigFactory.parseMap(Collections.singletonMap(
+                    "xuml.entity.virtual-threads", "virtual".equals(executor))));
+        }
+
+        @TearDown(Level.Trial)
+        public void shutdown() {
+            OrderTracker.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadOrder {
+
+        Order order;
+        String uniqueId;
+        Order.Events.ArrivedDepot arrived;
+
+        @Setup(Level.Trial)
+        public void setup(Domain domain) {
+            order = OrderTracker.createOrder(UUID.randomUUID().toString());
+            uniqueId = order.uniqueId();
+            // creation commits synchronously, move the order to IN_TRANSIT
+            order.signal(new Order.Events.Send());
+            order.signal(new Order.Events.Assign());
+            order.signal(new Order.Events.PickedUp());
+            OrderTracker.awaitCommitted(uniqueId, 3);
+            arrived = new Order.Events.ArrivedDepot(OrderTracker.DEPOT_ID);
+        }
+    }
+
+    @Benchmark
+    public void signalToCommit(ThreadOrder t) {
+        t.order.signal(t.arrived);
+        OrderTracker.awaitCommitted(t.uniqueId, 1);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void throughput(ThreadOrder t) {
+        for (int i = 0; i < BATCH; i++)
+            t.order.signal(t.arrived);
+        OrderTracker.awaitCommitted(t.uniqueId, BATCH);
+    }
+
+}
@@ -0,0 +1,142 @@
+package xuml.tools.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Compares the two shapes of generated {@code event()} dispatch on a state
+ * machine of 50 states and 100 events with a transition from every fifth
+ * state for each event (1000 transitions). {@code chain} finds the event by
+ * testing each event type in turn then compares the current state with the
+ * from state of each transition of that event, as entities generated before
+ * transition tables did. {@code table} resolves the state to its ordinal and
+ * looks the transition up in a {@code [state][event]} table as entities are
+ * generated now. Signals cycle through random (state, event) pairs so that
+ * neither benefits from a single predictable branch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransitionDispatchBenchmark {
+
+    private static final int STATES = 50;
+    private static final int EVENTS = 100;
+    private static final int SIGNALS = 1024;
+
+    // stands in for the generated event classes, an instanceof test is an
+    // identity comparison of the type
+    private static final class EventType {
+    }
+
+    private static final class Event {
+        final EventType type;
+        final int ordinal;
+
+        Event(EventType type, int ordinal) {
+            this.type = type;
+            this.ordinal = ordinal;
+        }
+    }
+
+    private static final class Transition {
+        final String fromState;
+        final int toState;
+
+        Transition(String fromState, int toState) {
+            this.fromState = fromState;
+            this.toState = toState;
+        }
+    }
+
+    private final EventType[] eventTypes = new EventType[EVENTS];
+    // transitions of each event in declaration order
+    private final List<List<Transition>> transitionsByEvent = Lists.newArrayList();
+    // stands in for the generated stateRow switch
+    private final Map<String, Integer> stateOrdinals = Maps.newHashMap();
+    private final int[][] table = new int[STATES + 1][EVENTS];
+    private final int[] toStates = new int[STATES * EVENTS];
+    private final String[] stateNames = new String[STATES];
+    private final String[] states = new String[SIGNALS];
+    private final Event[] events = new Event[SIGNALS];
+    private int index;
+
+    @Setup
+    public void setup() {
+        for (int s = 0; s < STATES; s++) {
+            // new instances so that equals compares contents as it does for
+            // a state loaded from the database
+            stateNames[s] = new String("STATE_" + s);
+            stateOrdinals.put(stateNames[s], s);
+        }
+        for (int[] row : table)
+            Arrays.fill(row, -1);
+        int transition = 0;
+        for (int e = 0; e < EVENTS; e++) {
+            eventTypes[e] = new EventType();
+            List<Transition> list = Lists.newArrayList();
+            for (int s = e % 5; s < STATES; s += 5) {
+                int to = (s + e) % STATES;
+                list.add(new Transition(stateNames[s], to));
+                table[s + 1][e] = transition;
+                toStates[transition] = to;
+                transition++;
+            }
+            transitionsByEvent.add(list);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < SIGNALS; i++) {
+            int e = random.nextInt(EVENTS);
+            states[i] = new String(stateNames[random.nextInt(STATES)]);
+            events[i] = new Event(eventTypes[e], e);
+        }
+    }
+
+    @Benchmark
+    public int chain() {
+        int i = next();
+        String state = states[i];
+        Event event = events[i];
+        for (int e = 0; e < EVENTS; e++)
+            if (event.type == eventTypes[e]) {
+                for (Transition t : transitionsByEvent.get(e))
+                    if (state.equals(t.fromState))
+                        return t.toState;
+                return -1;
+            }
+        return -1;
+    }
+
+    @Benchmark
+    public int table() {
+        int i = next();
+        int from = stateOrdinals.get(states[i]) + 1;
+        int transition = table[from][events[i].ordinal];
+        return transition == -1 ? -1 : toStates[transition];
+    }
+
+    private int next() {
+        index = (index + 1) & (SIGNALS - 1);
+        return index;
+    }
+
+}
@@ -0,0 +1,134 @@
+package xuml.tools.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.objenesis.strategy.StdInstantiatorStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.DefaultInstantiatorStrategy;
+
+import xuml.tools.model.compiler.runtime.KryoFields;
+import xuml.tools.model.compiler.runtime.Util;
+
+/**
+ * Compares encoding and decoding of an event-like object by {@link Util}
+ * with the stream based approach it used previously (the {@code streams*}
+ * benchmarks). Run with {@code -prof gc} to see bytes allocated per
+ * operation ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+
+    private Kryo kryo;
+    private Sample sample;
+    private byte[] bytes;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        Util.register(k -> k.register(Sample.class, new Sample.KryoSerializer()));
+        kryo = new Kryo();
+        kryo.setRegistrationRequired(false);
+        kryo.setInstantiatorStrategy(
+                new DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
+        // same serializer so that only the buffer handling differs
+        kryo.register(Sample.class, new Sample.KryoSerializer());
+        sample = new Sample("order-12345", 42, 123.45, new Date(1500000000000L));
+        bytes = Util.toBytes(sample);
+        buffer = ByteBuffer.allocate(1024);
+    }
+
+    @Benchmark
+    public byte[] streamsToBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Output output = new Output(out);
+        kryo.writeObject(output, sample);
+        output.close();
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public Sample streamsToObject() {
+        Input input = new Input(new ByteArrayInputStream(bytes));
+        try {
+            return kryo.readObject(input, Sample.class);
+        } finally {
+            input.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return Util.toBytes(sample);
+    }
+
+    @Benchmark
+    public Sample toObject() {
+        return Util.toObject(bytes, Sample.class);
+    }
+
+    @Benchmark
+    public Sample byteBufferRoundTrip() {
+        buffer.clear();
+        Util.toBytes(sample, buffer);
+        buffer.flip();
+        return Util.toObject(buffer, Sample.class);
+    }
+
+    /**
+     * Shaped like a generated event with its generated serializer.
+     */
+    public static class Sample {
+        private final String orderId;
+        private final Integer quantity;
+        private final Double amount;
+        private final Date time;
+
+        public Sample(String orderId, Integer quantity, Double amount, Date time) {
+            this.orderId = orderId;
+            this.quantity = quantity;
+            this.amount = amount;
+            this.time = time;
+        }
+
+        public static final class KryoSerializer extends Serializer<Sample> {
+
+            @Override
+            public void write(Kryo kryo, Output output, Sample event) {
+                KryoFields.write(output, event.orderId);
+                KryoFields.write(output, event.quantity);
+                KryoFields.write(output, event.amount);
+                KryoFields.write(output, event.time);
+            }
+
+            @Override
+            public Sample read(Kryo kryo, Input input, Class<? extends Sample> type) {
+                return new Sample(KryoFields.readString(input), KryoFields.readInteger(input),
+                        KryoFields.readDouble(input), KryoFields.readDate(input));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package xuml.tools.model.compiler.runtime.query;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ordertracker.Order;
+
+/**
+ * Measures building a where clause with the generated query fields and
+ * rendering it to JPQL. In this package to use the JPQL rendering that
+ * {@link SelectBuilder} otherwise only exposes through query execution.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectBuilderBenchmark {
+
+    @Benchmark
+    public String simple() {
+        SelectBuilder<Order> builder = SelectBuilder
+                .builder(Order.Attribute.description.eq("benchmark order"));
+        return SelectBuilder.getSql(Order.class, builder.getClause());
+    }
+
+    @Benchmark
+    public String compound() {
+        SelectBuilder<Order> builder = SelectBuilder
+                .builder(Order.Attribute.description.like("bench%")
+                        .and(Order.Attribute.attempts.lt(Order.Attribute.maxAttempts))
+                        .or(Order.Attribute.toAddress.eq("sydney")
+                                .and(Order.Attribute.attempts.gte(3))));
+        return SelectBuilder.getSql(Order.class, builder.getClause());
+    }
+
+}
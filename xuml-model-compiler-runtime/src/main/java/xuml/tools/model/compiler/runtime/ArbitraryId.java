@@ -1,15 +1,51 @@
 package xuml.tools.model.compiler.runtime;
 
+import java.util.Random;
 import java.util.UUID;
 
+import com.typesafe.config.Config;
+
+/**
+ * Ids for signals. By default these are random UUIDs (as 32 hex characters).
+ * {@link TimeOrderedId}s can be selected instead so that inserts are appended
+ * to the primary key index and ordering by id follows creation order. The
+ * generator is selected by {@code xuml.signal.id}.
+ */
 public final class ArbitraryId {
 
+    private static volatile TimeOrderedId timeOrdered = new TimeOrderedId(randomNode());
+    private static volatile boolean random = true;
+
     private ArbitraryId() {
         // prevent instantiation
     }
 
     public static String next() {
-        return UUID.randomUUID().toString().replace("-", "");
+        if (random)
+            return UUID.randomUUID().toString().replace("-", "");
+        else
+            return timeOrdered.next();
+    }
+
+    /**
+     * Applies the {@code xuml.signal.id} settings.
+     * 
+     * @param config
+     */
+    static void configure(Config config) {
+        String generator = config.getString("generator");
+        if ("random".equals(generator))
+            random = true;
+        else if ("time-ordered".equals(generator)) {
+            int node = config.getInt("node-id");
+            timeOrdered = new TimeOrderedId(node < 0 ? randomNode() : node);
+            random = false;
+        } else
+            throw new IllegalArgumentException("unknown xuml.signal.id.generator: " + generator);
+    }
+
+    private static int randomNode() {
+        return new Random().nextInt(TimeOrderedId.MAX_NODE + 1);
     }
 
 }
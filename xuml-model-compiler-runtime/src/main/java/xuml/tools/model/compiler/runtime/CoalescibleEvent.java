@@ -0,0 +1,12 @@
+package xuml.tools.model.compiler.runtime;
+
+/**
+ * An event where only the latest unprocessed instance sent to an entity
+ * matters. A newer signal of the same event type replaces a queued one that
+ * has not been processed yet (in the {@link SignalStore} and in the entity
+ * actor's pending signals) instead of being queued after it, whenever
+ * either is due. Repeating signals are not coalesced.
+ */
+public interface CoalescibleEvent<T> extends Event<T> {
+
+}
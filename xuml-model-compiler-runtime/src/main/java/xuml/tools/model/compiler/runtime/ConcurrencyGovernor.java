@@ -0,0 +1,215 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+import com.typesafe.config.Config;
+
+/**
+ * Limits the number of entity transactions in flight so that entity actors
+ * don't queue on (or leave idle) the JDBC connection pool. The limit starts at
+ * the entity actor pool size, which should match the connection pool size.
+ *
+ * If adaptive, the limit is adjusted using additive increase/multiplicative
+ * decrease on the observed time to begin a transaction (which is when a
+ * connection is taken from the pool). After every {@code window} transactions
+ * the limit is reduced by {@code decreaseFactor} if the average wait was above
+ * {@code targetWait}, otherwise increased by one (up to the maximum) if
+ * transactions had to wait for a permit during the window.
+ *
+ * Waiting transactions are given permits in order of their signal priority.
+ */
+public final class ConcurrencyGovernor {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final boolean adaptive;
+    private final long targetWaitNanos;
+    private final int window;
+    private final double decreaseFactor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // transactions waiting for a permit by signal priority, guarded by lock
+    private final TreeMap<Integer, Waiters> waiting = new TreeMap<Integer, Waiters>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+
+    // guarded by lock
+    private int samples;
+    private long totalWaitNanos;
+    private boolean saturated;
+    private volatile long lastAverageWaitNanos;
+
+    public ConcurrencyGovernor(int maxLimit, int minLimit, boolean adaptive,
+            long targetWaitNanos, int window, double decreaseFactor) {
+        Preconditions.checkArgument(maxLimit > 0, "maxLimit must be > 0");
+        Preconditions.checkArgument(minLimit > 0 && minLimit <= maxLimit,
+                "minLimit must be between 1 and maxLimit");
+        Preconditions.checkArgument(window > 0, "window must be > 0");
+        Preconditions.checkArgument(decreaseFactor > 0 && decreaseFactor < 1,
+                "decreaseFactor must be between 0 and 1");
+        this.maxLimit = maxLimit;
+        this.minLimit = minLimit;
+        this.adaptive = adaptive;
+        this.targetWaitNanos = targetWaitNanos;
+        this.window = window;
+        this.decreaseFactor = decreaseFactor;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * Creates a governor from the {@code xuml.entity.concurrency} settings.
+     *
+     * @param maxLimit
+     *            entity actor pool size
+     * @param config
+     * @return governor
+     */
+    static ConcurrencyGovernor create(int maxLimit, Config config) {
+        return new ConcurrencyGovernor(maxLimit, Math.min(maxLimit, config.getInt("min")),
+                config.getBoolean("adaptive"),
+                config.getDuration("target-connection-wait", TimeUnit.NANOSECONDS),
+                config.getInt("window"), config.getDouble("decrease-factor"));
+    }
+
+    /**
+     * Blocks until a transaction may start.
+     */
+    public void acquire() {
+        acquire(0);
+    }
+
+    /**
+     * Blocks until a transaction for a signal of the given priority may start.
+     * Permits go to waiting transactions of the highest priority first, and in
+     * arrival order within a priority.
+     * 
+     * @param priority
+     */
+    public void acquire(int priority) {
+        lock.lock();
+        try {
+            if (waiting.isEmpty() && inFlight.get() < limit) {
+                inFlight.incrementAndGet();
+                return;
+            }
+            saturated = true;
+            Waiters waiters = waiting.get(priority);
+            if (waiters == null) {
+                waiters = new Waiters(lock.newCondition());
+                waiting.put(priority, waiters);
+            }
+            waiters.count++;
+            while (inFlight.get() >= limit || waiting.lastKey() != priority)
+                waiters.condition.awaitUninterruptibly();
+            if (--waiters.count == 0)
+                waiting.remove(priority);
+            inFlight.incrementAndGet();
+            // in case more than one permit is free
+            signalNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // call while holding lock
+    private void signalNext() {
+        if (!waiting.isEmpty() && inFlight.get() < limit)
+            waiting.lastEntry().getValue().condition.signal();
+    }
+
+    /**
+     * Called when a transaction started by {@link #acquire()} has committed or
+     * rolled back.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            inFlight.decrementAndGet();
+            signalNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the time taken to begin a transaction.
+     *
+     * @param waitNanos
+     */
+    public void connectionWait(long waitNanos) {
+        if (!adaptive)
+            return;
+        lock.lock();
+        try {
+            samples++;
+            totalWaitNanos += waitNanos;
+            if (samples >= window)
+                adjust();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adjust() {
+        long average = totalWaitNanos / samples;
+        lastAverageWaitNanos = average;
+        int previous = limit;
+        if (average > targetWaitNanos)
+            limit = Math.max(minLimit, (int) (limit * decreaseFactor));
+        else if (saturated && limit < maxLimit) {
+            limit = limit + 1;
+        }
+        if (limit > previous)
+            signalNext();
+        samples = 0;
+        totalWaitNanos = 0;
+        saturated = false;
+    }
+
+    /**
+     * Returns the number of entity transactions currently in progress.
+     *
+     * @return
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns the current maximum number of concurrent entity transactions.
+     *
+     * @return
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Returns the average time to begin a transaction over the last complete
+     * window (0 if not adaptive or no window has completed).
+     *
+     * @return
+     */
+    public long getAverageConnectionWait(TimeUnit unit) {
+        return unit.convert(lastAverageWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static final class Waiters {
+        final Condition condition;
+        int count;
+
+        Waiters(Condition condition) {
+            this.condition = condition;
+        }
+    }
+
+}
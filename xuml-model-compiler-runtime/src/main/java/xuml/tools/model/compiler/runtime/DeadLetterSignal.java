@@ -0,0 +1,152 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * A signal that failed processing too many times and is no longer retried.
+ * It is kept with the error of its last failure until it is redriven (moved
+ * back to the {@link QueuedSignal}s) or deleted.
+ */
+@Entity
+@Table(name = "xuml_dead_letter_signal")
+public class DeadLetterSignal {
+
+    private static final int MAX_ERROR_LENGTH = 4000;
+
+    public DeadLetterSignal() {
+        // no-arg constructor required by JPA
+    }
+
+    public DeadLetterSignal(QueuedSignal signal, String error) {
+        this.id = signal.id;
+        this.entityClassName = signal.entityClassName;
+        this.eventClassName = signal.eventClassName;
+        this.idClassName = signal.idClassName;
+        this.idContent = signal.idContent;
+        this.eventContent = signal.eventContent;
+        this.time = signal.time;
+        this.repeatIntervalMs = signal.repeatIntervalMs;
+        this.fromEntityUniqueId = signal.fromEntityUniqueId;
+        this.toEntityUniqueId = signal.toEntityUniqueId;
+        this.eventSignature = signal.eventSignature;
+        this.priority = signal.priority;
+        this.numFailures = signal.numFailures;
+        this.timeFirstFailure = signal.timeFirstFailure;
+        this.timeLastFailure = signal.timeLastFailure;
+        if (error != null && error.length() > MAX_ERROR_LENGTH)
+            this.error = error.substring(0, MAX_ERROR_LENGTH);
+        else
+            this.error = error;
+    }
+
+    @Id
+    @Column(name = "signal_id", length = 32)
+    public String id;
+
+    @Column(name = "entity_class_name", nullable = false)
+    public String entityClassName;
+
+    @Column(name = "event_class_name", nullable = false)
+    public String eventClassName;
+
+    @Column(name = "id_class_name", nullable = false)
+    public String idClassName;
+
+    @Column(name = "id_content", nullable = false)
+    public byte[] idContent;
+
+    @Column(name = "event_content", nullable = false)
+    @Lob
+    public byte[] eventContent;
+
+    // the time the signal was last due
+    @Column(name = "time", nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date time;
+
+    @Column(name = "repeat_interval_ms", nullable = true)
+    public Long repeatIntervalMs;
+
+    @Column(name = "from_entity_unique_id")
+    public String fromEntityUniqueId;
+
+    @Column(name = "to_entity_unique_id", nullable = false)
+    public String toEntityUniqueId;
+
+    @Column(name = "event_signature", nullable = true)
+    public String eventSignature;
+
+    @Column(name = "priority", nullable = false)
+    public int priority;
+
+    @Column(name = "num_failures", nullable = false)
+    public int numFailures;
+
+    @Column(name = "time_first_failure", nullable = true)
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date timeFirstFailure;
+
+    @Column(name = "time_last_failure", nullable = true)
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date timeLastFailure;
+
+    // message of the exception thrown by the last failure
+    @Column(name = "error", length = MAX_ERROR_LENGTH)
+    public String error;
+
+    /**
+     * Returns a queued signal with the same id and content due at the given
+     * time and with no failures recorded.
+     *
+     * @param time
+     * @return
+     */
+    public QueuedSignal toQueuedSignal(long time) {
+        QueuedSignal signal = new QueuedSignal();
+        signal.id = id;
+        signal.entityClassName = entityClassName;
+        signal.eventClassName = eventClassName;
+        signal.idClassName = idClassName;
+        signal.idContent = idContent;
+        signal.eventContent = eventContent;
+        signal.time = new Date(time);
+        signal.repeatIntervalMs = repeatIntervalMs;
+        signal.fromEntityUniqueId = fromEntityUniqueId;
+        signal.toEntityUniqueId = toEntityUniqueId;
+        signal.eventSignature = eventSignature;
+        signal.priority = priority;
+        return signal;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("DeadLetterSignal [id=");
+        builder.append(id);
+        builder.append(", entityClassName=");
+        builder.append(entityClassName);
+        builder.append(", eventClassName=");
+        builder.append(eventClassName);
+        builder.append(", toEntityUniqueId=");
+        builder.append(toEntityUniqueId);
+        builder.append(", numFailures=");
+        builder.append(numFailures);
+        builder.append(", timeFirstFailure=");
+        builder.append(timeFirstFailure);
+        builder.append(", timeLastFailure=");
+        builder.append(timeLastFailure);
+        builder.append(", error=");
+        builder.append(error);
+        builder.append("]");
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,354 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+
+import xuml.tools.model.compiler.runtime.message.Signal;
+import xuml.tools.model.compiler.runtime.timer.TimerWheel;
+import xuml.tools.model.compiler.runtime.timer.TimerWheel.Timeout;
+
+/**
+ * Holds delayed and repeating signals until they are due then hands them to
+ * the {@link Signaller} for dispatch.
+ *
+ * Only signals due before {@code loadedUntil} (roughly now plus the configured
+ * horizon) are kept in memory, in a {@link TimerWheel}. Later signals are left
+ * in the {@link SignalStore} and paged in by time as the horizon moves
+ * forward. Repeating signals are always kept in memory once seen.
+ *
+ * There can be at most one delayed signal of a given event signature
+ * outstanding for each sender-receiver instance pair at any one time (Mellor &
+ * Balcer p194) so scheduling a signal cancels the pending one with the same
+ * key. Cancelling a signal also deletes its queued row. Both also delete the
+ * stored signals with the same key that are not held in memory because they
+ * are due beyond the horizon. Signals paged in from the store or recovered
+ * after a restart are only matched by id so they never replace (or delete)
+ * another signal with the same key, for example a failed signal waiting to
+ * be retried.
+ *
+ * Failed signals waiting to be retried are held here too.
+ */
+final class DelayedSignalScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(DelayedSignalScheduler.class);
+
+    private final Signaller signaller;
+    private final SignalStore store;
+    private final SignallerMetrics metrics;
+    private final long tickMs;
+    private final long horizonMs;
+    private final int pageSize;
+    private final TimerWheel<Signal<?>> wheel;
+    private final Map<EntityEvent, Timeout<Signal<?>>> byKey = Maps.newHashMap();
+    private final Map<String, Timeout<Signal<?>>> byId = Maps.newHashMap();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // guarded by this
+    private long loadedUntil;
+
+    DelayedSignalScheduler(Signaller signaller, SignalStore store, Config config,
+            SignallerMetrics metrics) {
+        this.signaller = signaller;
+        this.store = store;
+        this.metrics = metrics;
+        this.tickMs = config.getDuration("tick", TimeUnit.MILLISECONDS);
+        this.horizonMs = config.getDuration("horizon", TimeUnit.MILLISECONDS);
+        this.pageSize = config.getInt("page-size");
+        long now = System.currentTimeMillis();
+        this.wheel = new TimerWheel<Signal<?>>(tickMs, config.getInt("wheel-size"),
+                config.getInt("levels"), now);
+        // signals already queued before startup are the responsibility of
+        // Signaller.sendSignalsInQueue
+        this.loadedUntil = now + horizonMs;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                driveLoop();
+            }
+        }, "xuml-signal-timer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Holds the newly sent signal until its time is due, replacing any
+     * pending signal with the same key. The signal must already be persisted.
+     *
+     * @param signal
+     */
+    void schedule(Signal<?> signal) {
+        EntityEvent key = EntityEvent.of(signal);
+        String replacedId;
+        synchronized (this) {
+            replacedId = remove(key);
+            if (signal.getId().equals(replacedId))
+                replacedId = null;
+            if (signal.getTime() < loadedUntil || signal.getRepeatInterval().isPresent())
+                add(key, signal);
+            // otherwise it will be paged in from the database
+        }
+        deleteQueuedSignal(replacedId);
+        cancelStored(key, signal.getId());
+    }
+
+    /**
+     * Holds the stored signal (for example one recovered after a restart)
+     * until its time is due. The signal is matched by id only so a pending
+     * signal with the same key is left alone.
+     *
+     * @param signal
+     */
+    synchronized void hold(Signal<?> signal) {
+        // the same signal may be offered twice (by recovery and paging)
+        if (!byId.containsKey(signal.getId())
+                && (signal.getTime() < loadedUntil || signal.getRepeatInterval().isPresent()))
+            add(EntityEvent.of(signal), signal);
+        // otherwise it will be paged in from the database
+    }
+
+    /**
+     * Holds a failed signal until its retry time. Unlike
+     * {@link #schedule(Signal)} this does not replace a pending delayed signal
+     * with the same event signature.
+     *
+     * @param signal
+     */
+    synchronized void retry(Signal<?> signal) {
+        if (signal.getTime() < loadedUntil && !byId.containsKey(signal.getId())) {
+            byId.put(signal.getId(), wheel.schedule(signal.getTime(), signal));
+            metrics.timersPending().set(wheel.size());
+        }
+        // otherwise it will be paged in from the database
+    }
+
+    /**
+     * Stops holding the signal with the given id (if held) without deleting
+     * its queued row.
+     *
+     * @param id
+     */
+    synchronized void unschedule(String id) {
+        Timeout<Signal<?>> timeout = byId.remove(id);
+        if (timeout != null) {
+            wheel.cancel(timeout);
+            EntityEvent key = EntityEvent.of(timeout.getPayload());
+            if (byKey.get(key) == timeout)
+                byKey.remove(key);
+            metrics.timersPending().set(wheel.size());
+        }
+    }
+
+    /**
+     * Returns the time before which all signals are held in memory. Later
+     * signals (other than repeating ones) will be paged in as they come
+     * within the horizon.
+     *
+     * @return
+     */
+    synchronized long loadedUntil() {
+        return loadedUntil;
+    }
+
+    void cancel(String fromEntityUniqueId, String toEntityUniqueId, String eventSignatureKey) {
+        EntityEvent key = new EntityEvent(fromEntityUniqueId, toEntityUniqueId,
+                eventSignatureKey);
+        String id;
+        synchronized (this) {
+            id = remove(key);
+        }
+        deleteQueuedSignal(id);
+        cancelStored(key, null);
+    }
+
+    /**
+     * Deletes the stored signals with the given key that are not yet due
+     * other than {@code exceptId}. Any of them paged in meanwhile are dropped
+     * from memory too.
+     */
+    private void cancelStored(EntityEvent key, String exceptId) {
+        if (key.eventSignature == null)
+            return;
+        List<String> ids = store.cancel(key.fromEntityUniqueId, key.entityUniqueId,
+                key.eventSignature, System.currentTimeMillis(), exceptId);
+        for (String id : ids)
+            unschedule(id);
+    }
+
+    void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Holds the signal. It is only registered under its key if no other
+     * signal is so that holding a stored signal never displaces another.
+     */
+    private void add(EntityEvent key, Signal<?> signal) {
+        Timeout<Signal<?>> timeout = wheel.schedule(signal.getTime(), signal);
+        if (!byKey.containsKey(key))
+            byKey.put(key, timeout);
+        byId.put(signal.getId(), timeout);
+        metrics.timersPending().set(wheel.size());
+    }
+
+    /**
+     * Removes the pending signal with the given key and returns its id (or
+     * null if none).
+     */
+    private String remove(EntityEvent key) {
+        Timeout<Signal<?>> timeout = byKey.remove(key);
+        if (timeout == null)
+            return null;
+        wheel.cancel(timeout);
+        byId.remove(timeout.getPayload().getId());
+        metrics.timersPending().set(wheel.size());
+        return timeout.getPayload().getId();
+    }
+
+    private void driveLoop() {
+        List<Signal<?>> expired = Lists.newArrayList();
+        while (running) {
+            try {
+                long now = System.currentTimeMillis();
+                synchronized (this) {
+                    wheel.advance(now, expired);
+                    for (Signal<?> signal : expired)
+                        expire(signal);
+                    metrics.timersPending().set(wheel.size());
+                }
+                for (Signal<?> signal : expired)
+                    signaller.dispatch(signal);
+                metrics.timersFired().addAndGet(expired.size());
+                expired.clear();
+                signaller.drainSpilled();
+                loadDue(now);
+                Thread.sleep(tickMs);
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (RuntimeException e) {
+                log.error(e.getMessage(), e);
+                expired.clear();
+            }
+        }
+    }
+
+    private void expire(Signal<?> signal) {
+        EntityEvent key = EntityEvent.of(signal);
+        Timeout<Signal<?>> timeout = byKey.get(key);
+        if (timeout != null && timeout.getPayload() == signal)
+            byKey.remove(key);
+        byId.remove(signal.getId());
+        if (signal.getRepeatInterval().isPresent())
+            add(key, next(signal));
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Signal<?> next(Signal signal) {
+        long time = signal.getTime()
+                + ((Signal<?>) signal).getRepeatInterval().get().toMillis();
+        return new Signal(signal.getFromEntityUniqueId(), signal.getEntityClass(),
+                signal.getEvent(), signal.getId(), time, signal.getRepeatInterval(),
+                signal.getEntityId(), signal.getEntityUniqueId());
+    }
+
+    /**
+     * Moves the horizon forward once it is half used and loads the signals
+     * that fall into the newly covered interval.
+     */
+    private void loadDue(long now) {
+        long from;
+        long to;
+        synchronized (this) {
+            if (now + horizonMs / 2 < loadedUntil)
+                return;
+            from = loadedUntil;
+            to = now + horizonMs;
+            // signals scheduled from now on with time < to are held in memory
+            // directly so there is no gap between this and the query below
+            loadedUntil = to;
+        }
+        try {
+            load(from, to);
+        } catch (RuntimeException e) {
+            // try the interval again next tick, signals already held are not
+            // added twice
+            synchronized (this) {
+                if (loadedUntil == to)
+                    loadedUntil = from;
+            }
+            throw e;
+        }
+    }
+
+    private void load(long from, long to) {
+        QueuedSignal last = null;
+        while (true) {
+            List<QueuedSignal> page = store.queuedSignals(from, to, last, pageSize);
+            for (QueuedSignal q : page) {
+                Signal<?> signal = signaller.toSignal(q);
+                synchronized (this) {
+                    if (!byId.containsKey(q.id))
+                        add(EntityEvent.of(signal), signal);
+                }
+            }
+            if (page.size() < pageSize)
+                break;
+            last = page.get(page.size() - 1);
+        }
+    }
+
+    private void deleteQueuedSignal(String id) {
+        if (id != null)
+            store.delete(id);
+    }
+
+    private static final class EntityEvent {
+        final String fromEntityUniqueId;
+        final String entityUniqueId;
+        final String eventSignature;
+
+        EntityEvent(String fromEntityUniqueId, String entityUniqueId, String eventSignature) {
+            this.fromEntityUniqueId = fromEntityUniqueId;
+            this.entityUniqueId = entityUniqueId;
+            this.eventSignature = eventSignature;
+        }
+
+        static EntityEvent of(Signal<?> signal) {
+            return new EntityEvent(signal.getFromEntityUniqueId(), signal.getEntityUniqueId(),
+                    signal.getEvent().signatureKey());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(fromEntityUniqueId, entityUniqueId, eventSignature);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof EntityEvent))
+                return false;
+            EntityEvent other = (EntityEvent) obj;
+            return Objects.equal(fromEntityUniqueId, other.fromEntityUniqueId)
+                    && Objects.equal(entityUniqueId, other.entityUniqueId)
+                    && Objects.equal(eventSignature, other.eventSignature);
+        }
+
+    }
+
+}
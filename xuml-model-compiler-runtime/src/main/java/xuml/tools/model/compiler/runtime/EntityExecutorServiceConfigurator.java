@@ -1,19 +1,35 @@
 package xuml.tools.model.compiler.runtime;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.typesafe.config.Config;
 
 import akka.dispatch.DispatcherPrerequisites;
 import akka.dispatch.ExecutorServiceConfigurator;
 import akka.dispatch.ExecutorServiceFactory;
+import xuml.tools.model.compiler.runtime.actor.SignalPriorityMailbox;
 
+/**
+ * Creates the fixed size thread pool that entity actors run on. The size is
+ * the {@code pool-size} of the dispatcher config which {@link Signaller} sets
+ * to its entity actor pool size.
+ *
+ * Actors waiting for a thread are queued by the priority of the next signal
+ * in their mailbox (see {@link SignalPriorityMailbox}) so that a backlog of
+ * low priority signals does not hold up higher priority ones.
+ */
 public class EntityExecutorServiceConfigurator extends ExecutorServiceConfigurator {
 
+    private final int poolSize;
+
     public EntityExecutorServiceConfigurator(Config config, DispatcherPrerequisites prerequisites) {
         super(config, prerequisites);
+        this.poolSize = config.getInt("pool-size");
     }
 
     @Override
@@ -22,9 +38,51 @@ public class EntityExecutorServiceConfigurator extends ExecutorServiceConfigurat
 
             @Override
             public ExecutorService createExecutorService() {
-                return Executors.newFixedThreadPool(5);
+                return new PriorityThreadPoolExecutor(poolSize, factory);
             }
         };
     }
 
+    private static final class PriorityThreadPoolExecutor extends ThreadPoolExecutor {
+
+        private final AtomicLong sequence = new AtomicLong();
+
+        PriorityThreadPoolExecutor(int poolSize, ThreadFactory factory) {
+            super(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                    new PriorityBlockingQueue<Runnable>(), factory);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            super.execute(new PrioritizedTask(command, SignalPriorityMailbox.headOrder(command),
+                    sequence.getAndIncrement()));
+        }
+    }
+
+    private static final class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+        private final Runnable task;
+        private final int order;
+        private final long sequence;
+
+        PrioritizedTask(Runnable task, int order, long sequence) {
+            this.task = task;
+            this.order = order;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask o) {
+            if (order != o.order)
+                return Integer.compare(order, o.order);
+            else
+                return Long.compare(sequence, o.sequence);
+        }
+    }
+
 }
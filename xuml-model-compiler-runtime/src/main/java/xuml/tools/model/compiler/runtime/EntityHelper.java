@@ -1,7 +1,8 @@
 package xuml.tools.model.compiler.runtime;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
-import java.util.Stack;
 
 import javax.persistence.EntityManager;
 
@@ -21,9 +22,13 @@ import xuml.tools.model.compiler.runtime.message.Signal;
 public class EntityHelper {
 
     private final Entity entity;
-    private final Stack<Call> stack = new Stack<Call>();
+    // only used by the thread processing the entity so not synchronized
+    private final Deque<Call> stack = new ArrayDeque<Call>(4);
     private final List<Signal> signalsToOther = Lists.newArrayList();
     private final Signaller signaller;
+    // the thread processing the outermost event, tracked only if the
+    // signaller checks thread confinement
+    private Thread owner;
 
     public EntityHelper(Signaller signaller, Entity entity) {
         this.signaller = signaller;
@@ -31,7 +36,8 @@ public class EntityHelper {
     }
 
     public void beforeEvent() {
-
+        if (signaller.checksThreadConfinement())
+            checkConfined();
         stack.push(new Call());
         Info info = signaller.getInfo();
         info.setCurrentEntity(entity);
@@ -42,20 +48,21 @@ public class EntityHelper {
     }
 
     public <T extends Entity<T>> void signal(Event<T> event, Optional<Duration> delay) {
-        Info info = signaller.getInfo();
+        Info info = signaller.currentInfo();
+        Entity<?> currentEntity = info == null ? null : info.getCurrentEntity();
         // do an object equals because RootActor will guarantee that only one
         // instance is being used to refer to a database entity at any given
         // time.
-        boolean isSignalToSelf = entity == info.getCurrentEntity();
+        boolean isSignalToSelf = entity == currentEntity;
         if (isSignalToSelf && (!delay.isPresent() || delay.get().toMillis() == 0)) {
             // delay is ignored signals to self
             stack.peek().getEventsToSelf().add(event);
         } else {
             String fromEntityUniqueId;
-            if (info.getCurrentEntity() == null)
+            if (currentEntity == null)
                 fromEntityUniqueId = "Unknown";
             else
-                fromEntityUniqueId = info.getCurrentEntity().uniqueId();
+                fromEntityUniqueId = currentEntity.uniqueId();
             signaller.signal(fromEntityUniqueId, entity, event, delay);
         }
     }
@@ -69,6 +76,8 @@ public class EntityHelper {
             // signal has already been persisted so can send it
             signaller.signal(signal);
         }
+        // the entity instance may be reused for later signals
+        signalsToOther.clear();
     }
 
     /**
@@ -81,17 +90,30 @@ public class EntityHelper {
             entity.event(event);
         }
         stack.pop();
-        if (stack.size() == 0) {
+        if (stack.isEmpty()) {
+            owner = null;
             Info info = signaller.getInfo();
             // reset the thread local variable so that the next use of this
             // thread will not make an assumption about the current entity
             info.setCurrentEntity(null);
+            signaller.releaseInfo();
         }
 
     }
 
+    private void checkConfined() {
+        Thread current = Thread.currentThread();
+        if (stack.isEmpty())
+            owner = current;
+        else if (owner != current)
+            throw new IllegalStateException("entity " + entity.uniqueId()
+                    + " is processing an event on thread " + owner.getName()
+                    + " and received another on thread " + current.getName());
+    }
+
     private static class Call {
-        private final List<Event> eventsToSelf = Lists.newArrayList();
+        // signals to self are rare and few
+        private final List<Event> eventsToSelf = Lists.newArrayListWithCapacity(2);
 
         public List<Event> getEventsToSelf() {
             return eventsToSelf;
@@ -99,11 +121,15 @@ public class EntityHelper {
     }
 
     public void setEntityManager(EntityManager em) {
-        signaller.getInfo().setCurrentEntityManager(em);
+        if (em == null) {
+            signaller.getInfo().setCurrentEntityManager(null);
+            signaller.releaseInfo();
+        } else
+            signaller.getInfo().setCurrentEntityManager(em);
     }
 
     public EntityManager getEntityManager() {
-        return signaller.getInfo().getCurrentEntityManager();
+        return signaller.getCurrentEntityManager();
     }
 
 }
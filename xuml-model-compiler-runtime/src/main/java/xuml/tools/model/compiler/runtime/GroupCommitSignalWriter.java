@@ -0,0 +1,193 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Write-behind stage for {@link QueuedSignal} inserts. Concurrent callers
+ * submit signals and a single writer thread inserts everything that has
+ * accumulated in one transaction, completing each caller's future only after
+ * that transaction has committed. Throughput then scales with batch size rather
+ * than with the commit rate of the database.
+ *
+ * For the inserts to be sent as JDBC batches the persistence unit should set
+ * {@code hibernate.jdbc.batch_size} (and ideally
+ * {@code hibernate.order_inserts}).
+ */
+class GroupCommitSignalWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(GroupCommitSignalWriter.class);
+
+    private final EntityManagerFactory emf;
+    private final int maxBatchSize;
+    private final int flushSize;
+    private final BlockingQueue<PendingSignal> queue = new LinkedBlockingQueue<PendingSignal>();
+    private final Thread thread;
+    // guards the check of running and the add to the queue in submit against
+    // close so that nothing is queued after the writer thread has finished
+    private final Object lock = new Object();
+    private volatile boolean running = true;
+
+    GroupCommitSignalWriter(EntityManagerFactory emf, int maxBatchSize, int flushSize) {
+        Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be > 0");
+        Preconditions.checkArgument(flushSize > 0, "flushSize must be > 0");
+        this.emf = emf;
+        this.maxBatchSize = maxBatchSize;
+        this.flushSize = flushSize;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "xuml-signal-group-commit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues the signal for insertion. The returned future completes with the
+     * signal id once the transaction containing the insert has committed.
+     *
+     * @param signal
+     * @return
+     */
+    CompletableFuture<String> submit(QueuedSignal signal) {
+        PendingSignal pending = new PendingSignal(signal);
+        synchronized (lock) {
+            if (running) {
+                queue.add(pending);
+                return pending.future;
+            }
+        }
+        pending.future.completeExceptionally(closedException());
+        return pending.future;
+    }
+
+    /**
+     * Stops accepting signals, writes whatever is already queued and waits for
+     * the writer thread to finish.
+     */
+    void close() {
+        stop();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // the writer thread drains the queue before finishing unless it was
+        // interrupted or close was
+        failQueued();
+    }
+
+    private void stop() {
+        synchronized (lock) {
+            running = false;
+        }
+    }
+
+    private void failQueued() {
+        PendingSignal pending;
+        while ((pending = queue.poll()) != null)
+            pending.future.completeExceptionally(closedException());
+    }
+
+    private static IllegalStateException closedException() {
+        return new IllegalStateException("signal writer has been closed");
+    }
+
+    private void writeLoop() {
+        List<PendingSignal> batch = Lists.newArrayListWithCapacity(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingSignal first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatchSize - 1);
+                    write(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                stop();
+                failQueued();
+                return;
+            } catch (RuntimeException e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    private void write(List<PendingSignal> batch) {
+        try {
+            insert(batch);
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).future.completeExceptionally(e);
+                return;
+            }
+            // one bad signal should not fail the rest of the batch so retry
+            // each individually
+            log.warn("group commit of {} signals failed, retrying individually: {}", batch.size(),
+                    e.getMessage());
+            for (PendingSignal pending : batch) {
+                try {
+                    insert(Lists.newArrayList(pending));
+                    pending.future.complete(pending.signal.id);
+                } catch (RuntimeException e2) {
+                    pending.future.completeExceptionally(e2);
+                }
+            }
+            return;
+        }
+        for (PendingSignal pending : batch)
+            pending.future.complete(pending.signal.id);
+    }
+
+    private void insert(List<PendingSignal> batch) {
+        EntityManager em = emf.createEntityManager();
+        EntityTransaction tx = null;
+        try {
+            tx = em.getTransaction();
+            tx.begin();
+            int count = 0;
+            for (PendingSignal pending : batch) {
+                em.persist(pending.signal);
+                count++;
+                if (count % flushSize == 0) {
+                    em.flush();
+                    em.clear();
+                }
+            }
+            tx.commit();
+            log.trace("group committed {} signals", batch.size());
+        } catch (RuntimeException e) {
+            if (tx != null && tx.isActive())
+                tx.rollback();
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    private static final class PendingSignal {
+        final QueuedSignal signal;
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+
+        PendingSignal(QueuedSignal signal) {
+            this.signal = signal;
+        }
+    }
+
+}
@@ -0,0 +1,333 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.TemporalType;
+import javax.persistence.TypedQuery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Default {@link SignalStore} that keeps signals as {@link QueuedSignal}
+ * entities (table {@code xuml_queued_signal}) in the same database as the
+ * entities so that removing a signal commits atomically with its processing.
+ * Dead letters are kept as {@link DeadLetterSignal} entities (table
+ * {@code xuml_dead_letter_signal}).
+ */
+public class JpaSignalStore implements SignalStore {
+
+    private static final Logger log = LoggerFactory.getLogger(JpaSignalStore.class);
+
+    private static final String NAME = QueuedSignal.class.getSimpleName();
+
+    private static final String DEAD_LETTER_NAME = DeadLetterSignal.class.getSimpleName();
+
+    private final EntityManagerFactory emf;
+    // null if group commit not enabled
+    private final GroupCommitSignalWriter groupCommitWriter;
+
+    public JpaSignalStore(EntityManagerFactory emf) {
+        this.emf = emf;
+        this.groupCommitWriter = null;
+    }
+
+    /**
+     * Constructor for a store that inserts signals using group commit.
+     *
+     * @param emf
+     * @param groupCommitMaxBatchSize
+     *            maximum number of signals inserted in one transaction
+     * @param groupCommitFlushSize
+     *            number of inserts between flushes
+     */
+    public JpaSignalStore(EntityManagerFactory emf, int groupCommitMaxBatchSize,
+            int groupCommitFlushSize) {
+        this.emf = emf;
+        this.groupCommitWriter = new GroupCommitSignalWriter(emf, groupCommitMaxBatchSize,
+                groupCommitFlushSize);
+    }
+
+    @Override
+    public String persist(QueuedSignal signal) {
+        if (groupCommitWriter != null) {
+            // block until the transaction holding this signal has committed
+            return join(groupCommitWriter.submit(signal));
+        }
+        inTransaction(em -> {
+            em.persist(signal);
+            return null;
+        });
+        log.trace("persisted {}", signal);
+        return signal.id;
+    }
+
+    @Override
+    public String coalesce(QueuedSignal signal) {
+        // replaces in its own transaction so group commit is not used
+        int count = inTransaction(em -> {
+            int n = deleteCoalesced(em, signal);
+            em.persist(signal);
+            return n;
+        });
+        log.trace("persisted {} replacing {}", signal, count);
+        return signal.id;
+    }
+
+    @Override
+    public void persistAll(List<QueuedSignal> signals, Collection<QueuedSignal> coalescing) {
+        inTransaction(em -> {
+            for (QueuedSignal signal : signals) {
+                if (coalescing.contains(signal))
+                    deleteCoalesced(em, signal);
+                em.persist(signal);
+            }
+            return null;
+        });
+        log.trace("persisted {} signals", signals.size());
+    }
+
+    private static int deleteCoalesced(EntityManager em, QueuedSignal signal) {
+        return em
+                .createQuery("delete from " + NAME
+                        + " where toEntityUniqueId=:entity and eventClassName=:event"
+                        + " and repeatIntervalMs is null")
+                .setParameter("entity", signal.toEntityUniqueId)
+                .setParameter("event", signal.eventClassName).executeUpdate();
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            else
+                throw e;
+        }
+    }
+
+    /**
+     * Runs the work in a new transaction which is committed if the work
+     * returns normally and rolled back if it throws.
+     *
+     * @param work
+     * @return the result of the work
+     */
+    private <T> T inTransaction(Function<EntityManager, T> work) {
+        EntityManager em = emf.createEntityManager();
+        EntityTransaction tx = null;
+        try {
+            tx = em.getTransaction();
+            tx.begin();
+            T result = work.apply(em);
+            tx.commit();
+            return result;
+        } catch (RuntimeException e) {
+            if (tx != null && tx.isActive())
+                tx.rollback();
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    @Override
+    public QueuedSignal queuedSignal(String id) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            return em.find(QueuedSignal.class, id);
+        } finally {
+            em.close();
+        }
+    }
+
+    @Override
+    public List<QueuedSignal> queuedSignals() {
+        return inTransaction(em -> em
+                .createQuery("select s from " + NAME + " s order by id", QueuedSignal.class)
+                .getResultList());
+    }
+
+    @Override
+    public List<QueuedSignal> queuedSignals(long fromTime, long toTime, QueuedSignal after,
+            int maxResults) {
+        return page("s.time >= :from and s.time < :to", fromTime, toTime, after, maxResults);
+    }
+
+    @Override
+    public List<QueuedSignal> repeatingSignals(long fromTime, QueuedSignal after,
+            int maxResults) {
+        return page("s.time >= :from and s.repeatIntervalMs is not null", fromTime, null, after,
+                maxResults);
+    }
+
+    private List<QueuedSignal> page(String condition, long fromTime, Long toTime,
+            QueuedSignal after, int maxResults) {
+        return inTransaction(em -> {
+            StringBuilder jpql = new StringBuilder("select s from ").append(NAME)
+                    .append(" s where ").append(condition);
+            if (after != null)
+                jpql.append(" and (s.time > :lastTime or (s.time = :lastTime and s.id > :lastId))");
+            jpql.append(" order by s.time, s.id");
+            TypedQuery<QueuedSignal> query = em.createQuery(jpql.toString(), QueuedSignal.class)
+                    .setParameter("from", new Date(fromTime), TemporalType.TIMESTAMP)
+                    .setMaxResults(maxResults);
+            if (toTime != null)
+                query.setParameter("to", new Date(toTime), TemporalType.TIMESTAMP);
+            if (after != null)
+                query.setParameter("lastTime", after.time, TemporalType.TIMESTAMP)
+                        .setParameter("lastId", after.id);
+            return query.getResultList();
+        });
+    }
+
+    @Override
+    public long size() {
+        return inTransaction(em -> em
+                .createQuery("select count(s) from " + NAME + " s", Long.class)
+                .getSingleResult());
+    }
+
+    @Override
+    public long count(long fromTime, long toTime) {
+        return inTransaction(em -> em
+                .createQuery("select count(s) from " + NAME
+                        + " s where s.time >= :from and s.time < :to", Long.class)
+                .setParameter("from", new Date(fromTime), TemporalType.TIMESTAMP)
+                .setParameter("to", new Date(toTime), TemporalType.TIMESTAMP)
+                .getSingleResult());
+    }
+
+    @Override
+    public void delete(String id) {
+        inTransaction(em -> em.createQuery("delete from " + NAME + " where id=:id")
+                .setParameter("id", id).executeUpdate());
+    }
+
+    @Override
+    public List<String> cancel(String fromEntityUniqueId, String toEntityUniqueId,
+            String eventSignature, long afterTime, String exceptId) {
+        return inTransaction(em -> {
+            TypedQuery<String> query = em.createQuery("select s.id from " + NAME
+                    + " s where s.toEntityUniqueId=:to and s.eventSignature=:signature"
+                    + " and s.time > :time and s.fromEntityUniqueId "
+                    + (fromEntityUniqueId == null ? "is null" : "= :from"), String.class)
+                    .setParameter("to", toEntityUniqueId)
+                    .setParameter("signature", eventSignature)
+                    .setParameter("time", new Date(afterTime), TemporalType.TIMESTAMP);
+            if (fromEntityUniqueId != null)
+                query.setParameter("from", fromEntityUniqueId);
+            List<String> ids = Lists.newArrayList(query.getResultList());
+            ids.remove(exceptId);
+            if (!ids.isEmpty())
+                em.createQuery("delete from " + NAME + " where id in :ids")
+                        .setParameter("ids", ids).executeUpdate();
+            return ids;
+        });
+    }
+
+    @Override
+    public int remove(EntityManager em, Collection<String> ids) {
+        if (ids.size() == 1)
+            return em.createQuery("delete from " + NAME + " where id=:id")
+                    .setParameter("id", ids.iterator().next()).executeUpdate();
+        else
+            return em.createQuery("delete from " + NAME + " where id in :ids")
+                    .setParameter("ids", ids).executeUpdate();
+    }
+
+    @Override
+    public int reschedule(EntityManager em, String id, long time) {
+        return em
+                .createQuery("update " + NAME + " set time=:time, numFailures=0,"
+                        + " timeFirstFailure=null, timeLastFailure=null where id=:id")
+                .setParameter("time", new Date(time), TemporalType.TIMESTAMP)
+                .setParameter("id", id).executeUpdate();
+    }
+
+    @Override
+    public void acknowledge(Collection<String> ids) {
+        // already removed in the processing transaction
+    }
+
+    @Override
+    public QueuedSignal failed(String id, long failureTime, SignalRetryPolicy policy) {
+        return inTransaction(em -> {
+            QueuedSignal signal = em.find(QueuedSignal.class, id);
+            if (signal != null) {
+                signal.failed(failureTime);
+                signal.time = new Date(policy.retryTime(signal, failureTime));
+            }
+            return signal;
+        });
+    }
+
+    @Override
+    public boolean deadLetter(String id, String error) {
+        QueuedSignal signal = inTransaction(em -> {
+            QueuedSignal s = em.find(QueuedSignal.class, id);
+            if (s != null) {
+                em.persist(new DeadLetterSignal(s, error));
+                em.remove(s);
+            }
+            return s;
+        });
+        log.trace("dead lettered {}", signal);
+        return signal != null;
+    }
+
+    @Override
+    public List<DeadLetterSignal> deadLetters(DeadLetterSignal after, int maxResults) {
+        return inTransaction(em -> {
+            StringBuilder jpql = new StringBuilder("select s from ").append(DEAD_LETTER_NAME)
+                    .append(" s");
+            if (after != null)
+                jpql.append(" where s.id > :lastId");
+            jpql.append(" order by s.id");
+            TypedQuery<DeadLetterSignal> query = em
+                    .createQuery(jpql.toString(), DeadLetterSignal.class)
+                    .setMaxResults(maxResults);
+            if (after != null)
+                query.setParameter("lastId", after.id);
+            return query.getResultList();
+        });
+    }
+
+    @Override
+    public QueuedSignal redrive(String id, long time) {
+        return inTransaction(em -> {
+            DeadLetterSignal deadLetter = em.find(DeadLetterSignal.class, id);
+            QueuedSignal signal = null;
+            if (deadLetter != null) {
+                signal = deadLetter.toQueuedSignal(time);
+                em.remove(deadLetter);
+                em.persist(signal);
+            }
+            return signal;
+        });
+    }
+
+    @Override
+    public void deleteDeadLetter(String id) {
+        inTransaction(em -> em.createQuery("delete from " + DEAD_LETTER_NAME + " where id=:id")
+                .setParameter("id", id).executeUpdate());
+    }
+
+    @Override
+    public void close() {
+        if (groupCommitWriter != null)
+            groupCommitWriter.close();
+    }
+
+}
@@ -0,0 +1,92 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.util.Date;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Null-aware field reads and writes used by the generated Kryo serializers
+ * for events and ids. Each value is preceded by a single byte marking
+ * whether it is null.
+ */
+public final class KryoFields {
+
+    private KryoFields() {
+        // prevent instantiation
+    }
+
+    private static boolean writeNull(Output output, Object value) {
+        output.writeBoolean(value == null);
+        return value == null;
+    }
+
+    public static void write(Output output, String value) {
+        if (!writeNull(output, value))
+            output.writeString(value);
+    }
+
+    public static String readString(Input input) {
+        return input.readBoolean() ? null : input.readString();
+    }
+
+    public static void write(Output output, Integer value) {
+        if (!writeNull(output, value))
+            output.writeVarInt(value, false);
+    }
+
+    public static Integer readInteger(Input input) {
+        return input.readBoolean() ? null : input.readVarInt(false);
+    }
+
+    public static void write(Output output, Long value) {
+        if (!writeNull(output, value))
+            output.writeVarLong(value, false);
+    }
+
+    public static Long readLong(Input input) {
+        return input.readBoolean() ? null : input.readVarLong(false);
+    }
+
+    public static void write(Output output, Double value) {
+        if (!writeNull(output, value))
+            output.writeDouble(value);
+    }
+
+    public static Double readDouble(Input input) {
+        return input.readBoolean() ? null : input.readDouble();
+    }
+
+    public static void write(Output output, Boolean value) {
+        if (!writeNull(output, value))
+            output.writeBoolean(value);
+    }
+
+    public static Boolean readBoolean(Input input) {
+        return input.readBoolean() ? null : input.readBoolean();
+    }
+
+    public static void write(Output output, Date value) {
+        if (!writeNull(output, value))
+            output.writeVarLong(value.getTime(), false);
+    }
+
+    public static Date readDate(Input input) {
+        return input.readBoolean() ? null : new Date(input.readVarLong(false));
+    }
+
+    public static void write(Output output, byte[] value) {
+        if (!writeNull(output, value)) {
+            output.writeVarInt(value.length, true);
+            output.writeBytes(value);
+        }
+    }
+
+    public static byte[] readBytes(Input input) {
+        if (input.readBoolean())
+            return null;
+        else
+            return input.readBytes(input.readVarInt(true));
+    }
+
+}
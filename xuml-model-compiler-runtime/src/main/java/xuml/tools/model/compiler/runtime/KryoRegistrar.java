@@ -0,0 +1,28 @@
+package xuml.tools.model.compiler.runtime;
+
+import com.esotericsoftware.kryo.Kryo;
+
+/**
+ * Registers classes (and their serializers) with a {@link Kryo} instance. The
+ * model compiler generates one of these per domain covering its event and id
+ * classes. Once one has been passed to {@link Util#register(KryoRegistrar)},
+ * {@link Util} requires registration for everything it serializes unless a
+ * registrar returns false from {@link #requiresRegistration()}.
+ */
+public interface KryoRegistrar {
+
+    void register(Kryo kryo);
+
+    /**
+     * Returns true if {@link #register(Kryo)} gives each class an explicit id
+     * that stays the same as the model changes, so that registration can be
+     * required and ids written instead of class names. Return false if the
+     * registrar only sets serializers ({@code Kryo.addDefaultSerializer}).
+     * 
+     * @return true by default
+     */
+    default boolean requiresRegistration() {
+        return true;
+    }
+
+}
@@ -0,0 +1,76 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the signals of one priority. Latency is the time from when a
+ * signal was due until its processing finished (committed, failed or
+ * superseded), averaged with more weight on recent signals.
+ */
+public final class LaneMetrics {
+
+    // weight of the latest latency in the moving average
+    private static final double ALPHA = 0.05;
+
+    private final int priority;
+    private final AtomicLong depth = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    // guarded by this
+    private double averageLatencyMs = -1;
+
+    LaneMetrics(int priority) {
+        this.priority = priority;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns the number of signals of this priority dispatched but not yet
+     * processed.
+     *
+     * @return
+     */
+    public long getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Returns the number of signals of this priority processed since startup.
+     *
+     * @return
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * Returns the moving average latency (0 if none processed).
+     *
+     * @param unit
+     * @return
+     */
+    public synchronized long getAverageLatency(TimeUnit unit) {
+        if (averageLatencyMs < 0)
+            return 0;
+        return unit.convert(Math.round(averageLatencyMs), TimeUnit.MILLISECONDS);
+    }
+
+    void dispatched() {
+        depth.incrementAndGet();
+    }
+
+    void processed(long latencyMs) {
+        depth.decrementAndGet();
+        processed.incrementAndGet();
+        synchronized (this) {
+            if (averageLatencyMs < 0)
+                averageLatencyMs = latencyMs;
+            else
+                averageLatencyMs += ALPHA * (latencyMs - averageLatencyMs);
+        }
+    }
+
+}
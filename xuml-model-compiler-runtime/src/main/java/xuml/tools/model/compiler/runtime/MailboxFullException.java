@@ -0,0 +1,11 @@
+package xuml.tools.model.compiler.runtime;
+
+public class MailboxFullException extends RuntimeException {
+
+    private static final long serialVersionUID = 2318569057391224471L;
+
+    public MailboxFullException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,303 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.typesafe.config.Config;
+
+import xuml.tools.model.compiler.runtime.message.Signal;
+
+/**
+ * Bounds the number of signals dispatched to each entity actor and not yet
+ * processed, and the number queued in each root actor shard. When a bound is
+ * reached a signal sent from outside of an entity is handled according to the
+ * overflow policy:
+ * 
+ * <ul>
+ * <li>{@code block}: the sender waits for room (up to the block timeout, after
+ * which the signal is spilled)</li>
+ * <li>{@code fail}: {@link MailboxFullException} is thrown before the signal is
+ * persisted</li>
+ * <li>{@code spill}: the signal is left in the {@link SignalStore} and only
+ * its id is kept in memory</li>
+ * </ul>
+ * 
+ * Signals from other sources (entities, timers, recovery) are always spilled.
+ * Spilled signals are read back from the store and dispatched in order as room
+ * becomes available. Once an entity has spilled signals later signals to it
+ * are spilled behind them so per-entity order is kept.
+ * 
+ * A blocked sender is woken when an entity actor finishes a signal but root
+ * actor shard depths are not signalled so it also polls every
+ * {@value #BLOCK_POLL_MS}ms while waiting. With both capacities 0 (no limit)
+ * signals are sent straight to the actors and nothing is tracked.
+ */
+public final class MailboxLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(MailboxLimiter.class);
+
+    private static final long BLOCK_POLL_MS = 10;
+
+    public enum Overflow {
+        BLOCK, FAIL, SPILL;
+    }
+
+    private final Signaller signaller;
+    private final SignalStore store;
+    private final SignallerMetrics metrics;
+    // 0 for no limit
+    private final int entityCapacity;
+    private final long shardCapacity;
+    private final Overflow overflow;
+    private final long blockTimeoutMs;
+    // true if neither capacity is limited
+    private final boolean unbounded;
+    // only entities with signals in flight or spilled have a mailbox
+    private final ConcurrentMap<String, Mailbox> mailboxes = new ConcurrentHashMap<String, Mailbox>();
+    private final Set<String> spilling = ConcurrentHashMap.<String> newKeySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition room = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    MailboxLimiter(Signaller signaller, SignalStore store, SignallerMetrics metrics,
+            int entityCapacity, long shardCapacity, Overflow overflow, long blockTimeoutMs) {
+        Preconditions.checkArgument(entityCapacity >= 0, "entityCapacity must be >= 0");
+        Preconditions.checkArgument(shardCapacity >= 0, "shardCapacity must be >= 0");
+        Preconditions.checkNotNull(overflow);
+        this.signaller = signaller;
+        this.store = store;
+        this.metrics = metrics;
+        this.entityCapacity = entityCapacity;
+        this.shardCapacity = shardCapacity;
+        this.overflow = overflow;
+        this.blockTimeoutMs = blockTimeoutMs;
+        this.unbounded = entityCapacity == 0 && shardCapacity == 0;
+    }
+
+    /**
+     * Creates a limiter from the {@code xuml.mailbox} settings.
+     */
+    static MailboxLimiter create(Signaller signaller, SignalStore store,
+            SignallerMetrics metrics, Config config) {
+        return new MailboxLimiter(signaller, store, metrics, config.getInt("entity-capacity"),
+                config.getLong("shard-capacity"),
+                Overflow.valueOf(config.getString("overflow").toUpperCase()),
+                config.getDuration("block-timeout", TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Throws {@link MailboxFullException} if the overflow policy is
+     * {@code fail} and the entity's mailbox or shard is full. Called before
+     * the signal is persisted.
+     * 
+     * @param entityUniqueId
+     */
+    void checkCapacity(String entityUniqueId) {
+        if (unbounded || overflow != Overflow.FAIL)
+            return;
+        Mailbox mailbox = mailboxes.get(entityUniqueId);
+        boolean full;
+        if (mailbox == null)
+            full = !shardHasRoom(entityUniqueId);
+        else
+            synchronized (mailbox) {
+                full = !mailbox.spilled.isEmpty() || !hasRoom(mailbox, entityUniqueId);
+            }
+        if (full) {
+            metrics.rejectedSignals().incrementAndGet();
+            throw new MailboxFullException("mailbox full for " + entityUniqueId);
+        }
+    }
+
+    /**
+     * Dispatches the signal if there is room otherwise applies the overflow
+     * policy if {@code external} or spills the signal. The signal must
+     * already be persisted.
+     * 
+     * @param signal
+     * @param external
+     *            true if sent by a caller outside of an entity
+     */
+    void offer(Signal<?> signal, boolean external) {
+        if (unbounded)
+            // nothing can be spilled so no need to track mailboxes
+            signaller.send(signal);
+        else if (external && overflow == Overflow.BLOCK) {
+            if (!tryOffer(signal, false))
+                block(signal);
+        } else
+            tryOffer(signal, true);
+    }
+
+    /**
+     * Returns true if dispatched. If not dispatched the signal is spilled if
+     * {@code spill}.
+     */
+    private boolean tryOffer(Signal<?> signal, boolean spill) {
+        String key = signal.getEntityUniqueId();
+        while (true) {
+            Mailbox mailbox = mailbox(key);
+            synchronized (mailbox) {
+                if (mailbox.removed)
+                    continue;
+                if (mailbox.spilled.isEmpty() && hasRoom(mailbox, key)) {
+                    dispatch(mailbox, signal);
+                    return true;
+                } else if (spill) {
+                    if (mailbox.spilled.isEmpty())
+                        spilling.add(key);
+                    mailbox.spilled.add(signal.getId());
+                    metrics.spilledSignals().incrementAndGet();
+                    return false;
+                } else {
+                    removeIfEmpty(mailbox, key);
+                    return false;
+                }
+            }
+        }
+    }
+
+    private void block(Signal<?> signal) {
+        long deadline = System.currentTimeMillis() + blockTimeoutMs;
+        waiters.incrementAndGet();
+        try {
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    log.warn("timed out waiting for room for signal {}, spilling",
+                            signal.getId());
+                    tryOffer(signal, true);
+                    return;
+                }
+                lock.lock();
+                try {
+                    // shard depth is not signalled so poll as well
+                    room.await(Math.min(remaining, BLOCK_POLL_MS), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    tryOffer(signal, true);
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+                if (tryOffer(signal, false))
+                    return;
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Records that the entity actor has finished with the signal. Called by
+     * the entity actors.
+     * 
+     * @param signal
+     */
+    public void processed(Signal<?> signal) {
+        if (unbounded)
+            return;
+        String key = signal.getEntityUniqueId();
+        Mailbox mailbox = mailboxes.get(key);
+        if (mailbox == null)
+            return;
+        synchronized (mailbox) {
+            if (mailbox.depth > 0) {
+                mailbox.depth--;
+                metrics.entityMailboxOccupancy().decrementAndGet();
+            }
+            removeIfEmpty(mailbox, key);
+        }
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                room.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Dispatches spilled signals in order while there is room. Called
+     * periodically.
+     */
+    void drain() {
+        if (unbounded)
+            return;
+        for (String key : spilling) {
+            Mailbox mailbox = mailboxes.get(key);
+            if (mailbox == null) {
+                spilling.remove(key);
+                continue;
+            }
+            synchronized (mailbox) {
+                while (!mailbox.spilled.isEmpty() && hasRoom(mailbox, key)) {
+                    String id = mailbox.spilled.poll();
+                    metrics.spilledSignals().decrementAndGet();
+                    QueuedSignal q = store.queuedSignal(id);
+                    // null if processed by recovery or replaced meanwhile
+                    if (q != null)
+                        dispatch(mailbox, signaller.toSignal(q));
+                }
+                if (mailbox.spilled.isEmpty()) {
+                    spilling.remove(key);
+                    removeIfEmpty(mailbox, key);
+                }
+            }
+        }
+    }
+
+    private void dispatch(Mailbox mailbox, Signal<?> signal) {
+        mailbox.depth++;
+        metrics.entityMailboxOccupancy().incrementAndGet();
+        signaller.send(signal);
+    }
+
+    private Mailbox mailbox(String key) {
+        Mailbox mailbox = mailboxes.get(key);
+        if (mailbox == null) {
+            mailboxes.putIfAbsent(key, new Mailbox());
+            mailbox = mailboxes.get(key);
+        }
+        return mailbox;
+    }
+
+    // call while synchronized on mailbox
+    private void removeIfEmpty(Mailbox mailbox, String key) {
+        if (mailbox.depth == 0 && mailbox.spilled.isEmpty()) {
+            mailbox.removed = true;
+            mailboxes.remove(key, mailbox);
+        }
+    }
+
+    private boolean hasRoom(Mailbox mailbox, String key) {
+        return (entityCapacity == 0 || mailbox.depth < entityCapacity) && shardHasRoom(key);
+    }
+
+    private boolean shardHasRoom(String key) {
+        return shardCapacity == 0
+                || metrics.getShardMailboxDepth(signaller.shardIndex(key)) < shardCapacity;
+    }
+
+    private static final class Mailbox {
+        // signals dispatched to the entity actor and not yet processed
+        int depth;
+        // ids of signals waiting in the store for room
+        final Deque<String> spilled = new ArrayDeque<String>();
+        // set once removed from mailboxes, a new one must be created
+        boolean removed;
+    }
+
+}
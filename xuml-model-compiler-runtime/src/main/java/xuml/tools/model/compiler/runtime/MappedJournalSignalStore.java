@@ -0,0 +1,884 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.persistence.EntityManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * {@link SignalStore} that appends signals and acknowledgements to
+ * memory-mapped segment files on local disk. An in-memory index of the
+ * pending signals (id, time and location, not content) is rebuilt by
+ * replaying the segments on startup.
+ *
+ * Each record is written as length, CRC32 and body so a torn write at the end
+ * of a segment is detected and ignored on replay. Segments are only ever
+ * deleted oldest first: a periodic compaction copies the still pending
+ * signals of the oldest segment to the current one and deletes it, which
+ * guarantees an acknowledgement is never deleted before the signal it
+ * acknowledges.
+ *
+ * Signals are removed after the processing transaction has committed (in
+ * {@link #acknowledge(Collection)}) so a crash between commit and
+ * acknowledgement means the signal is processed again.
+ *
+ * Dead letters stay in the journal (and are copied by compaction like pending
+ * signals) until they are redriven or deleted.
+ */
+public class MappedJournalSignalStore implements SignalStore {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedJournalSignalStore.class);
+
+    private static final byte ADD = 1;
+    private static final byte ACK = 2;
+    private static final byte RESCHEDULE = 3;
+    private static final byte FAIL = 4;
+    private static final byte DEAD_LETTER = 5;
+    // an ADD stored by coalesce
+    private static final byte COALESCE = 6;
+    private static final int HEADER_SIZE = 8;
+    private static final String PREFIX = "signals-";
+    private static final String SUFFIX = ".journal";
+
+    private final File directory;
+    private final int segmentSize;
+    private final boolean fsync;
+    // while true records are not forced individually (see persistAll)
+    private boolean deferForce;
+    private final double compactionThreshold;
+    private final int maxSegments;
+    private final List<Segment> segments = Lists.newArrayList();
+    private final Map<String, Location> index = Maps.newHashMap();
+    private final NavigableSet<Key> byTime = Sets.newTreeSet();
+    // dead letters are kept in the journal until redriven or deleted
+    private final Map<String, Location> deadLetters = Maps.newHashMap();
+    // pending signal ids stored by coalesce by receiver and event class
+    private final Map<String, Set<String>> coalesced = Maps.newHashMap();
+    // pending signal ids by sender, receiver and event signature (see cancel)
+    private final Map<String, Set<String>> bySignature = Maps.newHashMap();
+    private final ScheduledExecutorService compactor;
+    private Segment current;
+
+    /**
+     * Constructor.
+     *
+     * @param directory
+     *            directory holding the segment files, created if it does not
+     *            exist
+     * @param segmentSize
+     *            size in bytes of each segment file
+     * @param fsync
+     *            if true every write is forced to disk before returning
+     * @param compactionThreshold
+     *            the oldest segment is compacted once the fraction of its
+     *            signals still pending is at or below this
+     * @param maxSegments
+     *            the oldest segment is compacted regardless of the threshold
+     *            while there are more than this many segments
+     * @param compactionIntervalMs
+     *            time between compactions
+     */
+    public MappedJournalSignalStore(File directory, int segmentSize, boolean fsync,
+            double compactionThreshold, int maxSegments, long compactionIntervalMs) {
+        Preconditions.checkArgument(segmentSize > HEADER_SIZE, "segmentSize too small");
+        Preconditions.checkArgument(maxSegments > 1, "maxSegments must be > 1");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        this.compactionThreshold = compactionThreshold;
+        this.maxSegments = maxSegments;
+        if (!directory.exists() && !directory.mkdirs())
+            throw new RuntimeException("could not create directory " + directory);
+        replay();
+        this.compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "xuml-signal-journal-compactor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (RuntimeException e) {
+                    log.error(e.getMessage(), e);
+                }
+            }
+        }, compactionIntervalMs, compactionIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized String persist(QueuedSignal signal) {
+        append(signal);
+        return signal.id;
+    }
+
+    @Override
+    public synchronized String coalesce(QueuedSignal signal) {
+        Set<String> previous = coalesced
+                .get(coalesceKey(signal.toEntityUniqueId, signal.eventClassName));
+        if (previous != null)
+            acknowledge(Lists.newArrayList(previous));
+        append(signal, true);
+        return signal.id;
+    }
+
+    /**
+     * Appends the signals forcing the segment to disk once at the end rather
+     * than per record. Each record is independently valid so a crash part way
+     * through may keep some of the signals.
+     */
+    @Override
+    public synchronized void persistAll(List<QueuedSignal> signals,
+            Collection<QueuedSignal> coalescing) {
+        deferForce = true;
+        try {
+            for (QueuedSignal signal : signals) {
+                if (coalescing.contains(signal))
+                    coalesce(signal);
+                else
+                    append(signal);
+            }
+        } finally {
+            deferForce = false;
+            if (fsync && current != null)
+                current.buffer.force();
+        }
+    }
+
+    @Override
+    public synchronized QueuedSignal queuedSignal(String id) {
+        Location location = index.get(id);
+        return location == null ? null : read(location);
+    }
+
+    @Override
+    public synchronized List<QueuedSignal> queuedSignals() {
+        List<String> ids = Lists.newArrayList(index.keySet());
+        Collections.sort(ids);
+        List<QueuedSignal> list = Lists.newArrayListWithCapacity(ids.size());
+        for (String id : ids)
+            list.add(read(index.get(id)));
+        return list;
+    }
+
+    @Override
+    public synchronized List<QueuedSignal> queuedSignals(long fromTime, long toTime,
+            QueuedSignal after, int maxResults) {
+        List<QueuedSignal> list = Lists.newArrayList();
+        for (Key key : tail(fromTime, after)) {
+            if (key.time >= toTime || list.size() == maxResults)
+                break;
+            list.add(read(index.get(key.id)));
+        }
+        return list;
+    }
+
+    @Override
+    public synchronized List<QueuedSignal> repeatingSignals(long fromTime, QueuedSignal after,
+            int maxResults) {
+        List<QueuedSignal> list = Lists.newArrayList();
+        for (Key key : tail(fromTime, after)) {
+            if (list.size() == maxResults)
+                break;
+            Location location = index.get(key.id);
+            if (location.repeating)
+                list.add(read(location));
+        }
+        return list;
+    }
+
+    private NavigableSet<Key> tail(long fromTime, QueuedSignal after) {
+        if (after == null)
+            return byTime.tailSet(new Key(fromTime, ""), true);
+        else
+            return byTime.tailSet(new Key(after.time.getTime(), after.id), false);
+    }
+
+    @Override
+    public synchronized long size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized long count(long fromTime, long toTime) {
+        if (toTime <= fromTime)
+            return 0;
+        return byTime.subSet(new Key(fromTime, ""), true, new Key(toTime, ""), false).size();
+    }
+
+    @Override
+    public void delete(String id) {
+        acknowledge(Collections.singletonList(id));
+    }
+
+    @Override
+    public synchronized List<String> cancel(String fromEntityUniqueId, String toEntityUniqueId,
+            String eventSignature, long afterTime, String exceptId) {
+        List<String> ids = Lists.newArrayList();
+        Set<String> candidates = bySignature
+                .get(signatureKey(fromEntityUniqueId, toEntityUniqueId, eventSignature));
+        if (candidates != null)
+            for (String id : candidates)
+                if (!id.equals(exceptId) && index.get(id).time > afterTime)
+                    ids.add(id);
+        acknowledge(ids);
+        return ids;
+    }
+
+    @Override
+    public synchronized int remove(EntityManager em, Collection<String> ids) {
+        // nothing is removed until acknowledge is called after commit
+        int count = 0;
+        for (String id : ids)
+            if (index.containsKey(id))
+                count++;
+        return count;
+    }
+
+    @Override
+    public synchronized int reschedule(EntityManager em, String id, long time) {
+        Location location = index.get(id);
+        if (location == null)
+            return 0;
+        writeRecord(encodeReschedule(id, time));
+        applyReschedule(location, id, time);
+        return 1;
+    }
+
+    @Override
+    public synchronized void acknowledge(Collection<String> ids) {
+        for (String id : ids) {
+            Location location = index.get(id);
+            if (location != null) {
+                writeRecord(encodeAck(id));
+                applyAck(location, id);
+            }
+        }
+    }
+
+    @Override
+    public synchronized QueuedSignal failed(String id, long failureTime,
+            SignalRetryPolicy policy) {
+        Location location = index.get(id);
+        if (location == null)
+            return null;
+        QueuedSignal signal = read(location);
+        signal.failed(failureTime);
+        long retryTime = policy.retryTime(signal, failureTime);
+        writeRecord(encodeFail(id, failureTime, retryTime));
+        applyFail(location, id, failureTime, retryTime);
+        return read(location);
+    }
+
+    @Override
+    public synchronized boolean deadLetter(String id, String error) {
+        Location location = index.get(id);
+        if (location == null)
+            return false;
+        writeRecord(encodeDeadLetter(id, error));
+        applyDeadLetter(location, id, error);
+        return true;
+    }
+
+    @Override
+    public synchronized List<DeadLetterSignal> deadLetters(DeadLetterSignal after,
+            int maxResults) {
+        List<String> ids = Lists.newArrayList(deadLetters.keySet());
+        Collections.sort(ids);
+        List<DeadLetterSignal> list = Lists.newArrayList();
+        for (String id : ids) {
+            if (list.size() == maxResults)
+                break;
+            if (after == null || id.compareTo(after.id) > 0) {
+                Location location = deadLetters.get(id);
+                list.add(new DeadLetterSignal(read(location), location.error));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public synchronized QueuedSignal redrive(String id, long time) {
+        Location location = deadLetters.get(id);
+        if (location == null)
+            return null;
+        DeadLetterSignal deadLetter = new DeadLetterSignal(read(location), location.error);
+        QueuedSignal signal = deadLetter.toQueuedSignal(time);
+        // replaces the dead letter
+        append(signal);
+        return signal;
+    }
+
+    @Override
+    public synchronized void deleteDeadLetter(String id) {
+        Location location = deadLetters.get(id);
+        if (location != null) {
+            writeRecord(encodeAck(id));
+            applyAck(location, id);
+        }
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        synchronized (this) {
+            for (Segment segment : segments)
+                segment.close();
+            segments.clear();
+            index.clear();
+            byTime.clear();
+            deadLetters.clear();
+            coalesced.clear();
+            bySignature.clear();
+            current = null;
+        }
+    }
+
+    /**
+     * Copies the pending signals of the oldest segment (if it is due for
+     * compaction) to the current segment and deletes it. Repeats until the
+     * oldest segment is not due.
+     */
+    synchronized void compact() {
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            boolean due = oldest.live == 0 || oldest.live <= oldest.records * compactionThreshold
+                    || segments.size() > maxSegments;
+            if (!due)
+                return;
+            List<Location> live = Lists.newArrayList();
+            for (Location location : index.values())
+                if (location.segment == oldest)
+                    live.add(location);
+            List<String> dead = Lists.newArrayList();
+            for (Map.Entry<String, Location> entry : deadLetters.entrySet())
+                if (entry.getValue().segment == oldest)
+                    dead.add(entry.getKey());
+            for (Location location : live)
+                append(read(location), location.coalesceKey != null);
+            for (String id : dead) {
+                Location location = deadLetters.get(id);
+                append(read(location), false);
+                writeRecord(encodeDeadLetter(id, location.error));
+                applyDeadLetter(index.get(id), id, location.error);
+            }
+            segments.remove(0);
+            oldest.close();
+            if (!oldest.file.delete())
+                log.warn("could not delete {}", oldest.file);
+            log.debug("compacted {}, copied {} pending signals and {} dead letters",
+                    oldest.file, live.size(), dead.size());
+        }
+    }
+
+    private void append(QueuedSignal signal) {
+        append(signal, false);
+    }
+
+    private void append(QueuedSignal signal, boolean coalesce) {
+        int position = writeRecord(encodeAdd(signal, coalesce));
+        applyAdd(current, position, signal, coalesce);
+    }
+
+    private void applyAdd(Segment segment, int position, QueuedSignal signal,
+            boolean coalesce) {
+        String id = signal.id;
+        long time = signal.time.getTime();
+        Location previous = index.get(id);
+        if (previous != null) {
+            previous.segment.live--;
+            byTime.remove(new Key(previous.time, id));
+            unindex(previous, id);
+        }
+        // a redriven dead letter
+        Location dead = deadLetters.remove(id);
+        if (dead != null)
+            dead.segment.live--;
+        Location location = new Location(segment, position, time,
+                signal.repeatIntervalMs != null);
+        location.numFailures = signal.numFailures;
+        location.timeFirstFailure = toLong(signal.timeFirstFailure);
+        location.timeLastFailure = toLong(signal.timeLastFailure);
+        if (signal.eventSignature != null)
+            location.signatureKey = signatureKey(signal.fromEntityUniqueId,
+                    signal.toEntityUniqueId, signal.eventSignature);
+        if (coalesce)
+            location.coalesceKey = coalesceKey(signal.toEntityUniqueId, signal.eventClassName);
+        index.put(id, location);
+        byTime.add(new Key(time, id));
+        add(bySignature, location.signatureKey, id);
+        add(coalesced, location.coalesceKey, id);
+        segment.records++;
+        segment.live++;
+    }
+
+    private void applyAck(Location location, String id) {
+        if (deadLetters.get(id) == location)
+            deadLetters.remove(id);
+        else {
+            index.remove(id);
+            byTime.remove(new Key(location.time, id));
+            unindex(location, id);
+        }
+        location.segment.live--;
+    }
+
+    private void applyReschedule(Location location, String id, long time) {
+        byTime.remove(new Key(location.time, id));
+        location.time = time;
+        location.numFailures = 0;
+        location.timeFirstFailure = -1;
+        location.timeLastFailure = -1;
+        byTime.add(new Key(time, id));
+    }
+
+    private void applyFail(Location location, String id, long failureTime, long retryTime) {
+        byTime.remove(new Key(location.time, id));
+        location.time = retryTime;
+        location.numFailures++;
+        if (location.timeFirstFailure == -1)
+            location.timeFirstFailure = failureTime;
+        location.timeLastFailure = failureTime;
+        byTime.add(new Key(retryTime, id));
+    }
+
+    private void applyDeadLetter(Location location, String id, String error) {
+        index.remove(id);
+        byTime.remove(new Key(location.time, id));
+        unindex(location, id);
+        location.error = error;
+        // still live in its segment
+        deadLetters.put(id, location);
+    }
+
+    private void unindex(Location location, String id) {
+        remove(bySignature, location.signatureKey, id);
+        remove(coalesced, location.coalesceKey, id);
+    }
+
+    private static void add(Map<String, Set<String>> map, String key, String id) {
+        if (key != null) {
+            Set<String> ids = map.get(key);
+            if (ids == null) {
+                ids = Sets.newHashSet();
+                map.put(key, ids);
+            }
+            ids.add(id);
+        }
+    }
+
+    private static void remove(Map<String, Set<String>> map, String key, String id) {
+        if (key != null) {
+            Set<String> ids = map.get(key);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty())
+                    map.remove(key);
+            }
+        }
+    }
+
+    private static String signatureKey(String fromEntityUniqueId, String toEntityUniqueId,
+            String eventSignature) {
+        return fromEntityUniqueId + '\n' + toEntityUniqueId + '\n' + eventSignature;
+    }
+
+    private static String coalesceKey(String toEntityUniqueId, String eventClassName) {
+        return toEntityUniqueId + '\n' + eventClassName;
+    }
+
+    private static long toLong(Date date) {
+        return date == null ? -1 : date.getTime();
+    }
+
+    private static Date toDate(long time) {
+        return time == -1 ? null : new Date(time);
+    }
+
+    /**
+     * Writes the record to the current segment (moving to a new segment if it
+     * does not fit) and returns its position.
+     */
+    private int writeRecord(byte[] body) {
+        Preconditions.checkArgument(body.length + HEADER_SIZE < segmentSize,
+                "signal too large for journal segment");
+        if (current == null || current.remaining() < body.length + HEADER_SIZE)
+            newSegment();
+        MappedByteBuffer buffer = current.buffer;
+        int position = current.writePosition;
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        buffer.position(position + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(body);
+        // the length goes in last so a partially written record reads as the
+        // end of the segment
+        buffer.putInt(position, body.length);
+        current.writePosition = position + HEADER_SIZE + body.length;
+        if (fsync && !deferForce)
+            buffer.force();
+        return position;
+    }
+
+    private void newSegment() {
+        if (fsync && deferForce && current != null)
+            current.buffer.force();
+        long sequence = current == null ? 0 : current.sequence + 1;
+        File file = new File(directory, String.format("%s%019d%s", PREFIX, sequence, SUFFIX));
+        current = Segment.open(file, sequence, segmentSize);
+        segments.add(current);
+    }
+
+    private void replay() {
+        File[] files = directory.listFiles();
+        List<File> list = Lists.newArrayList();
+        if (files != null)
+            for (File file : files)
+                if (file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX))
+                    list.add(file);
+        // zero padded sequence numbers sort lexically
+        Collections.sort(list);
+        for (File file : list) {
+            long sequence = Long.parseLong(file.getName().substring(PREFIX.length(),
+                    file.getName().length() - SUFFIX.length()));
+            Segment segment = Segment.open(file, sequence, (int) file.length());
+            segments.add(segment);
+            current = segment;
+            replay(segment);
+        }
+        log.info("replayed {} segments with {} pending signals from {}", list.size(),
+                index.size(), directory);
+        // always start writing to a fresh segment
+        if (current != null)
+            newSegment();
+    }
+
+    private void replay(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity())
+                break;
+            byte[] body = new byte[length];
+            buffer.position(position + HEADER_SIZE);
+            buffer.get(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                log.warn("ignoring corrupt record at {} in {}", position, segment.file);
+                break;
+            }
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = in.readByte();
+                String id = in.readUTF();
+                if (type == ADD || type == COALESCE) {
+                    applyAdd(segment, position, decodeAdd(id, in), type == COALESCE);
+                } else if (type == ACK) {
+                    Location location = index.get(id);
+                    if (location == null)
+                        location = deadLetters.get(id);
+                    if (location != null)
+                        applyAck(location, id);
+                } else if (type == RESCHEDULE) {
+                    long time = in.readLong();
+                    Location location = index.get(id);
+                    if (location != null)
+                        applyReschedule(location, id, time);
+                } else if (type == FAIL) {
+                    long failureTime = in.readLong();
+                    long retryTime = in.readLong();
+                    Location location = index.get(id);
+                    if (location != null)
+                        applyFail(location, id, failureTime, retryTime);
+                } else if (type == DEAD_LETTER) {
+                    String error = in.readBoolean() ? in.readUTF() : null;
+                    Location location = index.get(id);
+                    if (location != null)
+                        applyDeadLetter(location, id, error);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            position += HEADER_SIZE + length;
+        }
+        segment.writePosition = position;
+    }
+
+    private QueuedSignal read(Location location) {
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        int length = buffer.getInt(location.position);
+        byte[] body = new byte[length];
+        buffer.position(location.position + HEADER_SIZE);
+        buffer.get(body);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            in.readByte();
+            QueuedSignal signal = decodeAdd(in.readUTF(), in);
+            // may have been rescheduled or failed since it was written
+            signal.time = new Date(location.time);
+            signal.numFailures = location.numFailures;
+            signal.timeFirstFailure = toDate(location.timeFirstFailure);
+            signal.timeLastFailure = toDate(location.timeLastFailure);
+            return signal;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] encodeAdd(QueuedSignal signal, boolean coalesce) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    256 + signal.eventContent.length + signal.idContent.length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(coalesce ? COALESCE : ADD);
+            out.writeUTF(signal.id);
+            out.writeUTF(signal.entityClassName);
+            out.writeUTF(signal.eventClassName);
+            out.writeUTF(signal.idClassName);
+            out.writeInt(signal.idContent.length);
+            out.write(signal.idContent);
+            out.writeInt(signal.eventContent.length);
+            out.write(signal.eventContent);
+            out.writeLong(signal.time.getTime());
+            out.writeLong(signal.repeatIntervalMs == null ? -1 : signal.repeatIntervalMs);
+            out.writeBoolean(signal.fromEntityUniqueId != null);
+            if (signal.fromEntityUniqueId != null)
+                out.writeUTF(signal.fromEntityUniqueId);
+            out.writeUTF(signal.toEntityUniqueId);
+            out.writeInt(signal.priority);
+            out.writeInt(signal.numFailures);
+            out.writeLong(toLong(signal.timeFirstFailure));
+            out.writeLong(toLong(signal.timeLastFailure));
+            out.writeBoolean(signal.eventSignature != null);
+            if (signal.eventSignature != null)
+                out.writeUTF(signal.eventSignature);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static QueuedSignal decodeAdd(String id, DataInputStream in) throws IOException {
+        QueuedSignal signal = new QueuedSignal();
+        signal.id = id;
+        signal.entityClassName = in.readUTF();
+        signal.eventClassName = in.readUTF();
+        signal.idClassName = in.readUTF();
+        signal.idContent = new byte[in.readInt()];
+        in.readFully(signal.idContent);
+        signal.eventContent = new byte[in.readInt()];
+        in.readFully(signal.eventContent);
+        signal.time = new Date(in.readLong());
+        long repeatIntervalMs = in.readLong();
+        signal.repeatIntervalMs = repeatIntervalMs == -1 ? null : repeatIntervalMs;
+        if (in.readBoolean())
+            signal.fromEntityUniqueId = in.readUTF();
+        signal.toEntityUniqueId = in.readUTF();
+        // absent in records written before priorities were added
+        if (in.available() >= 4)
+            signal.priority = in.readInt();
+        // absent in records written before failures were recorded
+        if (in.available() >= 20) {
+            signal.numFailures = in.readInt();
+            signal.timeFirstFailure = toDate(in.readLong());
+            signal.timeLastFailure = toDate(in.readLong());
+        }
+        // absent in records written before event signatures were stored
+        if (in.available() > 0 && in.readBoolean())
+            signal.eventSignature = in.readUTF();
+        return signal;
+    }
+
+    private static byte[] encodeAck(String id) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(ACK);
+            out.writeUTF(id);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] encodeReschedule(String id, long time) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(RESCHEDULE);
+            out.writeUTF(id);
+            out.writeLong(time);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] encodeFail(String id, long failureTime, long retryTime) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FAIL);
+            out.writeUTF(id);
+            out.writeLong(failureTime);
+            out.writeLong(retryTime);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] encodeDeadLetter(String id, String error) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(DEAD_LETTER);
+            out.writeUTF(id);
+            out.writeBoolean(error != null);
+            if (error != null)
+                out.writeUTF(error.length() > 4000 ? error.substring(0, 4000) : error);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final long sequence;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        int writePosition;
+        // number of signals written to this segment
+        int records;
+        // number of signals in this segment still pending
+        int live;
+
+        private Segment(File file, long sequence, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.file = file;
+            this.sequence = sequence;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        static Segment open(File file, long sequence, int size) {
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+                return new Segment(file, sequence, raf, buffer);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+
+        void close() {
+            try {
+                buffer.force();
+                FileChannel channel = raf.getChannel();
+                channel.close();
+                raf.close();
+            } catch (IOException e) {
+                log.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final int position;
+        long time;
+        final boolean repeating;
+        // receiver and event class if stored by coalesce
+        String coalesceKey;
+        // sender, receiver and event signature, null if no event signature
+        String signatureKey;
+        int numFailures;
+        // -1 if none
+        long timeFirstFailure = -1;
+        long timeLastFailure = -1;
+        // set once dead lettered
+        String error;
+
+        Location(Segment segment, int position, long time, boolean repeating) {
+            this.segment = segment;
+            this.position = position;
+            this.time = time;
+            this.repeating = repeating;
+        }
+    }
+
+    private static final class Key implements Comparable<Key> {
+        final long time;
+        final String id;
+
+        Key(long time, String id) {
+            this.time = time;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            if (time != o.time)
+                return time < o.time ? -1 : 1;
+            return id.compareTo(o.id);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return time == other.time && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(time) + id.hashCode();
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+package xuml.tools.model.compiler.runtime;
+
+/**
+ * A generated event that knows its position in the list of events of its
+ * entity class. Generated entities use it to look up the transition for an
+ * event in a table rather than testing the event type and current state one
+ * transition at a time.
+ */
+public interface OrdinalEvent<T> extends Event<T> {
+
+    /**
+     * Returns the position of this event in the events of its entity class.
+     * 
+     * @return
+     */
+    int ordinal();
+
+}
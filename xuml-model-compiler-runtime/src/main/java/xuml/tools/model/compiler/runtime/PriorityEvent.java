@@ -0,0 +1,17 @@
+package xuml.tools.model.compiler.runtime;
+
+/**
+ * An event whose signals are processed ahead of lower priority signals to
+ * other entities. Events that don't implement this have priority 0. An entity
+ * always processes its own signals in the order sent whatever their priority.
+ */
+public interface PriorityEvent<T> extends Event<T> {
+
+    /**
+     * Returns the priority, higher is processed sooner.
+     * 
+     * @return
+     */
+    int priority();
+
+}
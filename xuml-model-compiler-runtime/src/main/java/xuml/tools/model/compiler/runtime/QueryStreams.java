@@ -0,0 +1,71 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+import javax.persistence.TypedQuery;
+
+import com.google.common.base.Optional;
+
+/**
+ * Streams query results for the generated {@code streamBy} finders.
+ */
+public final class QueryStreams {
+
+    // the getResultStream method of each query class, absent if it has none
+    private static final ConcurrentMap<Class<?>, Optional<Method>> methods = new ConcurrentHashMap<Class<?>, Optional<Method>>();
+
+    private QueryStreams() {
+        // prevent instantiation
+    }
+
+    /**
+     * Returns the results of the query as a stream. If the JPA provider
+     * implements JPA 2.2 {@code getResultStream} (for example Hibernate 5.3+
+     * which scrolls a cursor) then that is used, otherwise the result list is
+     * read and streamed. The stream must be consumed while the query's
+     * EntityManager is open and should be closed when done.
+     *
+     * @param query
+     * @return stream of results
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Stream<T> stream(TypedQuery<T> query) {
+        Optional<Method> method = methods.get(query.getClass());
+        if (method == null) {
+            method = findResultStreamMethod(query.getClass());
+            methods.put(query.getClass(), method);
+        }
+        if (!method.isPresent())
+            return query.getResultList().stream();
+        try {
+            return (Stream<T>) method.get().invoke(query);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            else
+                throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static Optional<Method> findResultStreamMethod(Class<?> cls) {
+        try {
+            Method method = cls.getMethod("getResultStream");
+            if (!Stream.class.isAssignableFrom(method.getReturnType()))
+                return Optional.absent();
+            method.setAccessible(true);
+            return Optional.of(method);
+        } catch (NoSuchMethodException e) {
+            return Optional.absent();
+        } catch (RuntimeException e) {
+            // for example not accessible under the module system
+            return Optional.absent();
+        }
+    }
+
+}
@@ -6,6 +6,7 @@ import java.util.Date;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Lob;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
@@ -15,7 +16,10 @@ import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 
 @Entity
-@Table(name = "xuml_queued_signal")
+@Table(name = "xuml_queued_signal", indexes = {
+        @Index(name = "idx_xuml_queued_signal_time", columnList = "time"),
+        @Index(name = "idx_xuml_queued_signal_to_entity", columnList = "to_entity_unique_id,event_class_name"),
+        @Index(name = "idx_xuml_queued_signal_signature", columnList = "to_entity_unique_id,event_signature") })
 public class QueuedSignal {
 
     public QueuedSignal() {
@@ -25,6 +29,13 @@ public class QueuedSignal {
     public QueuedSignal(String idClassName, byte[] idContent, String entityClassName,
             String eventClassName, byte[] eventContent, long time, Optional<Long> repeatIntervalMs,
             String fromEntityUniqueId, String toEntityUniqueId) {
+        this(idClassName, idContent, entityClassName, eventClassName, eventContent, time,
+                repeatIntervalMs, fromEntityUniqueId, toEntityUniqueId, 0);
+    }
+
+    public QueuedSignal(String idClassName, byte[] idContent, String entityClassName,
+            String eventClassName, byte[] eventContent, long time, Optional<Long> repeatIntervalMs,
+            String fromEntityUniqueId, String toEntityUniqueId, int priority) {
         this.toEntityUniqueId = toEntityUniqueId;
         Preconditions.checkNotNull(repeatIntervalMs);
         this.idContent = idContent;
@@ -35,14 +46,13 @@ public class QueuedSignal {
         this.fromEntityUniqueId = fromEntityUniqueId;
         this.time = new Date(time);
         this.repeatIntervalMs = repeatIntervalMs.orNull();
+        this.priority = priority;
         this.id = ArbitraryId.next();
     }
 
-    // TODO add new fields, numFailures, timeFirstFailure, timeLastFailure
-
     @Id
     // @GeneratedValue(strategy = GenerationType.AUTO)
-    @Column(name = "signal_id")
+    @Column(name = "signal_id", length = 32)
     public String id;
 
     @Column(name = "entity_class_name", nullable = false)
@@ -74,6 +84,43 @@ public class QueuedSignal {
     @Column(name = "to_entity_unique_id", nullable = false)
     public String toEntityUniqueId;
 
+    // Event.signatureKey() of the event, used to cancel or replace a delayed
+    // signal (null in rows written before it was added)
+    @Column(name = "event_signature", nullable = true)
+    public String eventSignature;
+
+    // higher runs its entity actor sooner relative to other actors, signals
+    // to the same entity are still processed in the order sent. The column
+    // default lets schema update add the column to a table holding rows.
+    @Column(name = "priority", nullable = false, columnDefinition = "integer default 0 not null")
+    public int priority;
+
+    // number of failed attempts to process the signal since it was sent or
+    // last processed (repeating signals)
+    @Column(name = "num_failures", nullable = false,
+            columnDefinition = "integer default 0 not null")
+    public int numFailures;
+
+    @Column(name = "time_first_failure", nullable = true)
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date timeFirstFailure;
+
+    @Column(name = "time_last_failure", nullable = true)
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date timeLastFailure;
+
+    /**
+     * Records a failed attempt to process the signal at the given time.
+     * 
+     * @param failureTime
+     */
+    public void failed(long failureTime) {
+        numFailures++;
+        if (timeFirstFailure == null)
+            timeFirstFailure = new Date(failureTime);
+        timeLastFailure = new Date(failureTime);
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -95,6 +142,16 @@ public class QueuedSignal {
         builder.append(repeatIntervalMs);
         builder.append(", fromEntityUniqueId=");
         builder.append(fromEntityUniqueId);
+        builder.append(", eventSignature=");
+        builder.append(eventSignature);
+        builder.append(", priority=");
+        builder.append(priority);
+        builder.append(", numFailures=");
+        builder.append(numFailures);
+        builder.append(", timeFirstFailure=");
+        builder.append(timeFirstFailure);
+        builder.append(", timeLastFailure=");
+        builder.append(timeLastFailure);
         builder.append("]");
         return builder.toString();
     }
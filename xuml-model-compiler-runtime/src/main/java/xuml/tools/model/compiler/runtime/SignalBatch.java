@@ -0,0 +1,150 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import scala.concurrent.duration.Duration;
+import xuml.tools.model.compiler.runtime.message.Signal;
+
+/**
+ * Signals sent from outside any entity that are stored in one transaction and
+ * dispatched once it has committed. Signalling entities one at a time costs a
+ * blocking commit per signal, a batch costs one commit that the caller can
+ * wait for or not.
+ * 
+ * Obtain a batch from {@link Signaller#signalBatch()}, add signals then call
+ * {@link #submit()}. A batch is not thread safe and can be submitted once.
+ */
+public final class SignalBatch {
+
+    private final Signaller signaller;
+    private final List<QueuedSignal> queued = Lists.newArrayList();
+    private final Set<QueuedSignal> coalescing = Sets.newIdentityHashSet();
+    private final List<Signal<?>> signals = Lists.newArrayList();
+    // the latest coalescing signal in the batch for each entity and event
+    private final Map<String, QueuedSignal> latest = Maps.newHashMap();
+    private boolean submitted;
+
+    SignalBatch(Signaller signaller) {
+        this.signaller = signaller;
+    }
+
+    /**
+     * Adds a signal to be sent as soon as the batch is stored.
+     * 
+     * @param entity
+     * @param event
+     * @return this
+     */
+    public <T extends Entity<T>> SignalBatch signal(Entity<T> entity, Event<T> event) {
+        return signal(entity, event, Duration.Zero());
+    }
+
+    /**
+     * Adds a signal to be sent after the given delay.
+     * 
+     * @param entity
+     * @param event
+     * @param delay
+     * @return this
+     */
+    public <T extends Entity<T>> SignalBatch signal(Entity<T> entity, Event<T> event,
+            Duration delay) {
+        Preconditions.checkState(!submitted, "batch already submitted");
+        Preconditions.checkNotNull(entity);
+        Preconditions.checkNotNull(event);
+        long time = System.currentTimeMillis() + Math.max(0, delay.toMillis());
+        @SuppressWarnings("unchecked")
+        Class<T> cls = (Class<T>) entity.getClass();
+        QueuedSignal q = Signaller.toQueuedSignal(null, entity.getId(), cls, event, time,
+                Optional.<Long> absent(), entity.uniqueId());
+        @SuppressWarnings("unchecked")
+        Signal<T> signal = new Signal<T>(null, (Class<Entity<T>>) entity.getClass(), event, q.id,
+                time, entity.getId(), entity.uniqueId());
+        if (Signaller.coalesces(event, q)) {
+            // an earlier signal in this batch that would be replaced is
+            // dropped rather than stored and dispatched
+            QueuedSignal previous = latest.put(q.toEntityUniqueId + ':' + q.eventClassName, q);
+            if (previous != null)
+                remove(previous);
+            coalescing.add(q);
+        }
+        queued.add(q);
+        signals.add(signal);
+        return this;
+    }
+
+    private void remove(QueuedSignal signal) {
+        Iterator<Signal<?>> it = signals.iterator();
+        for (Iterator<QueuedSignal> qit = queued.iterator(); qit.hasNext();) {
+            it.next();
+            if (qit.next() == signal) {
+                qit.remove();
+                it.remove();
+                coalescing.remove(signal);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of signals in the batch.
+     * 
+     * @return
+     */
+    public int size() {
+        return queued.size();
+    }
+
+    /**
+     * Stores the signals in one transaction and dispatches them once it has
+     * committed. Returns without waiting for the transaction.
+     * 
+     * @return future that completes with the ids of the stored signals once
+     *         they are durable or with the exception that rolled back the
+     *         transaction
+     */
+    public CompletableFuture<List<String>> submit() {
+        Preconditions.checkState(!submitted, "batch already submitted");
+        submitted = true;
+        if (queued.isEmpty())
+            return CompletableFuture.completedFuture(Lists.<String> newArrayList());
+        return signaller.submit(queued, coalescing, signals);
+    }
+
+    /**
+     * Submits the batch and waits until the signals are durable.
+     * 
+     * @param timeout
+     * @param unit
+     * @return the ids of the stored signals
+     */
+    public List<String> submitAndWait(long timeout, TimeUnit unit) {
+        try {
+            return submit().get(timeout, unit);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            else
+                throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (TimeoutException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
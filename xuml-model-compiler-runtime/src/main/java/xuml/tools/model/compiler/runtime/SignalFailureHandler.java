@@ -0,0 +1,48 @@
+package xuml.tools.model.compiler.runtime;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+
+import xuml.tools.model.compiler.runtime.message.Signal;
+
+/**
+ * Called by an entity actor when the transaction processing a signal has been
+ * rolled back. The failure is recorded against the stored signal which is
+ * then retried according to the {@link SignalRetryPolicy} or, once the policy
+ * is exhausted, moved to the dead letters so that it is not attempted again
+ * (including after a restart) until redriven.
+ */
+public final class SignalFailureHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(SignalFailureHandler.class);
+
+    private final Signaller signaller;
+    private final SignalStore store;
+    private final SignalRetryPolicy policy;
+
+    SignalFailureHandler(Signaller signaller, SignalStore store, SignalRetryPolicy policy) {
+        this.signaller = signaller;
+        this.store = store;
+        this.policy = policy;
+    }
+
+    public void failed(Signal<?> signal, Exception e) {
+        QueuedSignal q = store.failed(signal.getId(), System.currentTimeMillis(), policy);
+        if (q == null) {
+            // no longer stored, nothing to retry
+            return;
+        }
+        if (policy.isExhausted(q)) {
+            log.warn("moving signal {} to dead letters after {} failures: {}", q.id,
+                    q.numFailures, e.getMessage());
+            if (store.deadLetter(q.id, Throwables.getStackTraceAsString(e)))
+                signaller.unschedule(q.id);
+        } else if (q.repeatIntervalMs == null) {
+            log.info("retrying signal {} at {} after {} failures", q.id, q.time, q.numFailures);
+            signaller.retry(signaller.toSignal(q));
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.typesafe.config.Config;
+
+/**
+ * When a failed signal is next attempted and when it is given up on. The
+ * delay before the n-th retry is {@code initialDelay * multiplier^(n-1)}
+ * capped at {@code maxDelay}. A repeating signal is not retried early, its
+ * next repeat is the retry.
+ */
+public final class SignalRetryPolicy {
+
+    private final int maxAttempts;
+    private final long initialDelayMs;
+    private final double multiplier;
+    private final long maxDelayMs;
+
+    /**
+     * Constructor.
+     *
+     * @param maxAttempts
+     *            number of failed attempts after which the signal is dead
+     *            lettered
+     * @param initialDelayMs
+     * @param multiplier
+     * @param maxDelayMs
+     */
+    public SignalRetryPolicy(int maxAttempts, long initialDelayMs, double multiplier,
+            long maxDelayMs) {
+        Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be > 0");
+        Preconditions.checkArgument(initialDelayMs >= 0, "initialDelayMs must be >= 0");
+        Preconditions.checkArgument(multiplier >= 1, "multiplier must be >= 1");
+        Preconditions.checkArgument(maxDelayMs >= initialDelayMs,
+                "maxDelayMs must be >= initialDelayMs");
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMs = initialDelayMs;
+        this.multiplier = multiplier;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Creates a policy from the {@code xuml.signal.retry} settings.
+     *
+     * @param config
+     * @return policy
+     */
+    static SignalRetryPolicy create(Config config) {
+        return new SignalRetryPolicy(config.getInt("max-attempts"),
+                config.getDuration("initial-delay", TimeUnit.MILLISECONDS),
+                config.getDouble("multiplier"),
+                config.getDuration("max-delay", TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Returns the delay before the next attempt of a signal that has failed
+     * {@code numFailures} times.
+     *
+     * @param numFailures
+     * @return delay in ms
+     */
+    public long delayMs(int numFailures) {
+        double delay = initialDelayMs * Math.pow(multiplier, Math.max(0, numFailures - 1));
+        return (long) Math.min(delay, maxDelayMs);
+    }
+
+    /**
+     * Returns the time the signal should next be attempted given that its
+     * failure at {@code failureTime} has been recorded.
+     *
+     * @param signal
+     * @param failureTime
+     * @return
+     */
+    public long retryTime(QueuedSignal signal, long failureTime) {
+        if (signal.repeatIntervalMs != null)
+            return signal.time.getTime();
+        else
+            return failureTime + delayMs(signal.numFailures);
+    }
+
+    public boolean isExhausted(QueuedSignal signal) {
+        return signal.numFailures >= maxAttempts;
+    }
+
+}
@@ -0,0 +1,212 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Durable store for signals that have been sent but not yet processed. A
+ * signal is added before it is dispatched and removed once the transaction
+ * processing it has committed, so signals in the store survive a restart.
+ *
+ * The methods taking an {@link EntityManager} are called inside the
+ * transaction that processes the signal. A store backed by the same database
+ * makes its change there so that it commits atomically with the entity
+ * change. Other stores make their change in
+ * {@link #acknowledge(Collection)}, which is called after commit, and so give
+ * at-least-once processing across a crash.
+ */
+public interface SignalStore {
+
+    /**
+     * Durably stores the signal and returns its id.
+     *
+     * @param signal
+     * @return signal id
+     */
+    String persist(QueuedSignal signal);
+
+    /**
+     * Durably stores the signal in place of the stored non-repeating signals
+     * to the same entity with the same event class, whenever they are due.
+     * Used for signals carrying a {@link CoalescibleEvent}. A replaced signal
+     * that an entity actor is already processing may still be processed, but
+     * this signal is always processed after it.
+     *
+     * @param signal
+     * @return signal id
+     */
+    String coalesce(QueuedSignal signal);
+
+    /**
+     * Durably stores the signals together, in one transaction where the store
+     * supports it. Each signal in {@code coalescing} replaces earlier signals
+     * as for {@link #coalesce(QueuedSignal)}, the rest are stored as for
+     * {@link #persist(QueuedSignal)}.
+     *
+     * @param signals
+     * @param coalescing
+     *            the subset of {@code signals} to be coalesced
+     */
+    void persistAll(List<QueuedSignal> signals, Collection<QueuedSignal> coalescing);
+
+    /**
+     * Returns the stored signal with the given id or null if not stored.
+     *
+     * @param id
+     * @return
+     */
+    QueuedSignal queuedSignal(String id);
+
+    /**
+     * Returns all stored signals ordered by id.
+     *
+     * @return
+     */
+    List<QueuedSignal> queuedSignals();
+
+    /**
+     * Returns stored signals with {@code fromTime <= time < toTime} ordered
+     * by time then id, starting after {@code after} (if not null).
+     *
+     * @param fromTime
+     * @param toTime
+     * @param after
+     * @param maxResults
+     * @return
+     */
+    List<QueuedSignal> queuedSignals(long fromTime, long toTime, QueuedSignal after,
+            int maxResults);
+
+    /**
+     * Returns stored repeating signals with {@code time >= fromTime} ordered
+     * by time then id, starting after {@code after} (if not null).
+     *
+     * @param fromTime
+     * @param after
+     * @param maxResults
+     * @return
+     */
+    List<QueuedSignal> repeatingSignals(long fromTime, QueuedSignal after, int maxResults);
+
+    long size();
+
+    /**
+     * Returns the number of stored signals with
+     * {@code fromTime <= time < toTime}.
+     *
+     * @param fromTime
+     * @param toTime
+     * @return
+     */
+    long count(long fromTime, long toTime);
+
+    /**
+     * Removes the signal outside of any entity transaction (for example
+     * because it has been cancelled).
+     *
+     * @param id
+     */
+    void delete(String id);
+
+    /**
+     * Removes the stored signals from one entity to another with the given
+     * event signature that are due after {@code afterTime}, other than the
+     * signal with id {@code exceptId} (which may be null). Used to cancel or
+     * replace delayed signals including those due beyond the timer horizon
+     * that are not held in memory.
+     *
+     * @param fromEntityUniqueId
+     *            may be null
+     * @param toEntityUniqueId
+     * @param eventSignature
+     * @param afterTime
+     * @param exceptId
+     * @return ids of the removed signals
+     */
+    List<String> cancel(String fromEntityUniqueId, String toEntityUniqueId,
+            String eventSignature, long afterTime, String exceptId);
+
+    /**
+     * Called in the transaction processing the signals. Returns the number of
+     * signals found, less than {@code ids.size()} means some had already been
+     * removed.
+     *
+     * @param em
+     * @param ids
+     * @return
+     */
+    int remove(EntityManager em, Collection<String> ids);
+
+    /**
+     * Called in the transaction processing a repeating signal to move it to
+     * its next due time and clear its failures. Returns 0 if the signal is no
+     * longer stored.
+     *
+     * @param em
+     * @param id
+     * @param time
+     * @return
+     */
+    int reschedule(EntityManager em, String id, long time);
+
+    /**
+     * Called after the transaction that processed the signals has committed.
+     *
+     * @param ids
+     *            signals removed by the transaction
+     */
+    void acknowledge(Collection<String> ids);
+
+    /**
+     * Records a failed attempt to process the signal (outside of the rolled
+     * back transaction) and moves it to the retry time given by the policy.
+     * Returns the updated signal or null if it is no longer stored (for
+     * example because the failure happened after the processing transaction
+     * committed).
+     *
+     * @param id
+     * @param failureTime
+     * @param policy
+     * @return
+     */
+    QueuedSignal failed(String id, long failureTime, SignalRetryPolicy policy);
+
+    /**
+     * Moves the stored signal to the dead letters. Returns false if the
+     * signal is no longer stored.
+     *
+     * @param id
+     * @param error
+     *            description of the last failure
+     * @return
+     */
+    boolean deadLetter(String id, String error);
+
+    /**
+     * Returns dead letters ordered by id starting after {@code after} (if not
+     * null).
+     *
+     * @param after
+     * @param maxResults
+     * @return
+     */
+    List<DeadLetterSignal> deadLetters(DeadLetterSignal after, int maxResults);
+
+    /**
+     * Moves the dead letter back to the stored signals, due at {@code time}
+     * with its failures cleared, and returns it. Returns null if there is no
+     * such dead letter.
+     *
+     * @param id
+     * @param time
+     * @return
+     */
+    QueuedSignal redrive(String id, long time);
+
+    void deleteDeadLetter(String id);
+
+    void close();
+
+}
@@ -1,9 +1,17 @@
 package xuml.tools.model.compiler.runtime;
 
+import java.io.File;
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
@@ -14,19 +22,21 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.RateLimiter;
+import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
-import akka.actor.Cancellable;
 import akka.actor.Props;
 import akka.actor.Terminated;
-import scala.concurrent.ExecutionContext;
 import scala.concurrent.Future;
 import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
 import xuml.tools.model.compiler.runtime.actor.RootActor;
+import xuml.tools.model.compiler.runtime.actor.SignalPriorityMailbox;
 import xuml.tools.model.compiler.runtime.message.ActorConfig;
 import xuml.tools.model.compiler.runtime.message.Signal;
 
@@ -34,25 +44,183 @@ public class Signaller {
 
     private static final Logger log = LoggerFactory.getLogger(Signaller.class);
 
-    private final ThreadLocal<Info> info = new ThreadLocal<Info>() {
-        @Override
-        protected Info initialValue() {
-            return new Info();
-        }
-    };
-    private final ActorSystem actorSystem = ActorSystem.create("xuml-tools",
-            ConfigFactory.load("xuml-akka").withFallback(ConfigFactory.load()));
-    private final ActorRef root = actorSystem.actorOf(Props.create(RootActor.class), "root");
+    // how long close and stop wait for createAsync and SignalBatch
+    // transactions already submitted
+    private static final long TRANSACTION_SHUTDOWN_TIMEOUT_MS = 30000;
+
+    // set only while the thread is processing an entity event so that
+    // threads (including short-lived virtual threads) that just send
+    // signals don't allocate or retain an Info
+    private final ThreadLocal<Info> info = new ThreadLocal<Info>();
+    private final ActorSystem actorSystem;
+    // each entity is always routed through the same root actor shard so
+    // signals to it are delivered in order
+    private final ActorRef[] shards;
+    private final SignallerMetrics metrics;
     private final EntityManagerFactory emf;
+    private final SignalStore store;
+    private final DelayedSignalScheduler timers;
+    private final int recoveryPageSize;
+    // null if recovery is not rate limited
+    private final RateLimiter recoveryRateLimiter;
+    private final ConcurrencyGovernor governor;
+    private final MailboxLimiter limiter;
+    // runs createAsync and SignalBatch transactions off the entity dispatcher
+    // so that blocking on connections and governor permits doesn't starve
+    // entity actors
+    private final ExecutorService transactionExecutor;
+    private final int createChunkSize;
+    private final int createFlushSize;
+    private final boolean checkThreadConfinement;
+    // guarded by this
+    private boolean released;
 
     public Signaller(EntityManagerFactory emf, int entityActorPoolSize,
             SignalProcessorListenerFactory listenerFactory) {
+        this(emf, entityActorPoolSize, listenerFactory, ConfigFactory.empty());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param emf
+     * @param entityActorPoolSize
+     * @param listenerFactory
+     * @param config
+     *            overrides for the settings in xuml-akka.conf (both the akka
+     *            and xuml sections)
+     */
+    public Signaller(EntityManagerFactory emf, int entityActorPoolSize,
+            SignalProcessorListenerFactory listenerFactory, Config config) {
+        Preconditions.checkArgument(entityActorPoolSize > 0, "entityActorPoolSize must be > 0");
         this.emf = emf;
+        Config defaults = ConfigFactory.load("xuml-akka").withFallback(ConfigFactory.load());
+        // entity actors run on as many threads as there are connections
+        Map<String, Object> dispatcher = Maps.newHashMap();
+        dispatcher.put("akka.entity-dispatcher.pool-size", entityActorPoolSize);
+        if (config.withFallback(defaults).getBoolean("xuml.entity.virtual-threads"))
+            dispatcher.put("akka.entity-dispatcher.executor",
+                    VirtualThreadExecutorServiceConfigurator.class.getName());
+        this.actorSystem = ActorSystem.create("xuml-tools",
+                config.withFallback(ConfigFactory.parseMap(dispatcher)).withFallback(defaults));
         log.debug("Akka system settings:\n{}", actorSystem.settings());
-        root.tell(new ActorConfig(entityActorPoolSize), root);
-        root.tell(emf, root);
-        if (listenerFactory != null)
-            root.tell(listenerFactory, root);
+        Config settings = actorSystem.settings().config().getConfig("xuml");
+        int numShards = settings.getInt("root.shards");
+        if (numShards <= 0)
+            numShards = Runtime.getRuntime().availableProcessors();
+        governor = ConcurrencyGovernor.create(entityActorPoolSize,
+                settings.getConfig("entity.concurrency"));
+        this.metrics = new SignallerMetrics(numShards, governor);
+        this.shards = new ActorRef[numShards];
+        for (int i = 0; i < numShards; i++)
+            shards[i] = actorSystem.actorOf(Props.create(RootActor.class, metrics.shardDepth(i))
+                    .withMailbox(SignalPriorityMailbox.CONFIG_PATH), "root-" + i);
+        ArbitraryId.configure(settings.getConfig("signal.id"));
+        this.store = createSignalStore(emf, settings.getConfig("signal"));
+        timers = new DelayedSignalScheduler(this, store, settings.getConfig("timer"), metrics);
+        recoveryPageSize = settings.getInt("recovery.page-size");
+        double recoveryMaxRate = settings.getDouble("recovery.max-rate");
+        if (recoveryMaxRate > 0)
+            recoveryRateLimiter = RateLimiter.create(recoveryMaxRate);
+        else
+            recoveryRateLimiter = null;
+        transactionExecutor = createTransactionExecutor(entityActorPoolSize);
+        createChunkSize = settings.getInt("create.chunk-size");
+        createFlushSize = settings.getInt("create.flush-size");
+        checkThreadConfinement = settings.getBoolean("entity.check-thread-confinement");
+        Preconditions.checkArgument(createChunkSize > 0, "xuml.create.chunk-size must be > 0");
+        Preconditions.checkArgument(createFlushSize > 0, "xuml.create.flush-size must be > 0");
+        SignalFailureHandler failureHandler = new SignalFailureHandler(this, store,
+                SignalRetryPolicy.create(settings.getConfig("signal.retry")));
+        limiter = MailboxLimiter.create(this, store, metrics, settings.getConfig("mailbox"));
+        for (ActorRef shard : shards) {
+            shard.tell(new ActorConfig(entityActorPoolSize, governor, metrics, failureHandler,
+                    limiter), shard);
+            shard.tell(emf, shard);
+            shard.tell(store, shard);
+            if (listenerFactory != null)
+                shard.tell(listenerFactory, shard);
+        }
+    }
+
+    private static ExecutorService createTransactionExecutor(int poolSize) {
+        // one thread per connection, more would only wait on the pool
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "xuml-transaction-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private static SignalStore createSignalStore(EntityManagerFactory emf, Config config) {
+        String type = config.getString("store");
+        if ("jpa".equals(type)) {
+            if (config.getBoolean("group-commit.enabled"))
+                return new JpaSignalStore(emf, config.getInt("group-commit.max-batch-size"),
+                        config.getInt("group-commit.flush-size"));
+            else
+                return new JpaSignalStore(emf);
+        } else if ("journal".equals(type)) {
+            Config c = config.getConfig("journal");
+            return new MappedJournalSignalStore(new File(c.getString("directory")),
+                    (int) (long) c.getBytes("segment-size"), c.getBoolean("fsync"),
+                    c.getDouble("compaction-threshold"), c.getInt("max-segments"),
+                    c.getDuration("compaction-interval", TimeUnit.MILLISECONDS));
+        } else {
+            // class name of a custom store
+            try {
+                return (SignalStore) Class.forName(type)
+                        .getConstructor(EntityManagerFactory.class, Config.class)
+                        .newInstance(emf, config);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("could not create signal store " + type, e);
+            }
+        }
+    }
+
+    public SignalStore getSignalStore() {
+        return store;
+    }
+
+    public SignallerMetrics getMetrics() {
+        return metrics;
+    }
+
+    int shardIndex(String entityUniqueId) {
+        return (entityUniqueId.hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Sends the signal to its entity if there is room in the entity's and
+     * shard's mailboxes, otherwise spills it (see {@link MailboxLimiter}).
+     * 
+     * @param signal
+     */
+    void dispatch(Signal<?> signal) {
+        limiter.offer(signal, false);
+    }
+
+    /**
+     * Moves spilled signals to their entities as room becomes available.
+     */
+    void drainSpilled() {
+        limiter.drain();
+    }
+
+    /**
+     * Sends the signal to the root actor shard responsible for its entity.
+     * 
+     * @param signal
+     */
+    void send(Signal<?> signal) {
+        metrics.lane(signal.getPriority()).dispatched();
+        int index = shardIndex(signal.getEntityUniqueId());
+        metrics.shardDepth(index).incrementAndGet();
+        shards[index].tell(signal, ActorRef.noSender());
     }
 
     public EntityManagerFactory getEntityManagerFactory() {
@@ -73,16 +241,9 @@ public class Signaller {
     public <T extends Entity<T>> T create(Class<T> cls, CreationEvent<T> event) {
         EntityManager em = null;
         EntityTransaction tx = null;
-        T t;
-        try {
-            // TODO add before and after listener notifications for create event
-            // (see EntityActor for listener example for non-creation events
-            t = cls.newInstance();
-        } catch (InstantiationException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        }
+        // TODO add before and after listener notifications for create event
+        // (see EntityActor for listener example for non-creation events
+        T t = newInstance(cls);
         try {
             em = emf.createEntityManager();
             t.helper().setEntityManager(em);
@@ -107,6 +268,115 @@ public class Signaller {
 
     }
 
+    /**
+     * Asynchronous version of {@link #create(Class, CreationEvent)}. The
+     * creation runs on a pool of entityActorPoolSize threads kept apart from
+     * the entity dispatcher and counts towards the entity transactions in
+     * flight.
+     * 
+     * @param cls
+     * @param event
+     * @return future that completes with the committed entity or the
+     *         exception thrown by the creation
+     */
+    public <T extends Entity<T>> CompletableFuture<T> createAsync(final Class<T> cls,
+            final CreationEvent<T> event) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        transactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                governor.acquire();
+                try {
+                    future.complete(create(cls, event));
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    governor.release();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Creates an entity of type T for each of the given creation events. The
+     * entities are persisted in transactions of up to
+     * {@code xuml.create.chunk-size} entities, flushing every
+     * {@code xuml.create.flush-size} inserts so that the inserts can be
+     * batched by the JDBC driver (set hibernate.jdbc.batch_size to match).
+     * Signals to other entities made by the creation events of a chunk are
+     * sent after the chunk commits.
+     * 
+     * If a chunk fails it is rolled back and the exception is thrown. Chunks
+     * already committed are not rolled back.
+     * 
+     * @param cls
+     * @param events
+     * @return the created entities in the order of the events
+     */
+    public <T extends Entity<T>> List<T> createAll(Class<T> cls,
+            Iterable<? extends CreationEvent<T>> events) {
+        List<T> created = Lists.newArrayList();
+        List<T> chunk = Lists.newArrayListWithCapacity(createChunkSize);
+        Iterator<? extends CreationEvent<T>> it = events.iterator();
+        while (it.hasNext()) {
+            chunk.clear();
+            createChunk(cls, it, chunk);
+            created.addAll(chunk);
+        }
+        return created;
+    }
+
+    private <T extends Entity<T>> void createChunk(Class<T> cls,
+            Iterator<? extends CreationEvent<T>> events, List<T> chunk) {
+        EntityManager em = null;
+        EntityTransaction tx = null;
+        T t = null;
+        try {
+            em = emf.createEntityManager();
+            tx = em.getTransaction();
+            tx.begin();
+            while (events.hasNext() && chunk.size() < createChunkSize) {
+                CreationEvent<T> event = events.next();
+                t = newInstance(cls);
+                t.helper().setEntityManager(em);
+                t.event(event);
+                em.persist(t);
+                chunk.add(t);
+                if (chunk.size() % createFlushSize == 0) {
+                    em.flush();
+                    em.clear();
+                }
+            }
+            tx.commit();
+            // only after successful commit do we send the signals to other
+            // entities made during onEntry procedures.
+            for (T entity : chunk)
+                entity.helper().sendQueuedSignals();
+        } catch (RuntimeException e) {
+            if (tx != null && tx.isActive())
+                tx.rollback();
+            throw e;
+        } finally {
+            // the entity manager is held per thread so clearing it from the
+            // last entity clears it for the chunk
+            if (t != null)
+                t.helper().setEntityManager(null);
+            if (em != null && em.isOpen())
+                em.close();
+        }
+    }
+
+    private static <T> T newInstance(Class<T> cls) {
+        try {
+            return cls.newInstance();
+        } catch (InstantiationException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public <T extends Entity<T>> void signal(String fromEntityUniqueId, Entity<T> entity,
             Event<T> event, Optional<Duration> delay) {
         signal(fromEntityUniqueId, entity, event, delay, Optional.<FiniteDuration> absent());
@@ -140,6 +410,9 @@ public class Signaller {
             repeatIntervalMs = Optional.of(repeatInterval.get().toMillis());
         else
             repeatIntervalMs = Optional.absent();
+        boolean external = !signalInitiatedFromEvent();
+        if (external && time <= now)
+            limiter.checkCapacity(entity.uniqueId());
 
         @SuppressWarnings("unchecked")
         String id = persistSignal(fromEntityUniqueId, entity.getId(), (Class<T>) entity.getClass(),
@@ -147,166 +420,226 @@ public class Signaller {
         @SuppressWarnings("unchecked")
         Signal<T> signal = new Signal<T>(fromEntityUniqueId, (Class<Entity<T>>) entity.getClass(),
                 event, id, time, repeatInterval, entity.getId(), entity.uniqueId());
-        signal(signal);
-    }
-
-    private static class EntityEvent {
-        String fromEntityUniqueId;
-        String entityUniqueId;
-        String eventSignature;
-
-        EntityEvent(String fromEntityUniqueId, String entityUniqueId, String eventSignature) {
-            this.fromEntityUniqueId = fromEntityUniqueId;
-            this.entityUniqueId = entityUniqueId;
-            this.eventSignature = eventSignature;
-        }
-
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + ((entityUniqueId == null) ? 0 : entityUniqueId.hashCode());
-            result = prime * result + ((eventSignature == null) ? 0 : eventSignature.hashCode());
-            result = prime * result
-                    + ((fromEntityUniqueId == null) ? 0 : fromEntityUniqueId.hashCode());
-            return result;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            EntityEvent other = (EntityEvent) obj;
-            if (entityUniqueId == null) {
-                if (other.entityUniqueId != null)
-                    return false;
-            } else if (!entityUniqueId.equals(other.entityUniqueId))
-                return false;
-            if (eventSignature == null) {
-                if (other.eventSignature != null)
-                    return false;
-            } else if (!eventSignature.equals(other.eventSignature))
-                return false;
-            if (fromEntityUniqueId == null) {
-                if (other.fromEntityUniqueId != null)
-                    return false;
-            } else if (!fromEntityUniqueId.equals(other.fromEntityUniqueId))
-                return false;
-            return true;
-        }
-
+        signal(signal, external);
     }
 
-    private final Map<EntityEvent, Cancellable> scheduleCancellers = Maps.newHashMap();
-
     public <T> void cancelSignal(String fromEntityUniqueId, Entity<T> entity,
             String eventSignatureKey) {
-        cancelSignal(fromEntityUniqueId, entity.uniqueId(), eventSignatureKey);
+        timers.cancel(fromEntityUniqueId, entity.uniqueId(), eventSignatureKey);
     }
 
     <T> void signal(Signal<T> signal) {
+        signal(signal, false);
+    }
+
+    /**
+     * Sends the signal now or when it is due.
+     * 
+     * @param signal
+     * @param external
+     *            true if sent by a caller outside of an entity so that the
+     *            mailbox overflow policy applies
+     */
+    private <T> void signal(Signal<T> signal, boolean external) {
         if (signalInitiatedFromEvent()) {
             info.get().getCurrentEntity().helper().queueSignal(signal);
-        } else {
-            long now = System.currentTimeMillis();
-            long delayMs = (signal.getTime() == null ? now : signal.getTime()) - now;
-            if (delayMs <= 0)
-                root.tell(signal, root);
-            else {
-                // There can be at most one delayed signal of a given event
-                // signature outstanding for each sender-receiver instance pair
-                // at any one time. Mellor & Balcer p194.
-                synchronized (this) {
-                    EntityEvent key = cancelSignal(signal.getFromEntityUniqueId(),
-                            signal.getEntityUniqueId(), signal.getEvent().signatureKey());
-
-                    Cancellable cancellable;
-                    ExecutionContext executionContext = actorSystem.dispatcher();
-                    if (!signal.getRepeatInterval().isPresent())
-                        cancellable = actorSystem.scheduler().scheduleOnce(
-                                Duration.create(delayMs, TimeUnit.MILLISECONDS), root, signal,
-                                executionContext, root);
-                    else
-                        cancellable = actorSystem.scheduler().schedule(
-                                Duration.create(delayMs, TimeUnit.MILLISECONDS),
-                                signal.getRepeatInterval().get(), root, signal, executionContext,
-                                root);
-                    scheduleCancellers.put(key, cancellable);
+        } else
+            schedule(signal, external);
+    }
+
+    private <T> void schedule(Signal<T> signal, boolean external) {
+        long now = System.currentTimeMillis();
+        long delayMs = (signal.getTime() == null ? now : signal.getTime()) - now;
+        if (delayMs <= 0)
+            limiter.offer(signal, external);
+        else
+            timers.schedule(signal);
+    }
+
+    /**
+     * Returns a new empty batch for sending many signals from outside any
+     * entity with one store transaction.
+     * 
+     * @return
+     */
+    public SignalBatch signalBatch() {
+        return new SignalBatch(this);
+    }
+
+    /**
+     * Stores the signals in one transaction then dispatches them. The
+     * transaction runs on the same threads as {@link #createAsync} and counts
+     * towards the entity transactions in flight. Signals that find their
+     * entity's mailbox full are spilled rather than blocking or failing as
+     * they are already stored.
+     * 
+     * @param queued
+     * @param coalescing
+     * @param signals
+     *            the signals to dispatch, in the same order as {@code queued}
+     * @return future that completes with the signal ids once stored
+     */
+    CompletableFuture<List<String>> submit(final List<QueuedSignal> queued,
+            final Collection<QueuedSignal> coalescing, final List<Signal<?>> signals) {
+        Preconditions.checkState(!signalInitiatedFromEvent(),
+                "signal batches cannot be submitted from an entity event");
+        final CompletableFuture<List<String>> future = new CompletableFuture<List<String>>();
+        transactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                governor.acquire();
+                try {
+                    store.persistAll(queued, coalescing);
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                    return;
+                } finally {
+                    governor.release();
                 }
+                List<String> ids = Lists.newArrayListWithCapacity(queued.size());
+                for (QueuedSignal signal : queued)
+                    ids.add(signal.id);
+                for (Signal<?> signal : signals)
+                    schedule(signal, false);
+                future.complete(ids);
             }
-        }
+        });
+        return future;
     }
 
-    private <T> EntityEvent cancelSignal(String fromEntityUniqueid, String toEntityUniqueId,
-            String eventSignatureKey) {
-        EntityEvent key = new EntityEvent(fromEntityUniqueid, toEntityUniqueId, eventSignatureKey);
-        Cancellable current = scheduleCancellers.get(key);
-        if (current != null)
-            current.cancel();
-        return key;
+    public List<QueuedSignal> queuedSignals() {
+        return store.queuedSignals();
     }
 
-    public List<QueuedSignal> queuedSignals() {
-        EntityManager em = emf.createEntityManager();
-        EntityTransaction tx = null;
-        try {
-            tx = em.getTransaction();
-            tx.begin();
-            List<QueuedSignal> signals = em.createQuery(
-                    "select s from " + QueuedSignal.class.getSimpleName() + " s order by id",
-                    QueuedSignal.class).getResultList();
-            tx.commit();
-            return signals;
-        } catch (RuntimeException e) {
-            if (tx != null && tx.isActive())
-                tx.rollback();
-            throw e;
-        } finally {
-            em.close();
-        }
+    /**
+     * Holds a failed signal until it is due to be retried.
+     * 
+     * @param signal
+     */
+    void retry(Signal<?> signal) {
+        timers.retry(signal);
     }
 
+    /**
+     * Stops the timer holding the signal (a repeating signal that has been
+     * dead lettered).
+     * 
+     * @param id
+     */
+    void unschedule(String id) {
+        timers.unschedule(id);
+    }
+
+    /**
+     * Returns signals that failed too many times to be retried, ordered by id
+     * starting after {@code after} (if not null).
+     * 
+     * @param after
+     * @param maxResults
+     * @return
+     */
+    public List<DeadLetterSignal> deadLetters(DeadLetterSignal after, int maxResults) {
+        return store.deadLetters(after, maxResults);
+    }
+
+    /**
+     * Moves the dead letter back to the queued signals with its failures
+     * cleared and sends it now.
+     * 
+     * @param id
+     * @return false if there is no dead letter with the given id
+     */
+    public boolean redrive(String id) {
+        QueuedSignal q = store.redrive(id, System.currentTimeMillis());
+        if (q == null)
+            return false;
+        Signal<?> signal = toSignal(q);
+        if (signal.getRepeatInterval().isPresent())
+            timers.hold(signal);
+        else
+            dispatch(signal);
+        return true;
+    }
+
+    public void deleteDeadLetter(String id) {
+        store.deleteDeadLetter(id);
+    }
+
+    /**
+     * Sends the signals persisted but not processed before the last shutdown.
+     * Rows are read in pages ordered by time. Signals already due are
+     * dispatched at no more than {@code xuml.recovery.max-rate} per second and
+     * later signals are handed to the timer with their original time and
+     * repeat interval. Signals due beyond the timer horizon are left in the
+     * {@link SignalStore} for the timer to page in.
+     * 
+     * @return number of queued signals
+     */
     public int sendSignalsInQueue() {
-        List<QueuedSignal> signals = queuedSignals();
+        long until = timers.loadedUntil();
+        // due or near-term signals in time order whatever their priority so
+        // each entity receives them in the order they were sent
+        QueuedSignal last = null;
+        int count = 0;
+        while (true) {
+            List<QueuedSignal> page = store.queuedSignals(0, until, last, recoveryPageSize);
+            recover(page);
+            count += page.size();
+            if (page.size() < recoveryPageSize)
+                break;
+            last = page.get(page.size() - 1);
+        }
+        // repeating signals are always held by the timer
+        last = null;
+        while (true) {
+            List<QueuedSignal> page = store.repeatingSignals(until, last, recoveryPageSize);
+            recover(page);
+            if (page.size() < recoveryPageSize)
+                break;
+            last = page.get(page.size() - 1);
+        }
+        // the rest (including the repeating ones above) are held or will be
+        // paged in by the timer
+        return count + (int) (store.size() - store.count(0, until));
+    }
+
+    private void recover(List<QueuedSignal> signals) {
         for (QueuedSignal sig : signals) {
-            signal(sig);
+            log.debug("sending {}", sig);
+            Signal<?> signal = toSignal(sig);
+            if (signal.getTime() <= System.currentTimeMillis()) {
+                if (recoveryRateLimiter != null)
+                    recoveryRateLimiter.acquire();
+                dispatch(signal);
+            } else
+                timers.hold(signal);
         }
-        return signals.size();
     }
 
     public long queueSize() {
-        EntityManager em = emf.createEntityManager();
-        EntityTransaction tx = null;
-        long count;
-        try {
-            tx = em.getTransaction();
-            tx.begin();
-            count = em.createQuery(
-                    "select count(s) from " + QueuedSignal.class.getSimpleName() + " s", Long.class)
-                    .getSingleResult();
-            tx.commit();
-            return count;
-        } catch (RuntimeException e) {
-            if (tx != null && tx.isActive())
-                tx.rollback();
-            throw e;
-        } finally {
-            em.close();
-        }
+        return store.size();
     }
 
+    /**
+     * Returns the signal represented by the persisted signal including its due
+     * time and repeat interval.
+     * 
+     * @param sig
+     * @return
+     */
     @SuppressWarnings({ "rawtypes", "unchecked" })
-    private void signal(QueuedSignal sig) {
-        log.debug("sending {}", sig);
+    Signal<?> toSignal(QueuedSignal sig) {
         Event<?> event = Util.toObject(sig.eventContent, sig.eventClass());
         Serializable id = Util.toObject(sig.idContent, sig.idClass());
         Class<?> entityClass = getClassForName(sig.entityClassName);
-        signal(new Signal(sig.fromEntityUniqueId, entityClass, event, sig.id, id,
-                sig.toEntityUniqueId));
+        Optional<FiniteDuration> repeatInterval;
+        if (sig.repeatIntervalMs == null)
+            repeatInterval = Optional.absent();
+        else
+            repeatInterval = Optional.<FiniteDuration> of(
+                    Duration.create(sig.repeatIntervalMs, TimeUnit.MILLISECONDS));
+        return new Signal(sig.fromEntityUniqueId, entityClass, event, sig.id,
+                sig.time.getTime(), repeatInterval, id, sig.toEntityUniqueId);
     }
 
     private Class<?> getClassForName(String className) {
@@ -320,33 +653,135 @@ public class Signaller {
     public <T extends Entity<T>> String persistSignal(String fromEntityUniqueId, Object id,
             Class<T> cls, Event<T> event, long time, Optional<Long> repeatIntervalMs,
             String entityUniqueId) {
+        QueuedSignal signal = toQueuedSignal(fromEntityUniqueId, id, cls, event, time,
+                repeatIntervalMs, entityUniqueId);
+        if (coalesces(event, signal))
+            return store.coalesce(signal);
+        else
+            return store.persist(signal);
+    }
+
+    static <T extends Entity<T>> QueuedSignal toQueuedSignal(String fromEntityUniqueId,
+            Object id, Class<T> cls, Event<T> event, long time, Optional<Long> repeatIntervalMs,
+            String entityUniqueId) {
         byte[] idBytes = Util.toBytes(id);
         byte[] eventBytes = Util.toBytes(event);
         QueuedSignal signal = new QueuedSignal(id.getClass().getName(), idBytes, cls.getName(),
                 event.getClass().getName(), eventBytes, time, repeatIntervalMs, fromEntityUniqueId,
-                entityUniqueId);
-        EntityManager em = emf.createEntityManager();
-        em.getTransaction().begin();
-        em.persist(signal);
-        em.getTransaction().commit();
-        em.close();
-        log.trace("persisted {}", signal);
-        return signal.id;
+                entityUniqueId, Signal.priority(event));
+        signal.eventSignature = event.signatureKey();
+        return signal;
+    }
+
+    /**
+     * Returns true if the stored signal should replace earlier ones (see
+     * {@link SignalStore#coalesce(QueuedSignal)}).
+     */
+    static boolean coalesces(Event<?> event, QueuedSignal signal) {
+        return event instanceof CoalescibleEvent && signal.repeatIntervalMs == null;
     }
 
     private boolean signalInitiatedFromEvent() {
-        return info.get().getCurrentEntity() != null;
+        Info i = info.get();
+        return i != null && i.getCurrentEntity() != null;
     }
 
+    /**
+     * Returns the Info for the current thread, creating it if necessary. Call
+     * {@link #releaseInfo()} once the thread has finished with it.
+     *
+     * @return
+     */
     public Info getInfo() {
+        Info i = info.get();
+        if (i == null) {
+            i = new Info();
+            info.set(i);
+        }
+        return i;
+    }
+
+    /**
+     * Returns true if entities should check that each event is processed on
+     * the thread already processing an event of that entity (if any).
+     *
+     * @return
+     */
+    boolean checksThreadConfinement() {
+        return checkThreadConfinement;
+    }
+
+    /**
+     * Returns the Info for the current thread without creating it.
+     *
+     * @return Info or null
+     */
+    Info currentInfo() {
         return info.get();
     }
 
+    /**
+     * Removes the Info for the current thread if it no longer refers to an
+     * entity or entity manager so that pooled threads don't carry context from
+     * one signal to the next.
+     */
+    public void releaseInfo() {
+        Info i = info.get();
+        if (i != null && i.getCurrentEntity() == null && i.getCurrentEntityManager() == null)
+            info.remove();
+    }
+
+    /**
+     * Returns the entity manager of the event being processed by the current
+     * thread, or null if none.
+     *
+     * @return
+     */
+    public EntityManager getCurrentEntityManager() {
+        Info i = info.get();
+        return i == null ? null : i.getCurrentEntityManager();
+    }
+
+    /**
+     * Releases the timers, transaction threads and signal store (as for
+     * {@link #close()}) and terminates the actor system. The
+     * EntityManagerFactory is left open.
+     * 
+     * @return
+     */
     public Future<Terminated> stop() {
+        release();
         return actorSystem.terminate();
     }
 
+    /**
+     * Releases the timers, transaction threads and signal store (as for
+     * {@link #stop()}) and closes the EntityManagerFactory.
+     */
     public void close() {
+        release();
         emf.close();
     }
+
+    /**
+     * Stops the timers, waits for submitted createAsync and SignalBatch
+     * transactions then closes the signal store. Does nothing if already
+     * called.
+     */
+    private synchronized void release() {
+        if (released)
+            return;
+        released = true;
+        timers.close();
+        transactionExecutor.shutdown();
+        try {
+            if (!transactionExecutor.awaitTermination(TRANSACTION_SHUTDOWN_TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS))
+                log.warn("transactions still running after {}ms, closing anyway",
+                        TRANSACTION_SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+    }
 }
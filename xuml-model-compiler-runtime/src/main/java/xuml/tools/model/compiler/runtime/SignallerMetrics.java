@@ -0,0 +1,247 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+
+import xuml.tools.model.compiler.runtime.message.Signal;
+
+/**
+ * Point-in-time counters describing the signal processing of a
+ * {@link Signaller}. Values are read without locking so are approximate while
+ * signals are in flight.
+ */
+public final class SignallerMetrics {
+
+    private final AtomicLong[] shardDepths;
+    private final AtomicLong timersPending = new AtomicLong();
+    private final AtomicLong timersFired = new AtomicLong();
+    private final AtomicLong entityMailboxOccupancy = new AtomicLong();
+    private final AtomicLong spilledSignals = new AtomicLong();
+    private final AtomicLong rejectedSignals = new AtomicLong();
+    private final AtomicLong actorsCreated = new AtomicLong();
+    private final AtomicLong actorsPassivated = new AtomicLong();
+    private final ConcurrencyGovernor governor;
+    private final ConcurrentMap<Integer, LaneMetrics> lanes = new ConcurrentHashMap<Integer, LaneMetrics>();
+
+    SignallerMetrics(int shards, ConcurrencyGovernor governor) {
+        this.governor = governor;
+        shardDepths = new AtomicLong[shards];
+        for (int i = 0; i < shards; i++)
+            shardDepths[i] = new AtomicLong();
+    }
+
+    /**
+     * Returns the number of root actor shards signals are routed through.
+     *
+     * @return
+     */
+    public int getShardCount() {
+        return shardDepths.length;
+    }
+
+    /**
+     * Returns the number of signals sent to the given shard that it has not
+     * yet dispatched to an entity actor. A depth that keeps growing means the
+     * shard is saturated.
+     *
+     * @param shard
+     * @return
+     */
+    public long getShardMailboxDepth(int shard) {
+        return shardDepths[shard].get();
+    }
+
+    public long[] getShardMailboxDepths() {
+        long[] depths = new long[shardDepths.length];
+        for (int i = 0; i < depths.length; i++)
+            depths[i] = shardDepths[i].get();
+        return depths;
+    }
+
+    /**
+     * Returns the number of signals dispatched to entity actors that have not
+     * yet been processed. Only tracked if a mailbox capacity is set.
+     *
+     * @return
+     */
+    public long getEntityMailboxOccupancy() {
+        return entityMailboxOccupancy.get();
+    }
+
+    /**
+     * Returns the number of signals held back in the signal store because an
+     * entity or shard mailbox was full.
+     *
+     * @return
+     */
+    public long getSpilledSignals() {
+        return spilledSignals.get();
+    }
+
+    /**
+     * Returns the number of signals refused with
+     * {@link MailboxFullException} since startup.
+     *
+     * @return
+     */
+    public long getRejectedSignals() {
+        return rejectedSignals.get();
+    }
+
+    /**
+     * Returns the number of delayed or repeating signals held in memory
+     * waiting to be due. Signals due beyond the timer horizon are not counted.
+     *
+     * @return
+     */
+    public long getTimersPending() {
+        return timersPending.get();
+    }
+
+    /**
+     * Returns the number of delayed or repeating signals that have become due
+     * and been dispatched since startup.
+     *
+     * @return
+     */
+    public long getTimersFired() {
+        return timersFired.get();
+    }
+
+    /**
+     * Returns the number of entity actors created since startup.
+     *
+     * @return
+     */
+    public long getActorsCreated() {
+        return actorsCreated.get();
+    }
+
+    /**
+     * Returns the number of entity actors stopped since startup because they
+     * were idle or the live actor limit was reached.
+     *
+     * @return
+     */
+    public long getActorsPassivated() {
+        return actorsPassivated.get();
+    }
+
+    /**
+     * Returns the number of entity actors currently alive.
+     *
+     * @return
+     */
+    public long getLiveActors() {
+        return actorsCreated.get() - actorsPassivated.get();
+    }
+
+    /**
+     * Returns the number of entity transactions currently in progress.
+     *
+     * @return
+     */
+    public int getInFlightTransactions() {
+        return governor.getInFlight();
+    }
+
+    /**
+     * Returns the current limit on concurrent entity transactions. It is at
+     * most the entity actor pool size and is lowered while connections are
+     * slow to obtain.
+     *
+     * @return
+     */
+    public int getConcurrencyLimit() {
+        return governor.getLimit();
+    }
+
+    /**
+     * Returns the average time taken to begin an entity transaction (to get
+     * a connection) over the last completed adjustment window.
+     *
+     * @param unit
+     * @return
+     */
+    public long getAverageConnectionWait(TimeUnit unit) {
+        return governor.getAverageConnectionWait(unit);
+    }
+
+    /**
+     * Returns the metrics of each signal priority seen since startup, highest
+     * priority first.
+     *
+     * @return
+     */
+    public List<LaneMetrics> getLanes() {
+        List<LaneMetrics> list = Lists.newArrayList(lanes.values());
+        Collections.sort(list, new Comparator<LaneMetrics>() {
+            @Override
+            public int compare(LaneMetrics a, LaneMetrics b) {
+                return Integer.compare(b.getPriority(), a.getPriority());
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Records that the signal's processing has finished. Called by the entity
+     * actors.
+     *
+     * @param signal
+     */
+    public void processed(Signal<?> signal) {
+        long latencyMs = signal.getTime() == null ? 0
+                : Math.max(0, System.currentTimeMillis() - signal.getTime());
+        lane(signal.getPriority()).processed(latencyMs);
+    }
+
+    LaneMetrics lane(int priority) {
+        LaneMetrics lane = lanes.get(priority);
+        if (lane == null) {
+            lanes.putIfAbsent(priority, new LaneMetrics(priority));
+            lane = lanes.get(priority);
+        }
+        return lane;
+    }
+
+    public void actorCreated() {
+        actorsCreated.incrementAndGet();
+    }
+
+    public void actorPassivated() {
+        actorsPassivated.incrementAndGet();
+    }
+
+    AtomicLong shardDepth(int shard) {
+        return shardDepths[shard];
+    }
+
+    AtomicLong entityMailboxOccupancy() {
+        return entityMailboxOccupancy;
+    }
+
+    AtomicLong spilledSignals() {
+        return spilledSignals;
+    }
+
+    AtomicLong rejectedSignals() {
+        return rejectedSignals;
+    }
+
+    AtomicLong timersPending() {
+        return timersPending;
+    }
+
+    AtomicLong timersFired() {
+        return timersFired;
+    }
+
+}
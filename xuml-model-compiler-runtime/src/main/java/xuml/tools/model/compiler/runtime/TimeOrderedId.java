@@ -0,0 +1,71 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Generates 32 character lower case hex ids that sort in the order they were
+ * generated. An id is 48 bits of epoch ms, a 16 bit node id then a 64 bit
+ * sequence that starts at a random value each ms and increments for every
+ * further id in that ms. Ids from one generator are strictly increasing (a
+ * clock moving backwards is treated as standing still) and ids from different
+ * nodes do not collide.
+ */
+public final class TimeOrderedId {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    public static final int MAX_NODE = 0xFFFF;
+
+    private final int node;
+    private final Random random = new Random();
+    private long lastTime = -1;
+    private long sequence;
+
+    /**
+     * Constructor.
+     * 
+     * @param node
+     *            0 to {@link #MAX_NODE}, should be unique across the
+     *            processes sharing a signal store
+     */
+    public TimeOrderedId(int node) {
+        Preconditions.checkArgument(node >= 0 && node <= MAX_NODE,
+                "node must be between 0 and " + MAX_NODE);
+        this.node = node;
+    }
+
+    public synchronized String next() {
+        long now = Math.max(System.currentTimeMillis(), lastTime);
+        if (now == lastTime)
+            sequence++;
+        else {
+            lastTime = now;
+            // leave plenty of room to increment within the ms
+            sequence = random.nextLong() >>> 2;
+        }
+        char[] chars = new char[32];
+        write(chars, 0, now, 12);
+        write(chars, 12, node, 4);
+        write(chars, 16, sequence, 16);
+        return new String(chars);
+    }
+
+    private static void write(char[] chars, int offset, long value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            chars[i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Returns the epoch ms at which the id was generated.
+     * 
+     * @param id
+     * @return
+     */
+    public static long time(String id) {
+        return Long.parseLong(id.substring(0, 12), 16);
+    }
+
+}
@@ -1,65 +1,200 @@
 package xuml.tools.model.compiler.runtime;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.objenesis.strategy.StdInstantiatorStrategy;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
+import com.esotericsoftware.kryo.io.ByteBufferOutput;
 import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.KryoBufferOverflowException;
 import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.util.DefaultInstantiatorStrategy;
 import com.esotericsoftware.kryo.util.Pool;
+import com.google.common.base.Preconditions;
 
 public class Util {
 
-    private static final Pool<Kryo> pool = createKryoPool();
+    private static final List<KryoRegistrar> registrars = new CopyOnWriteArrayList<KryoRegistrar>();
+
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    // a pooled output that grew beyond this for a large object is shrunk
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final int POOL_CAPACITY = Math.max(8,
+            4 * Runtime.getRuntime().availableProcessors());
+
+    private static final byte[] EMPTY_BYTES = new byte[0];
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private static volatile Pool<KryoHolder> pool = createKryoPool();
+
+    /**
+     * Adds the registrations (normally generated for a domain's events and
+     * ids) to every {@link Kryo} instance used by this class. If every
+     * registrar {@link KryoRegistrar#requiresRegistration() requires
+     * registration} classes must from then on be registered to be serialized,
+     * so only a registration id is written rather than the class name. The
+     * ids must stay the same for as long as signals are stored with them
+     * (the model compiler keeps them in a kryo ids file) and signals stored
+     * before registration was first required must be processed (the signal
+     * store drained) before upgrading as their class names no longer read
+     * back. The generated serializers are used instead of reflection either
+     * way. Registering the same registrar class twice has no effect.
+     *
+     * @param registrar
+     */
+    public static synchronized void register(KryoRegistrar registrar) {
+        for (KryoRegistrar r : registrars)
+            if (r.getClass().equals(registrar.getClass()))
+                return;
+        registrars.add(registrar);
+        // instances already pooled don't have the new registrations
+        pool = createKryoPool();
+    }
 
     public static byte[] toBytes(Object object) {
         if (object == null)
             return new byte[] {};
-        Kryo kryo = pool.obtain();
+        Pool<KryoHolder> pool = Util.pool;
+        KryoHolder holder = pool.obtain();
         try {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            Output output = new Output(bytes);
-            try {
-                kryo.writeObject(output, object);
-            } finally {
-                output.close();
-            }
-            return bytes.toByteArray();
+            Output output = holder.output;
+            output.reset();
+            holder.kryo.writeObject(output, object);
+            byte[] bytes = output.toBytes();
+            if (output.getBuffer().length > MAX_RETAINED_BUFFER_SIZE)
+                output.setBuffer(new byte[INITIAL_BUFFER_SIZE], -1);
+            return bytes;
+        } finally {
+            pool.free(holder);
+        }
+    }
+
+    /**
+     * Serializes the object into {@code buffer} starting at its position and
+     * advances the position past the bytes written. Nothing is allocated when
+     * the classes involved are registered. If the object does not fit then a
+     * {@link KryoBufferOverflowException} is thrown and the position is left
+     * unchanged.
+     *
+     * @param object
+     *            not null
+     * @param buffer
+     * @return number of bytes written
+     */
+    public static int toBytes(Object object, ByteBuffer buffer) {
+        Preconditions.checkNotNull(object);
+        int start = buffer.position();
+        Pool<KryoHolder> pool = Util.pool;
+        KryoHolder holder = pool.obtain();
+        ByteBufferOutput output = holder.bufferOutput;
+        try {
+            output.setBuffer(buffer);
+            holder.kryo.writeObject(output, object);
+            return buffer.position() - start;
+        } catch (RuntimeException e) {
+            buffer.position(start);
+            throw e;
         } finally {
-            pool.free(kryo);
+            // don't hold on to the caller's buffer
+            output.setBuffer(EMPTY_BUFFER);
+            pool.free(holder);
         }
     }
 
     public static <T> T toObject(byte[] bytes, Class<T> cls) {
         if (bytes.length == 0)
             return null;
-        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
-        Kryo kryo = pool.obtain();
+        Pool<KryoHolder> pool = Util.pool;
+        KryoHolder holder = pool.obtain();
+        Input input = holder.input;
         try {
-            Input input = new Input(in);
-            try {
-                return kryo.readObject(input, cls);
-            } finally {
-                input.close();
-            }
+            input.setBuffer(bytes);
+            return holder.kryo.readObject(input, cls);
+        } finally {
+            input.setBuffer(EMPTY_BYTES);
+            pool.free(holder);
+        }
+    }
+
+    /**
+     * Reads an object of the given class from {@code buffer} starting at its
+     * position and advances the position past the bytes read.
+     *
+     * @param buffer
+     * @param cls
+     * @return object
+     */
+    public static <T> T toObject(ByteBuffer buffer, Class<T> cls) {
+        Pool<KryoHolder> pool = Util.pool;
+        KryoHolder holder = pool.obtain();
+        ByteBufferInput input = holder.bufferInput;
+        try {
+            input.setBuffer(buffer);
+            return holder.kryo.readObject(input, cls);
         } finally {
-            pool.free(kryo);
+            input.setBuffer(EMPTY_BUFFER);
+            pool.free(holder);
         }
     }
 
-    private static Pool<Kryo> createKryoPool() {
-        return  new Pool<Kryo>(true, true, 8) {
+    /**
+     * A pooled {@link Kryo} instance with the buffers it reads from and
+     * writes to so that they are reused across calls.
+     */
+    private static final class KryoHolder {
+        final Kryo kryo;
+        final Output output = new Output(INITIAL_BUFFER_SIZE, -1);
+        final Input input = new Input();
+        final ByteBufferOutput bufferOutput = new ByteBufferOutput(EMPTY_BUFFER);
+        final ByteBufferInput bufferInput = new ByteBufferInput(EMPTY_BUFFER);
+
+        KryoHolder(Kryo kryo) {
+            this.kryo = kryo;
+        }
+    }
+
+    private static boolean registrationRequired() {
+        if (registrars.isEmpty())
+            return false;
+        for (KryoRegistrar registrar : registrars)
+            if (!registrar.requiresRegistration())
+                return false;
+        return true;
+    }
+
+    private static Pool<KryoHolder> createKryoPool() {
+        // holders are never discarded while idle (no soft references) and
+        // the capacity is large enough that concurrent callers don't cause
+        // holders to be thrown away and recreated
+        return new Pool<KryoHolder>(true, false, POOL_CAPACITY) {
             @Override
-            public Kryo create() {
+            public KryoHolder create() {
                 Kryo kryo = new Kryo();
-                kryo.setRegistrationRequired(false);
                 kryo.setInstantiatorStrategy(
                         new DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
-                // configure kryo instance, customize settings
-                return kryo;
+                boolean required = registrationRequired();
+                kryo.setRegistrationRequired(required);
+                if (required) {
+                    // primitives, their wrappers and String are registered
+                    // by Kryo already
+                    kryo.register(byte[].class);
+                    kryo.register(Date.class);
+                    kryo.register(BigDecimal.class);
+                    kryo.register(BigInteger.class);
+                }
+                for (KryoRegistrar registrar : registrars)
+                    registrar.register(kryo);
+                return new KryoHolder(kryo);
             }
         };
     }
@@ -0,0 +1,87 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.typesafe.config.Config;
+
+import akka.dispatch.DispatcherPrerequisites;
+import akka.dispatch.ExecutorServiceConfigurator;
+import akka.dispatch.ExecutorServiceFactory;
+
+/**
+ * Runs each entity actor mailbox run on its own virtual thread so that
+ * entities blocked on JDBC don't hold a platform thread. Concurrent
+ * transactions are still limited by the {@link ConcurrencyGovernor} (sized to
+ * the connection pool) which, being lock based, parks waiting virtual threads
+ * rather than pinning their carriers.
+ *
+ * Virtual threads need Java 21 or later. The runtime is built for Java 8 so
+ * they are created reflectively; on an older JVM a fixed pool of
+ * {@code pool-size} platform threads is used instead.
+ */
+public class VirtualThreadExecutorServiceConfigurator extends ExecutorServiceConfigurator {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(VirtualThreadExecutorServiceConfigurator.class);
+
+    private final int poolSize;
+
+    public VirtualThreadExecutorServiceConfigurator(Config config,
+            DispatcherPrerequisites prerequisites) {
+        super(config, prerequisites);
+        this.poolSize = config.getInt("pool-size");
+    }
+
+    @Override
+    public ExecutorServiceFactory createExecutorServiceFactory(final String id,
+            final ThreadFactory factory) {
+        return new ExecutorServiceFactory() {
+
+            @Override
+            public ExecutorService createExecutorService() {
+                ThreadFactory virtual = virtualThreadFactory(id + "-virtual-");
+                if (virtual == null) {
+                    log.warn("virtual threads not available, using {} platform threads for {}",
+                            poolSize, id);
+                    return Executors.newFixedThreadPool(poolSize, factory);
+                } else
+                    return newThreadPerTaskExecutor(virtual);
+            }
+        };
+    }
+
+    /**
+     * Returns {@code Thread.ofVirtual().name(prefix, 0).factory()} or null if
+     * virtual threads are not supported by this JVM.
+     */
+    static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+                    prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // includes UnsupportedOperationException on Java 19/20 without
+            // --enable-preview
+            return null;
+        }
+    }
+
+    private static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+        try {
+            Method method = Executors.class.getMethod("newThreadPerTaskExecutor",
+                    ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -1,28 +1,83 @@
 package xuml.tools.model.compiler.runtime.actor;
 
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+
+import akka.actor.ReceiveTimeout;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import scala.concurrent.duration.Duration;
+import xuml.tools.model.compiler.runtime.CoalescibleEvent;
+import xuml.tools.model.compiler.runtime.ConcurrencyGovernor;
 import xuml.tools.model.compiler.runtime.Entity;
-import xuml.tools.model.compiler.runtime.QueuedSignal;
+import xuml.tools.model.compiler.runtime.MailboxLimiter;
+import xuml.tools.model.compiler.runtime.SignalFailureHandler;
 import xuml.tools.model.compiler.runtime.SignalProcessorListener;
 import xuml.tools.model.compiler.runtime.SignalProcessorListenerDoesNothing;
+import xuml.tools.model.compiler.runtime.SignalStore;
+import xuml.tools.model.compiler.runtime.SignallerMetrics;
 import xuml.tools.model.compiler.runtime.message.CloseEntityActor;
+import xuml.tools.model.compiler.runtime.message.EntityActorIdle;
 import xuml.tools.model.compiler.runtime.message.Signal;
 import xuml.tools.model.compiler.runtime.message.StopEntityActor;
 
 public class EntityActor extends UntypedActor {
 
     private EntityManagerFactory emf;
+    private SignalStore store;
+    // null if not limiting concurrent transactions
+    private ConcurrencyGovernor governor;
+    // null if not recording lane metrics
+    private SignallerMetrics metrics;
+    // null if failed signals are left for the next restart
+    private SignalFailureHandler failureHandler;
+    // null if mailbox occupancy is not tracked
+    private MailboxLimiter limiter;
     private final LoggingAdapter log;
     private SignalProcessorListener listener = SignalProcessorListenerDoesNothing.getInstance();
+    // maximum number of signals applied to the entity in one transaction
+    private final int maxSignalsPerTransaction;
+    // signals received but not yet processed (only used when
+    // maxSignalsPerTransaction > 1 or for coalescible signals)
+    private final Deque<PendingSignal> pending = new ArrayDeque<PendingSignal>();
+    // the latest pending coalescible signal of each event class
+    private final Map<Class<?>, PendingSignal> coalescing = Maps.newHashMap();
+    private boolean processScheduled;
+    private final boolean cacheEnabled;
+    private final boolean cacheVerifyUnversioned;
+    // not null only if cacheEnabled and the emf has been received
+    private EntityCache cache;
+    private String entityUniqueId;
 
     public EntityActor() {
         log = Logging.getLogger(getContext().system(), this);
+        Config config = getContext().system().settings().config().getConfig("xuml.entity");
+        maxSignalsPerTransaction = config.getInt("max-signals-per-transaction");
+        cacheEnabled = config.getBoolean("cache.enabled");
+        cacheVerifyUnversioned = config.getBoolean("cache.verify-unversioned");
+        long idleTimeoutMs = config.getDuration("passivation.idle-timeout",
+                TimeUnit.MILLISECONDS);
+        if (idleTimeoutMs > 0)
+            getContext().setReceiveTimeout(Duration.create(idleTimeoutMs, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public void postStop() {
+        if (cache != null)
+            cache.close();
     }
 
     @Override
@@ -30,83 +85,412 @@ public class EntityActor extends UntypedActor {
         log.debug("received message {}", message.getClass().getName());
         if (message instanceof EntityManagerFactory)
             handleMessage((EntityManagerFactory) message);
+        else if (message instanceof SignalStore)
+            store = (SignalStore) message;
+        else if (message instanceof ConcurrencyGovernor)
+            governor = (ConcurrencyGovernor) message;
+        else if (message instanceof SignallerMetrics)
+            metrics = (SignallerMetrics) message;
+        else if (message instanceof SignalFailureHandler)
+            failureHandler = (SignalFailureHandler) message;
+        else if (message instanceof MailboxLimiter)
+            limiter = (MailboxLimiter) message;
         else if (message instanceof SignalProcessorListener)
             listener = (SignalProcessorListener) message;
         else if (message instanceof Signal) {
-            handleMessage((Signal<?>) message);
+            Signal<?> signal = (Signal<?>) message;
+            entityUniqueId = signal.getEntityUniqueId();
+            // once anything is pending later signals must queue behind it
+            if (maxSignalsPerTransaction > 1 || isCoalescible(signal) || !pending.isEmpty())
+                enqueue(signal);
+            else {
+                acquire(signal.getPriority());
+                try {
+                    handleMessage(signal);
+                } finally {
+                    release();
+                }
+            }
+        } else if (message == ProcessPendingSignals.INSTANCE) {
+            PendingSignal next = peek();
+            acquire(next == null ? 0 : next.signal.getPriority());
+            try {
+                processPending();
+            } finally {
+                release();
+            }
         } else if (message instanceof StopEntityActor) {
             getContext().stop(getSelf());
+        } else if (message instanceof ReceiveTimeout) {
+            handleIdle();
+        }
+    }
+
+    private void acquire(int priority) {
+        if (governor != null)
+            governor.acquire(priority);
+    }
+
+    private void release() {
+        if (governor != null)
+            governor.release();
+    }
+
+    /**
+     * Begins the transaction, recording how long it took to get a connection.
+     */
+    private void begin(EntityTransaction tx) {
+        long start = System.nanoTime();
+        tx.begin();
+        if (governor != null)
+            governor.connectionWait(System.nanoTime() - start);
+    }
+
+    private void handleIdle() {
+        if (cache != null)
+            cache.close();
+        // let RootActor decide whether to stop this actor
+        if (entityUniqueId != null)
+            getContext().parent().tell(new EntityActorIdle(entityUniqueId), getSelf());
+    }
+
+    private EntityManager createEntityManager() {
+        if (cache != null)
+            return cache.entityManager();
+        else
+            return emf.createEntityManager();
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Entity<?> find(EntityManager em, Signal signal) {
+        if (cache != null)
+            return cache.find(signal.getEntityClass(), signal.getEntityId());
+        else
+            return (Entity<?>) em.find(signal.getEntityClass(), signal.getEntityId());
+    }
+
+    /**
+     * Called after a successful commit. The entity manager is kept open if
+     * caching is enabled.
+     */
+    private void release(EntityManager em) {
+        if (cache == null)
+            em.close();
+    }
+
+    /**
+     * Called after a rollback. Any cached state is dropped.
+     */
+    private void discard(EntityManager em) {
+        if (cache != null)
+            cache.close();
+        if (em != null && em.isOpen())
+            em.close();
+    }
+
+    private void enqueue(Signal<?> signal) {
+        PendingSignal p = new PendingSignal(signal);
+        if (isCoalescible(signal)) {
+            PendingSignal previous = coalescing.put(signal.getEvent().getClass(), p);
+            if (previous != null) {
+                processed(previous.signal);
+                p.supersede(previous);
+                // the superseded signal is done with as far as RootActor is
+                // concerned
+                getContext().parent().tell(new CloseEntityActor(entityUniqueId), getSelf());
+            }
+        }
+        pending.add(p);
+        // signals that arrive before the ProcessPendingSignals message is
+        // received are picked up in the same transaction
+        if (!processScheduled) {
+            processScheduled = true;
+            getSelf().tell(ProcessPendingSignals.INSTANCE, getSelf());
+        }
+    }
+
+    private void processPending() {
+        processScheduled = false;
+        PendingSignal next = poll();
+        // repeating signals keep their queued row and coalescible signals may
+        // have been replaced in the store so both are processed on their own
+        if (next != null && !isBatchable(next.signal))
+            handleMessage(next.signal, next.supersededIds);
+        else if (next != null) {
+            List<Signal<?>> batch = Lists.newArrayList();
+            batch.add(next.signal);
+            while (batch.size() < maxSignalsPerTransaction && peek() != null
+                    && isBatchable(peek().signal))
+                batch.add(poll().signal);
+            if (batch.size() == 1)
+                handleMessage(batch.get(0));
+            else
+                handleBatch(batch);
+        }
+        if (peek() != null) {
+            processScheduled = true;
+            getSelf().tell(ProcessPendingSignals.INSTANCE, getSelf());
+        }
+    }
+
+    /**
+     * Returns the next pending signal that has not been superseded, or null.
+     */
+    private PendingSignal peek() {
+        while (!pending.isEmpty() && pending.peek().signal == null)
+            pending.poll();
+        return pending.peek();
+    }
+
+    private PendingSignal poll() {
+        PendingSignal p = peek();
+        if (p != null) {
+            pending.poll();
+            Class<?> eventClass = p.signal.getEvent().getClass();
+            if (coalescing.get(eventClass) == p)
+                coalescing.remove(eventClass);
         }
+        return p;
     }
 
+    private static boolean isRepeating(Signal<?> signal) {
+        return signal.getRepeatInterval().isPresent();
+    }
+
+    private static boolean isCoalescible(Signal<?> signal) {
+        return signal.getEvent() instanceof CoalescibleEvent && !isRepeating(signal);
+    }
+
+    private static boolean isBatchable(Signal<?> signal) {
+        return !isRepeating(signal) && !isCoalescible(signal);
+    }
+
+    /**
+     * Applies the signals in order to the entity in a single transaction and
+     * removes their persisted copies with one delete statement. If anything
+     * goes wrong the transaction is rolled back and each signal is processed
+     * in its own transaction so that a failure is attributed to the right
+     * signal.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void handleBatch(List<Signal<?>> signals) {
+        if (emf == null)
+            return;
+        EntityManager em = null;
+        EntityTransaction tx = null;
+        Entity<?> entity = null;
+        boolean committed = false;
+        List<String> ids = Lists.newArrayListWithCapacity(signals.size());
+        try {
+            for (Signal<?> signal : signals)
+                listener.beforeProcessing(signal, this);
+            em = createEntityManager();
+            tx = em.getTransaction();
+            begin(tx);
+            for (Signal<?> signal : signals)
+                ids.add(signal.getId());
+            int countDeleted = store.remove(em, ids);
+            if (countDeleted != signals.size())
+                throw new RuntimeException("expected to delete " + signals.size()
+                        + " queued signals but deleted " + countDeleted);
+            Signal first = signals.get(0);
+            entity = find(em, first);
+            entity.helper().setEntityManager(em);
+            for (Signal signal : signals) {
+                log.debug("calling event {} on entity id = {}",
+                        signal.getEvent().getClass().getSimpleName(), signal.getEntityId());
+                entity.event(signal.getEvent());
+            }
+            tx.commit();
+            committed = true;
+            log.debug("committed {} signals", signals.size());
+            store.acknowledge(ids);
+            for (Signal<?> signal : signals)
+                listener.afterProcessing(signal, this);
+            release(em);
+            entity.helper().setEntityManager(null);
+            // only after successful commit do we send the signals to other
+            // entities made during onEntry procedures.
+            entity.helper().sendQueuedSignals();
+        } catch (RuntimeException e) {
+            if (committed) {
+                // don't reprocess signals that have been committed
+                handleException(signals.get(signals.size() - 1), em, tx, e, true);
+            } else {
+                log.warning("batch of {} signals failed, processing individually: {}",
+                        signals.size(), e.getMessage());
+                if (tx != null && tx.isActive())
+                    tx.rollback();
+                discard(em);
+                for (Signal<?> signal : signals)
+                    handleMessage(signal);
+                return;
+            }
+        } finally {
+            if (entity != null)
+                entity.helper().setEntityManager(null);
+        }
+        for (Signal<?> signal : signals) {
+            processed(signal);
+            getContext().parent().tell(new CloseEntityActor(signal.getEntityUniqueId()),
+                    getSelf());
+        }
+    }
+
+    private void processed(Signal<?> signal) {
+        if (metrics != null)
+            metrics.processed(signal);
+        if (limiter != null)
+            limiter.processed(signal);
+    }
+
+    private void handleMessage(Signal<?> signal) {
+        handleMessage(signal, Collections.<String> emptyList());
+    }
+
+    /**
+     * Processes the signal in its own transaction.
+     * 
+     * @param signal
+     * @param supersededIds
+     *            ids of coalescible signals replaced by this one, their stored
+     *            copies are removed with it
+     */
     @SuppressWarnings("unchecked")
-    private void handleMessage(@SuppressWarnings("rawtypes") Signal signal) {
+    private void handleMessage(@SuppressWarnings("rawtypes") Signal signal,
+            List<String> supersededIds) {
         if (emf != null) {
             // perform the event on the entity after it has been
             // loaded by a new EntityManager
             EntityManager em = null;
             EntityTransaction tx = null;
             Entity<?> entity = null;
+            boolean committed = false;
             try {
                 listener.beforeProcessing(signal, this);
-                em = emf.createEntityManager();
+                em = createEntityManager();
                 tx = em.getTransaction();
-                tx.begin();
+                begin(tx);
                 log.debug("started transaction");
-                entity = (Entity<?>) em.find(signal.getEntityClass(), signal.getEntityId());
-                log.debug("calling event {} on entity id = ",
+                boolean coalescible = isCoalescible(signal);
+                List<String> ids = Lists.newArrayList(supersededIds);
+                ids.add(signal.getId());
+                if (coalescible && store.remove(em, ids) == 0) {
+                    // replaced in the store by a later signal that is yet to
+                    // arrive
+                    log.debug("signal {} superseded", signal.getId());
+                    tx.rollback();
+                    release(em);
+                    listener.afterProcessing(signal, this);
+                    return;
+                }
+                entity = find(em, signal);
+                log.debug("calling event {} on entity id = {}",
                         signal.getEvent().getClass().getSimpleName(), signal.getEntityId());
                 entity.helper().setEntityManager(em);
                 entity.event(signal.getEvent());
-                log.debug("removing signal from persistence signalId={}, entityId={}",
-                        signal.getId(), signal.getEntityId());
-                int countDeleted = em
-                        .createQuery("delete from " + QueuedSignal.class.getSimpleName()
-                                + " where id=:id")
-                        .setParameter("id", signal.getId()).executeUpdate();
-                if (countDeleted == 0) {
-                    throw new RuntimeException("queued signal not deleted: " + signal.getId());
+                if (!coalescible) {
+                    log.debug("removing signal from persistence signalId={}, entityId={}",
+                            signal.getId(), signal.getEntityId());
+                    int countDeleted = removeQueuedSignal(em, signal);
+                    if (countDeleted == 0) {
+                        throw new RuntimeException(
+                                "queued signal not deleted: " + signal.getId());
+                    }
                 }
                 tx.commit();
+                committed = true;
                 log.debug("committed");
+                if (!isRepeating(signal))
+                    store.acknowledge(ids);
                 listener.afterProcessing(signal, this);
-                em.close();
+                release(em);
                 entity.helper().setEntityManager(null);
                 // only after successful commit do we send the signals to other
                 // entities made during onEntry procedure.
                 entity.helper().sendQueuedSignals();
             } catch (RuntimeException e) {
-                handleException(signal, em, tx, e);
+                handleException(signal, em, tx, e, committed);
             } finally {
                 // in case this entity is reused make sure its entity manager is
                 // cleared
                 if (entity != null) {
                     entity.helper().setEntityManager(null);
                 }
+                processed(signal);
                 // give RootActor a chance to dispose of this actor
-                getSender().tell(new CloseEntityActor(signal.getEntityUniqueId()), getSelf());
+                getContext().parent().tell(new CloseEntityActor(signal.getEntityUniqueId()),
+                        getSelf());
             }
         }
     }
 
+    /**
+     * Removes the stored copy of the signal. A repeating signal is kept with
+     * its time moved on to the next repeat.
+     */
+    private int removeQueuedSignal(EntityManager em, Signal<?> signal) {
+        if (isRepeating(signal))
+            return store.reschedule(em, signal.getId(),
+                    signal.getTime() + signal.getRepeatInterval().get().toMillis());
+        else
+            return store.remove(em, Collections.singletonList(signal.getId()));
+    }
+
+    /**
+     * Rolls back and notifies the listener. Unless the signal had already
+     * been committed the failure is passed on to be retried or dead lettered.
+     */
     private void handleException(@SuppressWarnings("rawtypes") Signal signal, EntityManager em,
-            EntityTransaction tx, RuntimeException e) {
+            EntityTransaction tx, RuntimeException e, boolean committed) {
         try {
             if (tx != null && tx.isActive()) {
                 tx.rollback();
             }
-            if (em != null && em.isOpen()) {
-                em.close();
-            }
+            discard(em);
             listener.failure(signal, e, this);
         } catch (RuntimeException e2) {
             log.error(e2.getMessage(), e2);
             throw e;
+        } finally {
+            if (!committed && failureHandler != null)
+                handleFailure(signal, e);
+        }
+    }
+
+    private void handleFailure(Signal<?> signal, RuntimeException e) {
+        try {
+            failureHandler.failed(signal, e);
+        } catch (RuntimeException e2) {
+            // the signal is still stored so will be retried on restart
+            log.error(e2, "could not record failure of signal {}", signal.getId());
         }
     }
 
     private void handleMessage(EntityManagerFactory message) {
         this.emf = message;
+        if (cacheEnabled)
+            cache = new EntityCache(message, cacheVerifyUnversioned);
+    }
+
+    private static final class PendingSignal {
+        // null once superseded by a later coalescible signal
+        Signal<?> signal;
+        List<String> supersededIds = Collections.emptyList();
+
+        PendingSignal(Signal<?> signal) {
+            this.signal = signal;
+        }
+
+        void supersede(PendingSignal previous) {
+            supersededIds = Lists.newArrayList(previous.supersededIds);
+            supersededIds.add(previous.signal.getId());
+            previous.signal = null;
+        }
+    }
+
+    static final class ProcessPendingSignals {
+        static final ProcessPendingSignals INSTANCE = new ProcessPendingSignals();
     }
 
 }
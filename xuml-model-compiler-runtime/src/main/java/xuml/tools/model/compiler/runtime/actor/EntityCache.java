@@ -0,0 +1,171 @@
+package xuml.tools.model.compiler.runtime.actor;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+import com.google.common.base.Objects;
+
+import xuml.tools.model.compiler.runtime.Entity;
+
+/**
+ * Keeps the {@link EntityManager} used to process a signal open after commit
+ * so that the entity (and anything it has loaded such as to-one
+ * relationships) stays managed for the next signal to the same entity. Used
+ * only by {@link EntityActor} so is confined to the actor's thread of
+ * execution.
+ *
+ * Before a cached entity is reused the version attribute of the entity and
+ * of each related entity it has loaded through a to-one relationship is
+ * compared with the database. If any has been written by someone else the
+ * persistence context is cleared and the entity reloaded. An entity without a
+ * version attribute (generate entities with a version column when caching)
+ * forces the reload unless {@code verifyUnversioned} is false.
+ */
+final class EntityCache {
+
+    private final EntityManagerFactory emf;
+    private final boolean verifyUnversioned;
+    private EntityManager em;
+    private Entity<?> entity;
+
+    EntityCache(EntityManagerFactory emf, boolean verifyUnversioned) {
+        this.emf = emf;
+        this.verifyUnversioned = verifyUnversioned;
+    }
+
+    EntityManager entityManager() {
+        if (em == null || !em.isOpen())
+            em = emf.createEntityManager();
+        return em;
+    }
+
+    /**
+     * Returns the entity with the given id, reusing the cached instance if it
+     * is still current. Must be called with a transaction active on
+     * {@link #entityManager()}.
+     *
+     * @param cls
+     * @param id
+     * @return
+     */
+    <T> Entity<?> find(Class<T> cls, Object id) {
+        EntityManager em = entityManager();
+        if (entity != null && cls.isInstance(entity) && Objects.equal(entity.getId(), id)
+                && em.contains(entity) && !isStale(em, entity))
+            return entity;
+        // load the current state from the database
+        em.clear();
+        entity = (Entity<?>) em.find(cls, id);
+        return entity;
+    }
+
+    /**
+     * Discards the cached state, for example after a rollback when the
+     * persistence context can no longer be trusted.
+     */
+    void invalidate() {
+        entity = null;
+        if (em != null && em.isOpen())
+            em.clear();
+    }
+
+    void close() {
+        entity = null;
+        if (em != null && em.isOpen())
+            em.close();
+        em = null;
+    }
+
+    private boolean isStale(EntityManager em, Entity<?> entity) {
+        if (isStale(em, (Object) entity))
+            return true;
+        // the related entities loaded with it are reused too
+        PersistenceUnitUtil util = emf.getPersistenceUnitUtil();
+        EntityType<?> type = entityType(em, entity);
+        for (SingularAttribute<?, ?> attribute : type.getSingularAttributes())
+            if (attribute.isAssociation() && util.isLoaded(entity, attribute.getName())) {
+                Object related = getValue(attribute, entity);
+                // an uninitialized lazy proxy holds no state to go stale
+                if (related != null && util.isLoaded(related) && em.contains(related)
+                        && isStale(em, related))
+                    return true;
+            }
+        return false;
+    }
+
+    private boolean isStale(EntityManager em, Object entity) {
+        EntityType<?> type = entityType(em, entity);
+        SingularAttribute<?, ?> version = null;
+        for (SingularAttribute<?, ?> attribute : type.getSingularAttributes())
+            if (attribute.isVersion())
+                version = attribute;
+        if (version == null)
+            return verifyUnversioned;
+        List<?> list = em
+                .createQuery("select e." + version.getName() + " from " + type.getName()
+                        + " e where e = :e")
+                .setParameter("e", entity).getResultList();
+        return list.isEmpty() || !Objects.equal(list.get(0), getValue(version, entity));
+    }
+
+    /**
+     * Returns the entity type of the object, which may be a lazy loading proxy
+     * subclassing the entity class.
+     */
+    private static EntityType<?> entityType(EntityManager em, Object entity) {
+        Class<?> cls = entity.getClass();
+        while (true) {
+            try {
+                return em.getMetamodel().entity(cls);
+            } catch (IllegalArgumentException e) {
+                if (cls.getSuperclass() == null || cls.getSuperclass() == Object.class)
+                    throw e;
+                cls = cls.getSuperclass();
+            }
+        }
+    }
+
+    private static Object getValue(SingularAttribute<?, ?> attribute, Object object) {
+        Member member = attribute.getJavaMember();
+        try {
+            if (member instanceof Field && member.getDeclaringClass() != object.getClass()) {
+                // the fields of a proxy are not set so use the getter which
+                // the proxy delegates to the loaded entity
+                Method getter = getter(object.getClass(), attribute.getName());
+                if (getter != null)
+                    return getter.invoke(object);
+            }
+            if (member instanceof Field) {
+                Field field = (Field) member;
+                field.setAccessible(true);
+                return field.get(object);
+            } else {
+                Method method = (Method) member;
+                method.setAccessible(true);
+                return method.invoke(object);
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Method getter(Class<?> cls, String name) {
+        try {
+            return cls.getMethod("get" + Character.toUpperCase(name.charAt(0)) + name.substring(1));
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+}
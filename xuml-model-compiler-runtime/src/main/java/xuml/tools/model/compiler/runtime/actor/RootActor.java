@@ -1,31 +1,71 @@
 package xuml.tools.model.compiler.runtime.actor;
 
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityManagerFactory;
 
-import com.google.common.collect.Maps;
-
 import akka.actor.ActorRef;
 import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+import xuml.tools.model.compiler.runtime.ConcurrencyGovernor;
+import xuml.tools.model.compiler.runtime.MailboxLimiter;
+import xuml.tools.model.compiler.runtime.SignalFailureHandler;
 import xuml.tools.model.compiler.runtime.SignalProcessorListenerFactory;
+import xuml.tools.model.compiler.runtime.SignalStore;
+import xuml.tools.model.compiler.runtime.SignallerMetrics;
 import xuml.tools.model.compiler.runtime.message.ActorConfig;
 import xuml.tools.model.compiler.runtime.message.CloseEntityActor;
+import xuml.tools.model.compiler.runtime.message.EntityActorIdle;
 import xuml.tools.model.compiler.runtime.message.Signal;
 import xuml.tools.model.compiler.runtime.message.StopEntityActor;
 
 public class RootActor extends UntypedActor {
 
     private EntityManagerFactory emf;
-    private final HashMap<String, ActorInfo> actors = Maps.newHashMap();
+    private SignalStore store;
+    // in access order so that the least recently used actor comes first
+    private final LinkedHashMap<String, ActorInfo> actors = new LinkedHashMap<String, ActorInfo>(
+            16, 0.75f, true);
     private final LoggingAdapter log;
     private SignalProcessorListenerFactory listenerFactory;
+    // limits concurrent entity transactions, shared by all entity actors
+    private ConcurrencyGovernor governor;
+    private SignallerMetrics metrics;
+    private SignalFailureHandler failureHandler;
+    private MailboxLimiter limiter;
+    // number of signals sent to this actor not yet dispatched, may be null
+    private final AtomicLong mailboxDepth;
+    // if true entity actors with nothing pending are kept until they report
+    // being idle rather than stopped straight away
+    private final boolean passivateWhenIdle;
+    // total across all root actors, 0 for no limit
+    private final int maxLiveActors;
 
     public RootActor() {
+        this(null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param mailboxDepth
+     *            decremented as each signal is received, the sender is
+     *            expected to increment it before sending
+     */
+    public RootActor(AtomicLong mailboxDepth) {
         log = Logging.getLogger(getContext().system(), this);
+        this.mailboxDepth = mailboxDepth;
+        Config config = getContext().system().settings().config()
+                .getConfig("xuml.entity.passivation");
+        this.passivateWhenIdle = config.getDuration("idle-timeout", TimeUnit.MILLISECONDS) > 0;
+        this.maxLiveActors = config.getInt("max-live-actors");
     }
 
     @Override
@@ -35,25 +75,48 @@ public class RootActor extends UntypedActor {
             handleMessage((ActorConfig) message);
         } else if (message instanceof EntityManagerFactory)
             handleMessage((EntityManagerFactory) message);
+        else if (message instanceof SignalStore)
+            store = (SignalStore) message;
         else if (message instanceof SignalProcessorListenerFactory)
             listenerFactory = (SignalProcessorListenerFactory) message;
         else if (message instanceof Signal)
             handleMessage((Signal<?>) message);
         else if (message instanceof CloseEntityActor)
             handleMessage((CloseEntityActor) message);
+        else if (message instanceof EntityActorIdle)
+            handleMessage((EntityActorIdle) message);
     }
 
     private void handleMessage(ActorConfig message) {
+        // the pool size is applied to the entity dispatcher by Signaller
+        governor = message.getGovernor();
+        metrics = message.getMetrics();
+        failureHandler = message.getFailureHandler();
+        limiter = message.getLimiter();
     }
 
     private void handleMessage(CloseEntityActor message) {
         String key = message.getEntityUniqueId();
-        ActorInfo info = actors.remove(key);
-        if (info.counter > 1) {
+        ActorInfo info = actors.get(key);
+        if (info == null)
+            return;
+        else if (info.counter > 1 || passivateWhenIdle) {
             actors.put(key, info.decrement());
         } else {
             // when the counter gets down to 1 we stop the entity actor
-            info.actor.tell(new StopEntityActor(), getSelf());
+            actors.remove(key);
+            passivate(info);
+        }
+    }
+
+    private void handleMessage(EntityActorIdle message) {
+        String key = message.getEntityUniqueId();
+        ActorInfo info = actors.get(key);
+        // only stop the actor if no signals have been sent to it since it
+        // went idle
+        if (info != null && info.counter == 0 && info.actor.equals(getSender())) {
+            actors.remove(key);
+            passivate(info);
         }
     }
 
@@ -62,6 +125,8 @@ public class RootActor extends UntypedActor {
     }
 
     private void handleMessage(Signal<?> message) {
+        if (mailboxDepth != null)
+            mailboxDepth.decrementAndGet();
         String key = message.getEntityUniqueId();
         ActorRef actor = getActor(key);
         actor.tell(message, getSelf());
@@ -72,18 +137,58 @@ public class RootActor extends UntypedActor {
         if (info == null) {
             ActorRef actor = createActor(key);
             actors.put(key, new ActorInfo(actor, 1));
+            if (metrics != null)
+                metrics.actorCreated();
             actor.tell(emf, getSelf());
+            actor.tell(store, getSelf());
+            if (governor != null)
+                actor.tell(governor, getSelf());
+            if (metrics != null)
+                actor.tell(metrics, getSelf());
+            if (failureHandler != null)
+                actor.tell(failureHandler, getSelf());
+            if (limiter != null)
+                actor.tell(limiter, getSelf());
             if (listenerFactory != null)
                 actor.tell(listenerFactory.create(key), getSelf());
+            evictLeastRecentlyUsed();
+            return actor;
         } else {
             actors.put(key, info.increment());
+            return info.actor;
         }
-        return actors.get(key).actor;
+    }
+
+    /**
+     * Stops the least recently used actors that have no signals outstanding
+     * until this root actor's share of the live actor limit is met. Busy
+     * actors are left alone so the limit can be exceeded under load.
+     */
+    private void evictLeastRecentlyUsed() {
+        if (maxLiveActors <= 0)
+            return;
+        int shards = metrics == null ? 1 : metrics.getShardCount();
+        int max = Math.max(1, (maxLiveActors + shards - 1) / shards);
+        Iterator<Entry<String, ActorInfo>> it = actors.entrySet().iterator();
+        while (actors.size() > max && it.hasNext()) {
+            ActorInfo info = it.next().getValue();
+            if (info.counter == 0) {
+                it.remove();
+                passivate(info);
+            }
+        }
+    }
+
+    private void passivate(ActorInfo info) {
+        info.actor.tell(new StopEntityActor(), getSelf());
+        if (metrics != null)
+            metrics.actorPassivated();
     }
 
     private ActorRef createActor(String key) {
         return getContext()
-                .actorOf(Props.create(EntityActor.class).withDispatcher("akka.entity-dispatcher"));
+                .actorOf(Props.create(EntityActor.class).withDispatcher("akka.entity-dispatcher")
+                        .withMailbox(SignalPriorityMailbox.CONFIG_PATH));
     }
 
     private static final class ActorInfo {
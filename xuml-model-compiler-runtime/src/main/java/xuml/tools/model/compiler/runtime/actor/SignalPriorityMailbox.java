@@ -0,0 +1,84 @@
+package xuml.tools.model.compiler.runtime.actor;
+
+import java.util.Queue;
+
+import com.typesafe.config.Config;
+
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.Mailbox;
+import akka.dispatch.PriorityGenerator;
+import akka.dispatch.UnboundedStablePriorityMailbox;
+import xuml.tools.model.compiler.runtime.message.Signal;
+
+/**
+ * Mailbox for root and entity actors that delivers signals in the order sent
+ * whatever their priority, so that an entity always receives its signals in
+ * send order. An entity actor's request to process its pending signals is
+ * ordered with the signals so that a busy entity processes what it has
+ * received so far rather than first draining its whole mailbox. Other
+ * messages (configuration, actor lifecycle) are delivered ahead of signals.
+ * Priority applies across actors instead: the entity executor runs the
+ * actor with the highest priority signal at the head of its mailbox first
+ * (see {@link #headOrder(Runnable)}).
+ */
+public class SignalPriorityMailbox extends UnboundedStablePriorityMailbox {
+
+    public static final String CONFIG_PATH = "akka.signal-mailbox";
+
+    // signal priorities are clamped to this to keep clear of FIRST
+    private static final int MAX_PRIORITY = 1000000;
+    private static final int SIGNAL = 0;
+    private static final int FIRST = Integer.MIN_VALUE / 2;
+
+    private static final PriorityGenerator ORDER = new PriorityGenerator() {
+        @Override
+        public int gen(Object message) {
+            return order(message);
+        }
+    };
+
+    public SignalPriorityMailbox(ActorSystem.Settings settings, Config config) {
+        super(ORDER);
+    }
+
+    /**
+     * Returns the delivery order of the message, lower is delivered first.
+     * 
+     * @param message
+     * @return
+     */
+    public static int order(Object message) {
+        if (message instanceof Signal
+                || message instanceof EntityActor.ProcessPendingSignals)
+            // stable so these stay in send order
+            return SIGNAL;
+        else
+            return FIRST;
+    }
+
+    /**
+     * Returns the order in which an actor submitted to a dispatcher's executor
+     * should run relative to other actors, lower runs first. This is the
+     * negated priority of the signal at the head of its mailbox, or 0 if there
+     * is none or it is not known.
+     * 
+     * @param task
+     * @return
+     */
+    public static int headOrder(Runnable task) {
+        if (task instanceof Mailbox) {
+            Object queue = ((Mailbox) task).messageQueue();
+            if (queue instanceof Queue) {
+                Object head = ((Queue<?>) queue).peek();
+                if (head instanceof Envelope
+                        && ((Envelope) head).message() instanceof Signal) {
+                    int priority = ((Signal<?>) ((Envelope) head).message()).getPriority();
+                    return -Math.max(-MAX_PRIORITY, Math.min(MAX_PRIORITY, priority));
+                }
+            }
+        }
+        return 0;
+    }
+
+}
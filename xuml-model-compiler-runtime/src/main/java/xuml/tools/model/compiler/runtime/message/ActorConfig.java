@@ -2,16 +2,51 @@ package xuml.tools.model.compiler.runtime.message;
 
 import com.google.common.base.Preconditions;
 
+import xuml.tools.model.compiler.runtime.ConcurrencyGovernor;
+import xuml.tools.model.compiler.runtime.MailboxLimiter;
+import xuml.tools.model.compiler.runtime.SignalFailureHandler;
+import xuml.tools.model.compiler.runtime.SignallerMetrics;
+
 public final class ActorConfig {
 
     private final int entityActoryPoolSize;
+    private final ConcurrencyGovernor governor;
+    private final SignallerMetrics metrics;
+    private final SignalFailureHandler failureHandler;
+    private final MailboxLimiter limiter;
 
-    public ActorConfig(int entityActoryPoolSize) {
+    public ActorConfig(int entityActoryPoolSize, ConcurrencyGovernor governor,
+            SignallerMetrics metrics, SignalFailureHandler failureHandler,
+            MailboxLimiter limiter) {
         Preconditions.checkArgument(entityActoryPoolSize > 0, "pool size must be > 0");
+        Preconditions.checkNotNull(governor);
+        Preconditions.checkNotNull(metrics);
+        Preconditions.checkNotNull(failureHandler);
+        Preconditions.checkNotNull(limiter);
         this.entityActoryPoolSize = entityActoryPoolSize;
+        this.governor = governor;
+        this.metrics = metrics;
+        this.failureHandler = failureHandler;
+        this.limiter = limiter;
     }
 
     public int getEntityActoryPoolSize() {
         return entityActoryPoolSize;
     }
+
+    public ConcurrencyGovernor getGovernor() {
+        return governor;
+    }
+
+    public SignallerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public SignalFailureHandler getFailureHandler() {
+        return failureHandler;
+    }
+
+    public MailboxLimiter getLimiter() {
+        return limiter;
+    }
 }
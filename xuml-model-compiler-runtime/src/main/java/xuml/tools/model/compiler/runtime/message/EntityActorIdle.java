@@ -0,0 +1,18 @@
+package xuml.tools.model.compiler.runtime.message;
+
+/**
+ * Sent by an entity actor to its parent when it has received nothing for the
+ * configured idle period so that it can be passivated.
+ */
+public class EntityActorIdle {
+    private final String entityUniqueId;
+
+    public EntityActorIdle(String entityUniqueId) {
+        this.entityUniqueId = entityUniqueId;
+    }
+
+    public String getEntityUniqueId() {
+        return entityUniqueId;
+    }
+
+}
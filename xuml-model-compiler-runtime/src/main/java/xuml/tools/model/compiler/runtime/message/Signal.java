@@ -8,6 +8,7 @@ import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
 import xuml.tools.model.compiler.runtime.Entity;
 import xuml.tools.model.compiler.runtime.Event;
+import xuml.tools.model.compiler.runtime.PriorityEvent;
 
 public class Signal<T> {
 
@@ -20,6 +21,7 @@ public class Signal<T> {
     private final String fromEntityUniqueId;
     private final Serializable entityId;
     private final String entityUniqueId;
+    private final int priority;
 
     public Signal(String fromEntityUniqueId, Class<Entity<T>> entityClass, Event<T> event,
             String id, Long timeMs, Optional<FiniteDuration> repeatInterval, Serializable entityId,
@@ -34,11 +36,26 @@ public class Signal<T> {
         this.repeatInterval = repeatInterval;
         this.entityId = entityId;
         this.entityUniqueId = entityUniqueId;
+        this.priority = priority(event);
+    }
+
+    /**
+     * Returns the priority of signals carrying the event.
+     * 
+     * @param event
+     * @return
+     */
+    public static int priority(Event<?> event) {
+        if (event instanceof PriorityEvent)
+            return ((PriorityEvent<?>) event).priority();
+        else
+            return 0;
     }
 
     public Signal(String fromEntityUniqueId, Class<Entity<T>> entityClass, Event<T> event,
             String id, Long timeMs, Serializable entityId, String entityUniqueId) {
-        this(fromEntityUniqueId, entityClass, event, id, timeMs, null, entityId, entityUniqueId);
+        this(fromEntityUniqueId, entityClass, event, id, timeMs,
+                Optional.<FiniteDuration> absent(), entityId, entityUniqueId);
     }
 
     public Signal(String fromEntityUniqueId, Class<Entity<T>> entityClass, Event<T> event,
@@ -92,6 +109,15 @@ public class Signal<T> {
         return entityUniqueId;
     }
 
+    /**
+     * Returns the priority, higher is processed sooner.
+     * 
+     * @return
+     */
+    public int getPriority() {
+        return priority;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -105,6 +131,8 @@ public class Signal<T> {
         builder.append(timeMs);
         builder.append(", repeatInterval=");
         builder.append(repeatInterval);
+        builder.append(", priority=");
+        builder.append(priority);
         builder.append("]");
         return builder.toString();
     }
@@ -0,0 +1,217 @@
+package xuml.tools.model.compiler.runtime.timer;
+
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Hierarchical timing wheel. Level 0 has {@code wheelSize} buckets each one
+ * tick wide, and each level above covers {@code wheelSize} times the span of
+ * the level below. Timers are placed in the lowest level that can hold them
+ * and are cascaded down as time advances. Scheduling and cancelling are O(1),
+ * and an expired timer is unlinked from the wheel as it is returned.
+ *
+ * Not thread-safe, callers must synchronize.
+ *
+ * @param <T>
+ *            payload type
+ */
+public final class TimerWheel<T> {
+
+    private final long tickMs;
+    private final int bits;
+    private final int mask;
+    private final Bucket<T>[][] levels;
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMs, int wheelSize, int numLevels, long startTimeMs) {
+        Preconditions.checkArgument(tickMs > 0, "tickMs must be > 0");
+        Preconditions.checkArgument(wheelSize > 1 && Integer.bitCount(wheelSize) == 1,
+                "wheelSize must be a power of 2");
+        Preconditions.checkArgument(numLevels > 0, "numLevels must be > 0");
+        Preconditions.checkArgument(
+                (long) Integer.numberOfTrailingZeros(wheelSize) * numLevels < 63,
+                "wheelSize and numLevels too large");
+        this.tickMs = tickMs;
+        this.bits = Integer.numberOfTrailingZeros(wheelSize);
+        this.mask = wheelSize - 1;
+        this.levels = new Bucket[numLevels][wheelSize];
+        for (int i = 0; i < numLevels; i++)
+            for (int j = 0; j < wheelSize; j++)
+                levels[i][j] = new Bucket<T>();
+        this.currentTick = startTimeMs / tickMs;
+    }
+
+    /**
+     * Adds a timer that expires at the given epoch time. A time in the past
+     * expires on the next tick.
+     *
+     * @param timeMs
+     * @param payload
+     * @return handle that can be used to cancel the timer
+     */
+    public Timeout<T> schedule(long timeMs, T payload) {
+        Timeout<T> timeout = new Timeout<T>(timeMs, ceilDiv(timeMs, tickMs), payload);
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Removes the timer from the wheel.
+     *
+     * @param timeout
+     * @return false if the timer had already expired or been cancelled
+     */
+    public boolean cancel(Timeout<T> timeout) {
+        if (timeout.bucket == null)
+            return false;
+        timeout.bucket.remove(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the given epoch time adding the payloads of all
+     * timers that have expired to {@code expired} (in order of expiry tick).
+     *
+     * @param nowMs
+     * @param expired
+     */
+    public void advance(long nowMs, List<? super T> expired) {
+        long targetTick = nowMs / tickMs;
+        if (size == 0) {
+            // nothing to cascade so jump straight there
+            currentTick = Math.max(currentTick, targetTick);
+            return;
+        }
+        while (currentTick < targetTick) {
+            currentTick++;
+            // cascade from the highest level whose bucket boundary we have
+            // just crossed
+            for (int level = levels.length - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (bits * level)) - 1)) == 0)
+                    cascade(levels[level][index(currentTick, level)], expired);
+            }
+            cascade(levels[0][index(currentTick, 0)], expired);
+            if (size == 0) {
+                currentTick = targetTick;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of timers in the wheel.
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    private void cascade(Bucket<T> bucket, List<? super T> expired) {
+        Timeout<T> t = bucket.head;
+        bucket.head = null;
+        while (t != null) {
+            Timeout<T> next = t.next;
+            t.next = null;
+            t.prev = null;
+            t.bucket = null;
+            if (t.tick <= currentTick) {
+                size--;
+                expired.add(t.payload);
+            } else
+                place(t);
+            t = next;
+        }
+    }
+
+    private void place(Timeout<T> timeout) {
+        long tick = Math.max(timeout.tick, currentTick + 1);
+        long delta = tick - currentTick;
+        int level = 0;
+        while (level < levels.length - 1 && delta >= (1L << (bits * (level + 1))))
+            level++;
+        // timers beyond the top level are parked in the furthest top level
+        // bucket and re-placed when it is cascaded
+        long maxDelta = 1L << (bits * (level + 1));
+        if (delta >= maxDelta)
+            tick = currentTick + maxDelta - (1L << (bits * level));
+        levels[level][index(tick, level)].add(timeout);
+    }
+
+    private int index(long tick, int level) {
+        return (int) ((tick >>> (bits * level)) & mask);
+    }
+
+    private static long ceilDiv(long a, long b) {
+        return -Math.floorDiv(-a, b);
+    }
+
+    /**
+     * Handle to a scheduled timer.
+     *
+     * @param <T>
+     */
+    public static final class Timeout<T> {
+
+        private final long timeMs;
+        private final long tick;
+        private final T payload;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+        private Bucket<T> bucket;
+
+        private Timeout(long timeMs, long tick, T payload) {
+            this.timeMs = timeMs;
+            this.tick = tick;
+            this.payload = payload;
+        }
+
+        public long getTimeMs() {
+            return timeMs;
+        }
+
+        public T getPayload() {
+            return payload;
+        }
+
+        /**
+         * Returns true if the timer is still in the wheel.
+         *
+         * @return
+         */
+        public boolean isPending() {
+            return bucket != null;
+        }
+    }
+
+    private static final class Bucket<T> {
+        Timeout<T> head;
+
+        void add(Timeout<T> t) {
+            t.bucket = this;
+            t.prev = null;
+            t.next = head;
+            if (head != null)
+                head.prev = t;
+            head = t;
+        }
+
+        void remove(Timeout<T> t) {
+            if (t.prev != null)
+                t.prev.next = t.next;
+            else
+                head = t.next;
+            if (t.next != null)
+                t.next.prev = t.prev;
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+        }
+    }
+
+}
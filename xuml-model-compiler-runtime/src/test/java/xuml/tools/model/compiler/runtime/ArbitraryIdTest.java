@@ -1,10 +1,12 @@
 package xuml.tools.model.compiler.runtime;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
 import com.github.davidmoten.junit.Asserts;
+import com.typesafe.config.ConfigFactory;
 
 public class ArbitraryIdTest {
 
@@ -13,6 +15,21 @@ public class ArbitraryIdTest {
         assertEquals(32, ArbitraryId.next().length());
     }
 
+    @Test
+    public void testConfigureSelectsGenerator() {
+        try {
+            ArbitraryId.configure(ConfigFactory.parseString("generator = time-ordered\n"
+                    + "node-id = 5"));
+            String first = ArbitraryId.next();
+            assertEquals("0005", first.substring(12, 16));
+            assertTrue(ArbitraryId.next().compareTo(first) > 0);
+        } finally {
+            ArbitraryId.configure(ConfigFactory.parseString("generator = random\n"
+                    + "node-id = -1"));
+        }
+        assertEquals(32, ArbitraryId.next().length());
+    }
+
     @Test
     public void testConstructorIsPrivate() {
         Asserts.assertIsUtilityClass(ArbitraryId.class);
@@ -0,0 +1,77 @@
+package xuml.tools.model.compiler.runtime;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ConcurrencyGovernorTest {
+
+    @Test
+    public void testLimitDecreasesOnSlowConnectionsAndRecoversWhenSaturated() {
+        ConcurrencyGovernor g = new ConcurrencyGovernor(8, 2, true,
+                TimeUnit.MILLISECONDS.toNanos(5), 2, 0.5);
+        assertEquals(8, g.getLimit());
+        g.connectionWait(TimeUnit.MILLISECONDS.toNanos(20));
+        g.connectionWait(TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(4, g.getLimit());
+        assertEquals(20, g.getAverageConnectionWait(TimeUnit.MILLISECONDS));
+        g.connectionWait(TimeUnit.MILLISECONDS.toNanos(20));
+        g.connectionWait(TimeUnit.MILLISECONDS.toNanos(20));
+        g.connectionWait(TimeUnit.MILLISECONDS.toNanos(20));
+        g.connectionWait(TimeUnit.MILLISECONDS.toNanos(20));
+        // not below min
+        assertEquals(2, g.getLimit());
+
+        // fast connections but nothing waited for a permit
+        g.connectionWait(0);
+        g.connectionWait(0);
+        assertEquals(2, g.getLimit());
+
+        // fast connections and a transaction had to wait for a permit
+        g.acquire();
+        g.acquire();
+        assertEquals(2, g.getInFlight());
+        Thread t = new Thread(() -> {
+            g.acquire();
+            g.release();
+        });
+        t.start();
+        while (t.getState() != Thread.State.WAITING)
+            Thread.yield();
+        g.release();
+        g.release();
+        g.connectionWait(0);
+        g.connectionWait(0);
+        assertEquals(3, g.getLimit());
+    }
+
+    @Test
+    public void testWaitersAcquireInPriorityOrder() throws InterruptedException {
+        ConcurrencyGovernor g = new ConcurrencyGovernor(1, 1, false, 0, 2, 0.5);
+        g.acquire();
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int priority : new int[] { 0, 3, 1, 3 }) {
+            Thread t = new Thread(() -> {
+                g.acquire(priority);
+                order.add(priority);
+                g.release();
+            });
+            t.start();
+            while (t.getState() != Thread.State.WAITING)
+                Thread.yield();
+            threads.add(t);
+        }
+        g.release();
+        for (Thread t : threads)
+            t.join();
+        assertEquals(Arrays.asList(3, 3, 1, 0), order);
+    }
+
+}
@@ -0,0 +1,105 @@
+package xuml.tools.model.compiler.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static xuml.tools.model.compiler.runtime.TestEntity.waitFor;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import scala.concurrent.duration.Duration;
+import xuml.tools.model.compiler.runtime.TestEntity.CoalescibleTestEvent;
+import xuml.tools.model.compiler.runtime.TestEntity.TestEvent;
+
+public class DelayedSignalSchedulerTest {
+
+    private static final String SHORT_HORIZON = "xuml.timer.horizon = 200ms";
+
+    @Test
+    public void testCancelSignalDueBeyondHorizon() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, SHORT_HORIZON);
+        try {
+            TestEntity entity = TestEntity.get("1");
+            entity.signal(new TestEvent("a"), Duration.create(1, "s"));
+            // stored but not held in memory yet
+            assertEquals(1, signaller.queueSize());
+            // sent from outside any entity
+            signaller.cancelSignal("Unknown", entity, "a");
+            assertEquals(0, signaller.queueSize());
+            // still not processed once due
+            Thread.sleep(1500);
+            assertEquals(Collections.<String> emptyList(), TestEntity.processed);
+        } finally {
+            close(signaller);
+        }
+    }
+
+    @Test
+    public void testSignalReplacesPendingSignalDueBeyondHorizon() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, SHORT_HORIZON);
+        try {
+            TestEntity entity = TestEntity.get("1");
+            entity.signal(new TestEvent("a"), Duration.create(1, "s"));
+            // replaces the first though it is due sooner
+            entity.signal(new TestEvent("a"), Duration.create(500, "ms"));
+            assertEquals(1, signaller.queueSize());
+            waitFor(() -> TestEntity.processed.size() == 1);
+            Thread.sleep(1000);
+            assertEquals(Arrays.asList("1:a"), TestEntity.processed);
+            assertEquals(0, signaller.queueSize());
+        } finally {
+            close(signaller);
+        }
+    }
+
+    @Test
+    public void testRetriedSignalPagedInDoesNotReplacePendingSignal() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf,
+                "xuml.timer.horizon = 1s\nxuml.signal.retry.initial-delay = 1100ms"
+                        + "\nxuml.signal.retry.max-attempts = 2");
+        try {
+            TestEntity entity = TestEntity.get("1");
+            // held in memory
+            entity.signal(new TestEvent("a"), Duration.create(900, "ms"));
+            // same key, fails and is retried beyond the horizon so it is
+            // paged in while the delayed signal is pending
+            entity.signal(new TestEvent("a", true));
+            waitFor(() -> TestEntity.processed.size() == 3);
+            Thread.sleep(500);
+            assertEquals(Arrays.asList("1:a", "1:a", "1:a"), TestEntity.processed);
+            assertEquals(0, signaller.queueSize());
+            assertEquals(1, signaller.deadLetters(null, 10).size());
+        } finally {
+            close(signaller);
+        }
+    }
+
+    @Test
+    public void testDelayedCoalescibleSignalReplacesEarlierOne() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, SHORT_HORIZON);
+        try {
+            TestEntity entity = TestEntity.get("1");
+            // different signatures so only coalescing replaces the first
+            entity.signal(new CoalescibleTestEvent("a"), Duration.create(100, "ms"));
+            entity.signal(new CoalescibleTestEvent("b"), Duration.create(400, "ms"));
+            assertEquals(1, signaller.queueSize());
+            waitFor(() -> TestEntity.processed.size() == 1);
+            Thread.sleep(500);
+            assertEquals(Arrays.asList("1:b"), TestEntity.processed);
+            assertEquals(0, signaller.queueSize());
+        } finally {
+            close(signaller);
+        }
+    }
+
+    private static void close(Signaller signaller) {
+        signaller.close();
+        signaller.stop();
+    }
+
+}
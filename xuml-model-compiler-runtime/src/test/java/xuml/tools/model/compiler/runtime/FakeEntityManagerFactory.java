@@ -0,0 +1,131 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+import com.google.common.collect.Lists;
+
+/**
+ * In-memory stand-in for an {@link EntityManagerFactory} that records the
+ * objects persisted by committed transactions. Only the transaction, persist,
+ * find, flush, clear and close operations are supported.
+ */
+public final class FakeEntityManagerFactory {
+
+    public final List<Object> committed = new CopyOnWriteArrayList<Object>();
+    public final List<Integer> commitSizes = new CopyOnWriteArrayList<Integer>();
+    public final AtomicInteger rollbacks = new AtomicInteger();
+    // a commit containing a matching object fails
+    public volatile Predicate<Object> failOn = o -> false;
+    // if not null a commit waits until it is counted down
+    public volatile CountDownLatch commitGate;
+    public final CountDownLatch firstCommitStarted = new CountDownLatch(1);
+    // answers find by entity class and id
+    public volatile BiFunction<Class<?>, Object, Object> finder = (cls, id) -> null;
+    public volatile boolean closed;
+
+    public EntityManagerFactory get() {
+        return proxy(EntityManagerFactory.class, (p, method, args) -> {
+            if (method.getName().equals("createEntityManager")) {
+                if (closed)
+                    throw new IllegalStateException("closed");
+                return new FakeEntityManager().get();
+            } else if (method.getName().equals("isOpen"))
+                return !closed;
+            else if (method.getName().equals("close")) {
+                closed = true;
+                return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    private final class FakeEntityManager {
+
+        private final List<Object> pending = Lists.newArrayList();
+        private boolean active;
+        private boolean open = true;
+
+        EntityManager get() {
+            EntityTransaction tx = proxy(EntityTransaction.class, (p, method, args) -> {
+                String name = method.getName();
+                if (name.equals("begin")) {
+                    active = true;
+                    pending.clear();
+                } else if (name.equals("commit"))
+                    commit();
+                else if (name.equals("rollback")) {
+                    active = false;
+                    pending.clear();
+                    rollbacks.incrementAndGet();
+                } else if (name.equals("isActive"))
+                    return active;
+                else
+                    throw new UnsupportedOperationException(name);
+                return null;
+            });
+            return proxy(EntityManager.class, (p, method, args) -> {
+                String name = method.getName();
+                if (name.equals("getTransaction"))
+                    return tx;
+                else if (name.equals("persist"))
+                    pending.add(args[0]);
+                else if (name.equals("find"))
+                    return finder.apply((Class<?>) args[0], args[1]);
+                else if (name.equals("close"))
+                    open = false;
+                else if (name.equals("isOpen"))
+                    return open;
+                else if (!name.equals("flush") && !name.equals("clear"))
+                    throw new UnsupportedOperationException(name);
+                return null;
+            });
+        }
+
+        private void commit() throws InterruptedException {
+            firstCommitStarted.countDown();
+            CountDownLatch gate = commitGate;
+            if (gate != null && !gate.await(10, TimeUnit.SECONDS))
+                throw new RuntimeException("timed out waiting for commit gate");
+            for (Object o : pending)
+                if (failOn.test(o))
+                    throw new RuntimeException("commit failed for " + o);
+            committed.addAll(pending);
+            commitSizes.add(pending.size());
+            pending.clear();
+            active = false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> cls, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(cls.getClassLoader(), new Class<?>[] { cls },
+                (p, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class)
+                        return objectMethod(p, method, args);
+                    return handler.invoke(p, method, args);
+                });
+    }
+
+    private static Object objectMethod(Object p, Method method, Object[] args) {
+        if (method.getName().equals("equals"))
+            return p == args[0];
+        else if (method.getName().equals("hashCode"))
+            return System.identityHashCode(p);
+        else
+            return "Fake" + p.getClass().getInterfaces()[0].getSimpleName();
+    }
+
+}
@@ -0,0 +1,129 @@
+package xuml.tools.model.compiler.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+public class GroupCommitSignalWriterTest {
+
+    @Test
+    public void testSignalsQueuedDuringACommitAreWrittenInOneBatch() throws Exception {
+        FakeEntityManagerFactory emf = new FakeEntityManagerFactory();
+        CountDownLatch gate = new CountDownLatch(1);
+        emf.commitGate = gate;
+        GroupCommitSignalWriter writer = new GroupCommitSignalWriter(emf.get(), 100, 10);
+        CompletableFuture<String> first = writer.submit(signal("Event"));
+        assertTrue(emf.firstCommitStarted.await(5, TimeUnit.SECONDS));
+        List<CompletableFuture<String>> futures = Lists.newArrayList();
+        for (int i = 0; i < 50; i++)
+            futures.add(writer.submit(signal("Event")));
+        assertTrue(!futures.get(0).isDone());
+        gate.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        for (CompletableFuture<String> f : futures)
+            f.get(5, TimeUnit.SECONDS);
+        assertEquals(Lists.newArrayList(1, 50), emf.commitSizes);
+        assertEquals(51, emf.committed.size());
+        writer.close();
+    }
+
+    @Test
+    public void testFailedBatchIsRetriedIndividually() throws Exception {
+        FakeEntityManagerFactory emf = new FakeEntityManagerFactory();
+        emf.failOn = o -> ((QueuedSignal) o).eventClassName.equals("Bad");
+        CountDownLatch gate = new CountDownLatch(1);
+        emf.commitGate = gate;
+        GroupCommitSignalWriter writer = new GroupCommitSignalWriter(emf.get(), 100, 10);
+        CompletableFuture<String> first = writer.submit(signal("Event"));
+        assertTrue(emf.firstCommitStarted.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> a = writer.submit(signal("Event"));
+        CompletableFuture<String> bad = writer.submit(signal("Bad"));
+        CompletableFuture<String> b = writer.submit(signal("Event"));
+        gate.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        a.get(5, TimeUnit.SECONDS);
+        b.get(5, TimeUnit.SECONDS);
+        try {
+            bad.get(5, TimeUnit.SECONDS);
+            throw new AssertionError("expected failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().startsWith("commit failed"));
+        }
+        // the batch of three failed then each was retried alone
+        assertEquals(2, emf.rollbacks.get());
+        assertEquals(Lists.newArrayList(1, 1, 1), emf.commitSizes);
+        assertEquals(3, emf.committed.size());
+        writer.close();
+    }
+
+    @Test
+    public void testCloseWritesQueuedSignalsAndRejectsLaterOnes() throws Exception {
+        FakeEntityManagerFactory emf = new FakeEntityManagerFactory();
+        CountDownLatch gate = new CountDownLatch(1);
+        emf.commitGate = gate;
+        GroupCommitSignalWriter writer = new GroupCommitSignalWriter(emf.get(), 100, 10);
+        CompletableFuture<String> first = writer.submit(signal("Event"));
+        assertTrue(emf.firstCommitStarted.await(5, TimeUnit.SECONDS));
+        List<CompletableFuture<String>> queued = Lists.newArrayList();
+        queued.add(writer.submit(signal("Event")));
+        Thread closer = new Thread(writer::close);
+        closer.start();
+        // submit until close stops the writer accepting signals
+        CompletableFuture<String> late;
+        long start = System.currentTimeMillis();
+        while (!(late = writer.submit(signal("Event"))).isDone()) {
+            queued.add(late);
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+        assertTrue(late.isCompletedExceptionally());
+        gate.countDown();
+        closer.join(5000);
+        first.get(5, TimeUnit.SECONDS);
+        // everything accepted before close was written
+        for (CompletableFuture<String> f : queued)
+            f.get(5, TimeUnit.SECONDS);
+        assertEquals(1 + queued.size(), emf.committed.size());
+    }
+
+    @Test
+    public void testSubmitRacingCloseAlwaysCompletes()
+            throws InterruptedException, TimeoutException {
+        for (int i = 0; i < 200; i++) {
+            FakeEntityManagerFactory emf = new FakeEntityManagerFactory();
+            GroupCommitSignalWriter writer = new GroupCommitSignalWriter(emf.get(), 100, 10);
+            List<CompletableFuture<String>> futures = new CopyOnWriteArrayList<>();
+            Thread submitter = new Thread(() -> {
+                for (int j = 0; j < 20; j++)
+                    futures.add(writer.submit(signal("Event")));
+            });
+            submitter.start();
+            writer.close();
+            submitter.join();
+            for (CompletableFuture<String> f : futures) {
+                try {
+                    f.get(5, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+        }
+    }
+
+    private static QueuedSignal signal(String eventClassName) {
+        return new QueuedSignal(String.class.getName(), new byte[] { 1 }, "Entity",
+                eventClassName, new byte[10], 1000, Optional.<Long> absent(), "from", "to");
+    }
+
+}
@@ -0,0 +1,44 @@
+package xuml.tools.model.compiler.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+
+public class JpaSignalStoreTest {
+
+    @Test
+    public void testPersistCommits() {
+        FakeEntityManagerFactory emf = new FakeEntityManagerFactory();
+        JpaSignalStore store = new JpaSignalStore(emf.get());
+        QueuedSignal signal = signal();
+        assertEquals(signal.id, store.persist(signal));
+        assertEquals(Collections.<Object> singletonList(signal), emf.committed);
+        assertEquals(0, emf.rollbacks.get());
+    }
+
+    @Test
+    public void testFailedCommitIsRolledBackAndRethrown() {
+        FakeEntityManagerFactory emf = new FakeEntityManagerFactory();
+        emf.failOn = o -> true;
+        JpaSignalStore store = new JpaSignalStore(emf.get());
+        try {
+            store.persist(signal());
+            throw new AssertionError("expected commit failure");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().startsWith("commit failed"));
+        }
+        assertEquals(0, emf.committed.size());
+        assertEquals(1, emf.rollbacks.get());
+    }
+
+    private static QueuedSignal signal() {
+        return new QueuedSignal(String.class.getName(), new byte[] { 1 }, "Entity", "Event",
+                new byte[10], 1000, Optional.<Long> absent(), "from", "to");
+    }
+
+}
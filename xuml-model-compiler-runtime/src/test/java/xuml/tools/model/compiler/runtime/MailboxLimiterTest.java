@@ -0,0 +1,148 @@
+package xuml.tools.model.compiler.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static xuml.tools.model.compiler.runtime.TestEntity.waitFor;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import xuml.tools.model.compiler.runtime.TestEntity.TestEvent;
+
+public class MailboxLimiterTest {
+
+    @Test
+    public void testFailPolicyRejectsSignalWithoutPersistingIt() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf,
+                "xuml.mailbox.entity-capacity = 1\nxuml.mailbox.overflow = fail");
+        try {
+            CountDownLatch gate = holdFirstSignal(emf, signaller);
+            try {
+                TestEntity.get("1").signal(new TestEvent("b"));
+                throw new AssertionError("expected MailboxFullException");
+            } catch (MailboxFullException e) {
+                // expected
+            }
+            assertEquals(1, signaller.getMetrics().getRejectedSignals());
+            assertEquals(1, signaller.queueSize());
+            // other entities are not affected
+            TestEntity.get("2").signal(new TestEvent("c"));
+            gate.countDown();
+            waitFor(() -> signaller.queueSize() == 0);
+            assertTrue(TestEntity.processed.containsAll(Arrays.asList("1:a", "2:c")));
+            assertEquals(2, TestEntity.processed.size());
+        } finally {
+            close(signaller);
+        }
+    }
+
+    @Test
+    public void testSpillPolicyDispatchesSpilledSignalsInOrderWhenThereIsRoom()
+            throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf,
+                "xuml.mailbox.entity-capacity = 1\nxuml.mailbox.overflow = spill");
+        try {
+            CountDownLatch gate = holdFirstSignal(emf, signaller);
+            TestEntity.get("1").signal(new TestEvent("b"));
+            TestEntity.get("1").signal(new TestEvent("c"));
+            assertEquals(2, signaller.getMetrics().getSpilledSignals());
+            assertEquals(3, signaller.queueSize());
+            gate.countDown();
+            waitFor(() -> signaller.queueSize() == 0);
+            assertEquals(Arrays.asList("1:a", "1:b", "1:c"), TestEntity.processed);
+            assertEquals(0, signaller.getMetrics().getSpilledSignals());
+        } finally {
+            close(signaller);
+        }
+    }
+
+    @Test
+    public void testBlockPolicyWaitsForRoom() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf,
+                "xuml.mailbox.entity-capacity = 1\nxuml.mailbox.overflow = block\n"
+                        + "xuml.mailbox.block-timeout = 10s");
+        try {
+            CountDownLatch gate = holdFirstSignal(emf, signaller);
+            Thread sender = new Thread(() -> TestEntity.get("1").signal(new TestEvent("b")));
+            sender.start();
+            // persisted then waiting for room
+            waitFor(() -> signaller.queueSize() == 2);
+            waitFor(() -> sender.getState() == Thread.State.TIMED_WAITING);
+            sender.join(100);
+            assertTrue(sender.isAlive());
+            gate.countDown();
+            sender.join(10000);
+            assertTrue(!sender.isAlive());
+            waitFor(() -> signaller.queueSize() == 0);
+            assertEquals(Arrays.asList("1:a", "1:b"), TestEntity.processed);
+            assertEquals(0, signaller.getMetrics().getSpilledSignals());
+        } finally {
+            close(signaller);
+        }
+    }
+
+    @Test
+    public void testBlockPolicySpillsAfterTimeout() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf,
+                "xuml.mailbox.entity-capacity = 1\nxuml.mailbox.overflow = block\n"
+                        + "xuml.mailbox.block-timeout = 100ms");
+        try {
+            CountDownLatch gate = holdFirstSignal(emf, signaller);
+            long start = System.currentTimeMillis();
+            TestEntity.get("1").signal(new TestEvent("b"));
+            assertTrue(System.currentTimeMillis() - start >= 100);
+            assertEquals(1, signaller.getMetrics().getSpilledSignals());
+            gate.countDown();
+            waitFor(() -> signaller.queueSize() == 0);
+            assertEquals(Arrays.asList("1:a", "1:b"), TestEntity.processed);
+        } finally {
+            close(signaller);
+        }
+    }
+
+    @Test
+    public void testNoCapacitySendsDirectlyWithoutTracking() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, "xuml.mailbox.overflow = fail");
+        try {
+            CountDownLatch gate = holdFirstSignal(emf, signaller);
+            TestEntity.get("1").signal(new TestEvent("b"));
+            TestEntity.get("1").signal(new TestEvent("c"));
+            assertEquals(0, signaller.getMetrics().getEntityMailboxOccupancy());
+            gate.countDown();
+            waitFor(() -> signaller.queueSize() == 0);
+            assertEquals(Arrays.asList("1:a", "1:b", "1:c"), TestEntity.processed);
+            assertEquals(0, signaller.getMetrics().getRejectedSignals());
+            assertEquals(0, signaller.getMetrics().getSpilledSignals());
+        } finally {
+            close(signaller);
+        }
+    }
+
+    /**
+     * Signals entity 1 and holds the transaction processing the signal open
+     * (so the entity's mailbox stays full) until the returned latch is counted
+     * down.
+     */
+    private static CountDownLatch holdFirstSignal(FakeEntityManagerFactory emf,
+            Signaller signaller) throws InterruptedException {
+        CountDownLatch gate = new CountDownLatch(1);
+        emf.commitGate = gate;
+        TestEntity.get("1").signal(new TestEvent("a"));
+        assertTrue(emf.firstCommitStarted.await(10, TimeUnit.SECONDS));
+        return gate;
+    }
+
+    private static void close(Signaller signaller) {
+        signaller.close();
+        signaller.stop();
+    }
+
+}
@@ -0,0 +1,198 @@
+package xuml.tools.model.compiler.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class MappedJournalSignalStoreTest {
+
+    @Test
+    public void testSignalsSurviveReopenAndCompaction() {
+        File directory = Files.createTempDir();
+        MappedJournalSignalStore store = createStore(directory);
+        List<String> ids = Lists.newArrayList();
+        for (int i = 0; i < 200; i++)
+            ids.add(store.persist(signal(1000 + i, i % 10 == 0 ? 50L : null)));
+        for (int i = 0; i < 150; i++)
+            store.acknowledge(Collections.singletonList(ids.get(i)));
+        assertEquals(1, store.reschedule(null, ids.get(190), 5));
+        store.close();
+
+        store = createStore(directory);
+        assertEquals(50, store.size());
+        assertEquals(5, store.queuedSignals(0, 2000, null, 1).get(0).time.getTime());
+        assertEquals(5, store.repeatingSignals(0, null, 100).size());
+        assertEquals(49, store.count(1100, 1200));
+        int segments = directory.listFiles().length;
+        store.compact();
+        assertTrue(directory.listFiles().length < segments);
+        store.close();
+
+        store = createStore(directory);
+        assertEquals(50, store.size());
+        List<QueuedSignal> page = store.queuedSignals(0, 5000, null, 10);
+        assertEquals(10, page.size());
+        assertEquals(40, store.queuedSignals(0, 5000, page.get(9), 100).size());
+        store.close();
+    }
+
+    @Test
+    public void testCoalesceReplacesPendingSignalToSameEntity() {
+        File directory = Files.createTempDir();
+        MappedJournalSignalStore store = createStore(directory);
+        String repeating = store.persist(signal(1000, 50L));
+        String first = store.coalesce(signal(1000, null));
+        String second = store.coalesce(signal(2000, null));
+        assertEquals(2, store.size());
+        assertEquals(0, store.remove(null, Collections.singletonList(first)));
+        assertEquals(1, store.remove(null, Collections.singletonList(repeating)));
+        store.coalesce(new QueuedSignal(String.class.getName(), new byte[] { 1 }, "Entity",
+                "Event", new byte[10], 3000, Optional.<Long> absent(), "from", "other"));
+        assertEquals(3, store.size());
+        store.acknowledge(Collections.singletonList(second));
+        assertEquals(2, store.size());
+        store.close();
+    }
+
+    @Test
+    public void testCoalesceReplacesLaterDueSignalAfterReopenAndCompaction() {
+        File directory = Files.createTempDir();
+        MappedJournalSignalStore store = createStore(directory);
+        String retrying = store.coalesce(signal(1000, null));
+        // a failure pushes it beyond the next signal's due time
+        store.failed(retrying, 1500, new SignalRetryPolicy(5, 10000, 2, 60000));
+        String plain = store.persist(signal(1000, null));
+        store.close();
+
+        store = createStore(directory);
+        String latest = store.coalesce(signal(2000, null));
+        assertEquals(null, store.queuedSignal(retrying));
+        assertEquals(2, store.size());
+        store.close();
+
+        store = createStore(directory);
+        store.compact();
+        store.close();
+
+        store = createStore(directory);
+        String replacement = store.coalesce(signal(3000, null));
+        assertEquals(null, store.queuedSignal(latest));
+        assertEquals(1000, store.queuedSignal(plain).time.getTime());
+        assertEquals(3000, store.queuedSignal(replacement).time.getTime());
+        assertEquals(2, store.size());
+        store.close();
+    }
+
+    @Test
+    public void testFailuresAndDeadLettersSurviveReopenAndCompaction() {
+        File directory = Files.createTempDir();
+        MappedJournalSignalStore store = createStore(directory);
+        SignalRetryPolicy policy = new SignalRetryPolicy(2, 100, 2, 1000);
+        String id = store.persist(signal(1000, null));
+        String other = store.persist(signal(1000, null));
+        QueuedSignal q = store.failed(id, 5000, policy);
+        assertEquals(1, q.numFailures);
+        assertEquals(5100, q.time.getTime());
+        q = store.failed(id, 6000, policy);
+        assertEquals(6200, q.time.getTime());
+        assertTrue(policy.isExhausted(q));
+        assertTrue(store.deadLetter(id, "boom"));
+        assertEquals(1, store.size());
+        store.acknowledge(Collections.singletonList(other));
+        store.close();
+
+        store = createStore(directory);
+        int segments = directory.listFiles().length;
+        store.compact();
+        assertTrue(directory.listFiles().length < segments);
+        store.close();
+
+        store = createStore(directory);
+        assertEquals(0, store.size());
+        List<DeadLetterSignal> deadLetters = store.deadLetters(null, 10);
+        assertEquals(1, deadLetters.size());
+        assertEquals(2, deadLetters.get(0).numFailures);
+        assertEquals(5000, deadLetters.get(0).timeFirstFailure.getTime());
+        assertEquals("boom", deadLetters.get(0).error);
+        q = store.redrive(id, 7000);
+        assertEquals(0, q.numFailures);
+        store.close();
+
+        store = createStore(directory);
+        assertEquals(1, store.size());
+        assertEquals(0, store.deadLetters(null, 10).size());
+        assertEquals(7000, store.queuedSignals(0, 10000, null, 10).get(0).time.getTime());
+        store.close();
+    }
+
+    @Test
+    public void testPersistAllCoalescesAndSurvivesReopen() {
+        File directory = Files.createTempDir();
+        MappedJournalSignalStore store = new MappedJournalSignalStore(directory, 4096, true, 0.5,
+                3, 1000000);
+        String pending = store.coalesce(signal(1000, null));
+        List<QueuedSignal> signals = Lists.newArrayList();
+        for (int i = 0; i < 100; i++)
+            signals.add(signal(2000 + i, null));
+        QueuedSignal coalescing = signal(3000, null);
+        signals.add(coalescing);
+        store.persistAll(signals, Collections.singleton(coalescing));
+        assertEquals(101, store.size());
+        assertEquals(null, store.queuedSignal(pending));
+        store.close();
+
+        store = createStore(directory);
+        assertEquals(101, store.size());
+        assertEquals(3000, store.queuedSignal(coalescing.id).time.getTime());
+        store.close();
+    }
+
+    @Test
+    public void testCancelRemovesLaterSignalsWithSameSignatureAfterReopen() {
+        File directory = Files.createTempDir();
+        MappedJournalSignalStore store = createStore(directory);
+        QueuedSignal due = signal(1000, null);
+        due.eventSignature = "a";
+        store.persist(due);
+        QueuedSignal later = signal(5000, null);
+        later.eventSignature = "a";
+        String laterId = store.persist(later);
+        QueuedSignal other = signal(5000, null);
+        other.eventSignature = "b";
+        store.persist(other);
+        QueuedSignal replacement = signal(6000, null);
+        replacement.eventSignature = "a";
+        String replacementId = store.persist(replacement);
+        store.close();
+
+        store = createStore(directory);
+        assertEquals(Collections.singletonList(laterId),
+                store.cancel("from", "to", "a", 2000, replacementId));
+        assertEquals(3, store.size());
+        assertEquals(Collections.singletonList(replacementId),
+                store.cancel("from", "to", "a", 2000, null));
+        assertEquals(Collections.<String> emptyList(),
+                store.cancel("other", "to", "b", 2000, null));
+        assertEquals(2, store.size());
+        store.close();
+    }
+
+    private static MappedJournalSignalStore createStore(File directory) {
+        return new MappedJournalSignalStore(directory, 4096, false, 0.5, 3, 1000000);
+    }
+
+    private static QueuedSignal signal(long time, Long repeatIntervalMs) {
+        return new QueuedSignal(String.class.getName(), new byte[] { 1, 2 }, "Entity", "Event",
+                new byte[100], time, Optional.fromNullable(repeatIntervalMs), "from", "to");
+    }
+
+}
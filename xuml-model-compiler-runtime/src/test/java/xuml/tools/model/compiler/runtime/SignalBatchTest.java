@@ -0,0 +1,97 @@
+package xuml.tools.model.compiler.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static xuml.tools.model.compiler.runtime.TestEntity.waitFor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import scala.concurrent.duration.Duration;
+import xuml.tools.model.compiler.runtime.TestEntity.CoalescibleTestEvent;
+import xuml.tools.model.compiler.runtime.TestEntity.TestEvent;
+
+public class SignalBatchTest {
+
+    @Test
+    public void testBatchIsStoredThenDispatched() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, "");
+        try {
+            SignalBatch batch = signaller.signalBatch();
+            batch.signal(TestEntity.get("1"), new TestEvent("a"));
+            batch.signal(TestEntity.get("2"), new TestEvent("b"));
+            batch.signal(TestEntity.get("1"), new TestEvent("c"));
+            batch.signal(TestEntity.get("2"), new TestEvent("d"), Duration.create(300, "ms"));
+            assertEquals(4, batch.size());
+            List<String> ids = batch.submitAndWait(10, TimeUnit.SECONDS);
+            assertEquals(4, ids.size());
+            waitFor(() -> TestEntity.processed.size() == 3);
+            // the delayed signal is still stored
+            assertEquals(1, signaller.queueSize());
+            waitFor(() -> TestEntity.processed.size() == 4);
+            waitFor(() -> signaller.queueSize() == 0);
+            assertEquals(Arrays.asList("1:a", "1:c"), processedBy("1"));
+            assertEquals(Arrays.asList("2:b", "2:d"), processedBy("2"));
+        } finally {
+            close(signaller);
+        }
+    }
+
+    @Test
+    public void testCoalescibleSignalReplacesEarlierOneInBatch() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, "");
+        try {
+            SignalBatch batch = signaller.signalBatch();
+            batch.signal(TestEntity.get("1"), new CoalescibleTestEvent("a"));
+            batch.signal(TestEntity.get("1"), new TestEvent("b"));
+            batch.signal(TestEntity.get("1"), new CoalescibleTestEvent("c"));
+            assertEquals(2, batch.size());
+            assertEquals(2, batch.submitAndWait(10, TimeUnit.SECONDS).size());
+            waitFor(() -> signaller.queueSize() == 0);
+            waitFor(() -> TestEntity.processed.size() == 2);
+            assertEquals(Arrays.asList("1:b", "1:c"), TestEntity.processed);
+        } finally {
+            close(signaller);
+        }
+    }
+
+    @Test
+    public void testEmptyBatchCompletesAndCannotBeSubmittedTwice() {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, "");
+        try {
+            SignalBatch batch = signaller.signalBatch();
+            assertEquals(Collections.<String> emptyList(), batch.submit().join());
+            try {
+                batch.submit();
+                throw new AssertionError("expected IllegalStateException");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().contains("already submitted"));
+            }
+        } finally {
+            close(signaller);
+        }
+    }
+
+    private static List<String> processedBy(String id) {
+        List<String> list = Lists.newArrayList();
+        for (String s : TestEntity.processed)
+            if (s.startsWith(id + ":"))
+                list.add(s);
+        return list;
+    }
+
+    private static void close(Signaller signaller) {
+        signaller.close();
+        signaller.stop();
+    }
+
+}
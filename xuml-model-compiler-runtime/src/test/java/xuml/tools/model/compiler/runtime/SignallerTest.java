@@ -0,0 +1,140 @@
+package xuml.tools.model.compiler.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static xuml.tools.model.compiler.runtime.TestEntity.waitFor;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import xuml.tools.model.compiler.runtime.TestEntity.CreateTestEvent;
+import xuml.tools.model.compiler.runtime.TestEntity.TestEvent;
+
+public class SignallerTest {
+
+    @Test
+    public void testShardsKeepPerEntityOrder() {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, "xuml.root.shards = 4");
+        try {
+            int entities = 20;
+            int signals = 50;
+            Set<Integer> shards = Sets.newHashSet();
+            for (int i = 0; i < entities; i++) {
+                int shard = signaller.shardIndex(TestEntity.get("" + i).uniqueId());
+                assertTrue(shard >= 0 && shard < 4);
+                // always the same shard
+                assertEquals(shard, signaller.shardIndex(TestEntity.get("" + i).uniqueId()));
+                shards.add(shard);
+            }
+            assertTrue(shards.size() > 1);
+            for (int j = 0; j < signals; j++)
+                for (int i = 0; i < entities; i++)
+                    TestEntity.get("" + i).signal(new TestEvent("" + j));
+            waitFor(() -> TestEntity.processed.size() == entities * signals);
+            for (int i = 0; i < entities; i++) {
+                List<String> expected = Lists.newArrayList();
+                for (int j = 0; j < signals; j++)
+                    expected.add(i + ":" + j);
+                List<String> actual = Lists.newArrayList();
+                for (String s : TestEntity.processed)
+                    if (s.startsWith(i + ":"))
+                        actual.add(s);
+                assertEquals(expected, actual);
+            }
+            waitFor(() -> signaller.queueSize() == 0);
+        } finally {
+            signaller.close();
+            signaller.stop();
+        }
+    }
+
+    @Test
+    public void testRecoveryKeepsDueTimesAndRepeatIntervalsAndLimitsRate() {
+        long start = System.currentTimeMillis();
+        File directory = Files.createTempDir();
+        MappedJournalSignalStore store = new MappedJournalSignalStore(directory, 1 << 20, false,
+                0.5, 16, 100000);
+        // twenty signals already due, one delayed and one repeating
+        for (int i = 0; i < 20; i++)
+            store.persist(queuedSignal("1", "d" + i, start - 1000 + i, null));
+        store.persist(queuedSignal("2", "later", start + 2500, null));
+        store.persist(queuedSignal("3", "tick", start + 2000, 500L));
+        store.close();
+
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, "xuml.recovery.max-rate = 20",
+                directory);
+        try {
+            for (String id : new String[] { "1", "2", "3" })
+                TestEntity.get(id);
+            long recoveryStart = System.currentTimeMillis();
+            assertEquals(22, signaller.sendSignalsInQueue());
+            // the due signals are dispatched at no more than 20 per second
+            assertTrue(System.currentTimeMillis() - recoveryStart >= 900);
+            waitFor(() -> TestEntity.processed.size() >= 20);
+            List<String> expected = Lists.newArrayList();
+            for (int i = 0; i < 20; i++)
+                expected.add("1:d" + i);
+            assertEquals(expected, TestEntity.processed.subList(0, 20));
+            if (System.currentTimeMillis() < start + 1900) {
+                assertFalse(TestEntity.processed.contains("2:later"));
+                assertFalse(TestEntity.processed.contains("3:tick"));
+            }
+            waitFor(() -> TestEntity.processed.contains("2:later"));
+            assertTrue(System.currentTimeMillis() >= start + 2500);
+            // repeats every 500ms from its original due time
+            waitFor(() -> Collections.frequency(TestEntity.processed, "3:tick") == 2);
+            assertTrue(System.currentTimeMillis() >= start + 2500);
+            // only the repeating signal is left
+            waitFor(() -> signaller.queueSize() == 1);
+            assertEquals(500L, (long) signaller.queuedSignals().get(0).repeatIntervalMs);
+        } finally {
+            signaller.close();
+            signaller.stop();
+        }
+    }
+
+    @Test
+    public void testCloseWaitsForCreateAsyncBeforeClosingEntityManagerFactory()
+            throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, "");
+        CountDownLatch gate = new CountDownLatch(1);
+        emf.commitGate = gate;
+        CompletableFuture<TestEntity> created = signaller.createAsync(TestEntity.class,
+                new CreateTestEvent("create"));
+        assertTrue(emf.firstCommitStarted.await(10, TimeUnit.SECONDS));
+        Thread closer = new Thread(signaller::close);
+        closer.start();
+        Thread.sleep(200);
+        assertFalse(emf.closed);
+        gate.countDown();
+        closer.join(10000);
+        assertTrue(emf.closed);
+        assertTrue(created.isDone() && !created.isCompletedExceptionally());
+        assertEquals(Collections.singletonList("new:create"), TestEntity.processed);
+        // releases nothing twice
+        signaller.stop();
+    }
+
+    private static QueuedSignal queuedSignal(String id, String name, long time,
+            Long repeatIntervalMs) {
+        return Signaller.toQueuedSignal("Unknown", id, TestEntity.class, new TestEvent(name), time,
+                Optional.fromNullable(repeatIntervalMs), TestEntity.get(id).uniqueId());
+    }
+
+}
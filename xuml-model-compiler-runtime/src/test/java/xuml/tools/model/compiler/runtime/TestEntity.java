@@ -0,0 +1,236 @@
+package xuml.tools.model.compiler.runtime;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import scala.concurrent.duration.Duration;
+
+/**
+ * A hand written entity shaped like the generated ones that records the
+ * events it processes (as {@code <id>:<event name>}) so tests can check what
+ * ran and in what order.
+ */
+public class TestEntity implements Entity<TestEntity> {
+
+    public static final Map<String, TestEntity> entities = new ConcurrentHashMap<String, TestEntity>();
+    public static final List<String> processed = new CopyOnWriteArrayList<String>();
+    public static volatile Signaller signaller;
+
+    private final String id;
+    private EntityHelper _helper;
+
+    public TestEntity(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Constructor used by {@link Signaller#create(Class, CreationEvent)}.
+     */
+    public TestEntity() {
+        this("new");
+    }
+
+    /**
+     * Returns the entity with the given id creating it if necessary.
+     */
+    public static TestEntity get(String id) {
+        return entities.computeIfAbsent(id, TestEntity::new);
+    }
+
+    /**
+     * Clears the entities and processed events and sets the signaller used by
+     * the entities.
+     */
+    public static void reset(Signaller sig) {
+        entities.clear();
+        processed.clear();
+        signaller = sig;
+    }
+
+    public static FakeEntityManagerFactory createEntityManagerFactory() {
+        FakeEntityManagerFactory emf = new FakeEntityManagerFactory();
+        emf.finder = (cls, id) -> entities.get(id);
+        return emf;
+    }
+
+    /**
+     * Returns a signaller for test entities that keeps signals in a journal
+     * in a new temporary directory. The signaller is also set as the one used
+     * by the entities (which are cleared).
+     *
+     * @param emf
+     * @param config
+     *            overrides of xuml-akka.conf in HOCON format
+     * @return
+     */
+    public static Signaller createSignaller(FakeEntityManagerFactory emf, String config) {
+        return createSignaller(emf, config, Files.createTempDir());
+    }
+
+    /**
+     * Returns a signaller for test entities that keeps signals in a journal
+     * in the given directory (which may already hold signals).
+     *
+     * @param emf
+     * @param config
+     *            overrides of xuml-akka.conf in HOCON format
+     * @param directory
+     * @return
+     */
+    public static Signaller createSignaller(FakeEntityManagerFactory emf, String config,
+            File directory) {
+        Config c = ConfigFactory.parseString(config)
+                .withFallback(ConfigFactory.parseString("xuml.signal.store = journal\n"
+                        + "xuml.signal.journal.fsync = false\n"
+                        + "xuml.signal.journal.segment-size = 1m\n"
+                        + "xuml.signal.journal.directory = \"" + directory.getAbsolutePath()
+                        + "\""));
+        Signaller signaller = new Signaller(emf.get(), 4, null, c);
+        reset(signaller);
+        return signaller;
+    }
+
+    /**
+     * Waits up to 10s for the condition to be true.
+     */
+    public static void waitFor(BooleanSupplier condition) {
+        long start = System.currentTimeMillis();
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() - start > 10000)
+                throw new AssertionError("timed out waiting for condition");
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Waits until the root actors have passed on every signal sent to them.
+     */
+    public static void waitForShards(Signaller signaller) {
+        waitFor(() -> {
+            for (long depth : signaller.getMetrics().getShardMailboxDepths())
+                if (depth > 0)
+                    return false;
+            return true;
+        });
+    }
+
+    @Override
+    public Serializable getId() {
+        return id;
+    }
+
+    @Override
+    public String uniqueId() {
+        return TestEntity.class.getName() + ":" + id;
+    }
+
+    @Override
+    public TestEntity signal(Event<TestEntity> event) {
+        helper().signal(event);
+        return this;
+    }
+
+    @Override
+    public TestEntity signal(Event<TestEntity> event, Duration delay) {
+        helper().signal(event, Optional.of(delay));
+        return this;
+    }
+
+    @Override
+    public TestEntity signal(Event<TestEntity> event, long time) {
+        return signal(event,
+                Duration.create(Math.max(0, time - System.currentTimeMillis()), "ms"));
+    }
+
+    @Override
+    public TestEntity event(Event<TestEntity> event) {
+        helper().beforeEvent();
+        TestEvent e = (TestEvent) event;
+        processed.add(id + ":" + e.name);
+        if (e.fail)
+            throw new RuntimeException("failed " + e.name);
+        helper().afterEvent();
+        return this;
+    }
+
+    @Override
+    public synchronized EntityHelper helper() {
+        if (_helper == null)
+            _helper = new EntityHelper(signaller, this);
+        return _helper;
+    }
+
+    public static class TestEvent implements Event<TestEntity>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public final String name;
+        public final boolean fail;
+
+        public TestEvent(String name, boolean fail) {
+            this.name = name;
+            this.fail = fail;
+        }
+
+        public TestEvent(String name) {
+            this(name, false);
+        }
+
+        @Override
+        public String signatureKey() {
+            return name;
+        }
+
+    }
+
+    public static class CoalescibleTestEvent extends TestEvent
+            implements CoalescibleEvent<TestEntity> {
+
+        private static final long serialVersionUID = 1L;
+
+        public CoalescibleTestEvent(String name) {
+            super(name);
+        }
+
+    }
+
+    public static class CreateTestEvent extends TestEvent implements CreationEvent<TestEntity> {
+
+        private static final long serialVersionUID = 1L;
+
+        public CreateTestEvent(String name) {
+            super(name);
+        }
+
+    }
+
+    public static class UrgentTestEvent extends TestEvent implements PriorityEvent<TestEntity> {
+
+        private static final long serialVersionUID = 1L;
+
+        public UrgentTestEvent(String name) {
+            super(name);
+        }
+
+        @Override
+        public int priority() {
+            return 10;
+        }
+
+    }
+
+}
@@ -0,0 +1,26 @@
+package xuml.tools.model.compiler.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TimeOrderedIdTest {
+
+    @Test
+    public void testIdsIncreaseAndCarryTime() {
+        TimeOrderedId ids = new TimeOrderedId(7);
+        long start = System.currentTimeMillis();
+        String previous = ids.next();
+        for (int i = 0; i < 100000; i++) {
+            String id = ids.next();
+            assertEquals(32, id.length());
+            assertTrue(id.compareTo(previous) > 0);
+            previous = id;
+        }
+        assertTrue(TimeOrderedId.time(previous) >= start);
+        assertTrue(TimeOrderedId.time(previous) <= System.currentTimeMillis());
+        assertEquals("0007", previous.substring(12, 16));
+    }
+
+}
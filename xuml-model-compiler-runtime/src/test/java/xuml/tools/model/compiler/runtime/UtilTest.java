@@ -0,0 +1,99 @@
+package xuml.tools.model.compiler.runtime;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+public class UtilTest {
+
+    @Test
+    public void testRoundTripThroughByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.position(3);
+        int length = Util.toBytes("hello", buffer);
+        assertEquals(3 + length, buffer.position());
+        buffer.flip();
+        buffer.position(3);
+        assertEquals("hello", Util.toObject(buffer, String.class));
+        assertEquals(3 + length, buffer.position());
+    }
+
+    @Test
+    public void testPositionUnchangedWhenBufferTooSmall() {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        try {
+            Util.toBytes("hello world", buffer);
+        } catch (KryoException e) {
+            assertEquals(0, buffer.position());
+            return;
+        }
+        throw new AssertionError("expected overflow");
+    }
+
+    @Test
+    public void testLargeObjectDoesNotAffectLaterCalls() {
+        assertEquals(100000, Util.toObject(Util.toBytes(new byte[100000]), byte[].class).length);
+        assertEquals("x", Util.toObject(Util.toBytes("x"), String.class));
+    }
+
+    @Test
+    public void testRegistrarWithoutStableIdsLeavesRegistrationOptional() {
+        Util.register(new SerializersOnly());
+        Holder holder = new Holder();
+        holder.value = new ArrayList<String>(Arrays.asList("a"));
+        holder.point = new Point(3);
+        Holder read = Util.toObject(Util.toBytes(holder), Holder.class);
+        assertEquals(Arrays.asList("a"), read.value);
+        // written by the registered serializer
+        assertEquals(-3, read.point.x);
+    }
+
+    private static final class SerializersOnly implements KryoRegistrar {
+
+        @Override
+        public void register(Kryo kryo) {
+            kryo.addDefaultSerializer(Point.class, new Serializer<Point>() {
+
+                @Override
+                public void write(Kryo kryo, Output output, Point point) {
+                    output.writeInt(-point.x);
+                }
+
+                @Override
+                public Point read(Kryo kryo, Input input, Class<? extends Point> type) {
+                    return new Point(input.readInt());
+                }
+            });
+        }
+
+        @Override
+        public boolean requiresRegistration() {
+            return false;
+        }
+
+    }
+
+    static final class Holder {
+        Object value;
+        Point point;
+    }
+
+    static final class Point {
+        final int x;
+
+        Point(int x) {
+            this.x = x;
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package xuml.tools.model.compiler.runtime.actor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static xuml.tools.model.compiler.runtime.TestEntity.waitFor;
+import static xuml.tools.model.compiler.runtime.TestEntity.waitForShards;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import xuml.tools.model.compiler.runtime.FakeEntityManagerFactory;
+import xuml.tools.model.compiler.runtime.Signaller;
+import xuml.tools.model.compiler.runtime.TestEntity;
+import xuml.tools.model.compiler.runtime.TestEntity.TestEvent;
+import xuml.tools.model.compiler.runtime.TestEntity.UrgentTestEvent;
+import xuml.tools.model.compiler.runtime.message.Signal;
+
+public class EntityActorTest {
+
+    private static final String BATCHING = "xuml.entity.max-signals-per-transaction = 10\n"
+            + "xuml.signal.retry.max-attempts = 1\n";
+
+    @Test
+    public void testSignalsQueuedForAnEntityAreCommittedInOneTransaction() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, BATCHING);
+        try {
+            TestEntity entity = TestEntity.get("1");
+            // hold the first transaction open while the rest are queued
+            CountDownLatch gate = new CountDownLatch(1);
+            emf.commitGate = gate;
+            entity.signal(new TestEvent("a"));
+            emf.firstCommitStarted.await(10, TimeUnit.SECONDS);
+            for (String name : Arrays.asList("b", "c", "d", "e"))
+                entity.signal(new TestEvent(name));
+            waitForShards(signaller);
+            gate.countDown();
+            waitFor(() -> signaller.queueSize() == 0);
+            assertEquals(Arrays.asList("1:a", "1:b", "1:c", "1:d", "1:e"), TestEntity.processed);
+            // the first signal alone then the other four together
+            assertEquals(2, emf.commitSizes.size());
+            assertEquals(0, emf.rollbacks.get());
+        } finally {
+            signaller.close();
+            signaller.stop();
+        }
+    }
+
+    @Test
+    public void testHigherPrioritySignalDoesNotOvertakeEarlierSignalToSameEntity()
+            throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, "");
+        try {
+            TestEntity entity = TestEntity.get("1");
+            CountDownLatch gate = new CountDownLatch(1);
+            emf.commitGate = gate;
+            entity.signal(new TestEvent("a"));
+            emf.firstCommitStarted.await(10, TimeUnit.SECONDS);
+            entity.signal(new TestEvent("b"));
+            entity.signal(new UrgentTestEvent("c"));
+            entity.signal(new TestEvent("d"));
+            waitForShards(signaller);
+            gate.countDown();
+            waitFor(() -> signaller.queueSize() == 0);
+            assertEquals(Arrays.asList("1:a", "1:b", "1:c", "1:d"), TestEntity.processed);
+        } finally {
+            signaller.close();
+            signaller.stop();
+        }
+    }
+
+    @Test
+    public void testFailedBatchIsRolledBackAndEachSignalProcessedAlone() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, BATCHING);
+        try {
+            TestEntity entity = TestEntity.get("1");
+            CountDownLatch gate = new CountDownLatch(1);
+            emf.commitGate = gate;
+            entity.signal(new TestEvent("a"));
+            emf.firstCommitStarted.await(10, TimeUnit.SECONDS);
+            entity.signal(new TestEvent("b"));
+            entity.signal(new TestEvent("c", true));
+            entity.signal(new TestEvent("d"));
+            waitForShards(signaller);
+            gate.countDown();
+            // the failed signal is dead lettered after one attempt
+            waitFor(() -> signaller.queueSize() == 0);
+            waitFor(() -> signaller.deadLetters(null, 10).size() == 1);
+            assertEquals(Arrays.asList("1:a", "1:b", "1:c", "1:b", "1:c", "1:d"),
+                    TestEntity.processed);
+            // a, then b and d on their own
+            assertEquals(3, emf.commitSizes.size());
+            // the batch and c on its own
+            assertEquals(2, emf.rollbacks.get());
+        } finally {
+            signaller.close();
+            signaller.stop();
+        }
+    }
+
+    @Test
+    public void testProcessPendingSignalsIsDeliveredInSendOrderWithSignals() {
+        TestEntity entity = TestEntity.get("1");
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Signal<?> signal = new Signal(null, TestEntity.class, new UrgentTestEvent("a"), "id",
+                entity.getId(), entity.uniqueId());
+        int order = SignalPriorityMailbox.order(signal);
+        // not held back until the mailbox is drained of signals
+        assertEquals(order,
+                SignalPriorityMailbox.order(EntityActor.ProcessPendingSignals.INSTANCE));
+        assertTrue(SignalPriorityMailbox.order(new Object()) < order);
+    }
+
+}
@@ -0,0 +1,229 @@
+package xuml.tools.model.compiler.runtime.actor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Query;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+import scala.concurrent.duration.Duration;
+import xuml.tools.model.compiler.runtime.Entity;
+import xuml.tools.model.compiler.runtime.EntityHelper;
+import xuml.tools.model.compiler.runtime.Event;
+
+public class EntityCacheTest {
+
+    // versions in the database keyed by the loaded object
+    private final Map<Object, Long> database = new IdentityHashMap<Object, Long>();
+    private final AtomicInteger loads = new AtomicInteger();
+    private boolean versioned = true;
+
+    @Test
+    public void testCachedEntityIsReusedWhenNothingHasChanged() {
+        EntityCache cache = new EntityCache(createEntityManagerFactory(), true);
+        Entity<?> first = cache.find(Child.class, "1");
+        Entity<?> second = cache.find(Child.class, "1");
+        assertSame(first, second);
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testCachedEntityIsReloadedWhenWrittenByOthers() {
+        EntityCache cache = new EntityCache(createEntityManagerFactory(), true);
+        Child first = (Child) cache.find(Child.class, "1");
+        database.put(first, 2L);
+        assertNotSame(first, cache.find(Child.class, "1"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testCachedEntityIsReloadedWhenLoadedRelatedEntityWrittenByOthers() {
+        EntityCache cache = new EntityCache(createEntityManagerFactory(), true);
+        Child first = (Child) cache.find(Child.class, "1");
+        database.put(first.parent, 2L);
+        Child second = (Child) cache.find(Child.class, "1");
+        assertNotSame(first, second);
+        assertEquals(2, loads.get());
+        // the reloaded parent is current again
+        assertSame(second, cache.find(Child.class, "1"));
+    }
+
+    @Test
+    public void testUnversionedEntityIsReloadedUnlessVerificationDisabled() {
+        versioned = false;
+        EntityCache cache = new EntityCache(createEntityManagerFactory(), true);
+        assertNotSame(cache.find(Child.class, "1"), cache.find(Child.class, "1"));
+        EntityCache unverified = new EntityCache(createEntityManagerFactory(), false);
+        assertSame(unverified.find(Child.class, "1"), unverified.find(Child.class, "1"));
+    }
+
+    private EntityManagerFactory createEntityManagerFactory() {
+        // objects managed by the (single) persistence context
+        Set<Object> managed = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        PersistenceUnitUtil util = proxy(PersistenceUnitUtil.class,
+                (p, method, args) -> true);
+        Metamodel metamodel = proxy(Metamodel.class, (p, method, args) -> {
+            if (args[0] == Child.class)
+                return entityType("Child", Child.class, "parent");
+            else if (args[0] == Parent.class)
+                return entityType("Parent", Parent.class, null);
+            throw new IllegalArgumentException("not an entity: " + args[0]);
+        });
+        EntityManager em = proxy(EntityManager.class, (p, method, args) -> {
+            String name = method.getName();
+            if (name.equals("find")) {
+                loads.incrementAndGet();
+                Child child = new Child((String) args[1], new Parent());
+                database.put(child, 1L);
+                database.put(child.parent, 1L);
+                managed.add(child);
+                managed.add(child.parent);
+                return child;
+            } else if (name.equals("contains"))
+                return managed.contains(args[0]);
+            else if (name.equals("clear"))
+                managed.clear();
+            else if (name.equals("getMetamodel"))
+                return metamodel;
+            else if (name.equals("createQuery"))
+                return versionQuery();
+            else if (name.equals("isOpen"))
+                return true;
+            else
+                throw new UnsupportedOperationException(name);
+            return null;
+        });
+        return proxy(EntityManagerFactory.class, (p, method, args) -> {
+            if (method.getName().equals("createEntityManager"))
+                return em;
+            else if (method.getName().equals("getPersistenceUnitUtil"))
+                return util;
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    private Query versionQuery() {
+        Object[] parameter = new Object[1];
+        return proxy(Query.class, (p, method, args) -> {
+            if (method.getName().equals("setParameter")) {
+                parameter[0] = args[1];
+                return p;
+            } else if (method.getName().equals("getResultList"))
+                return Collections.singletonList(database.get(parameter[0]));
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    private EntityType<?> entityType(String entityName, Class<?> cls, String association) {
+        Set<SingularAttribute<?, ?>> attributes = Sets.newHashSet();
+        if (versioned)
+            attributes.add(attribute(cls, "version", true, false));
+        if (association != null)
+            attributes.add(attribute(cls, association, false, true));
+        return proxy(EntityType.class, (p, method, args) -> {
+            if (method.getName().equals("getSingularAttributes"))
+                return attributes;
+            else if (method.getName().equals("getName"))
+                return entityName;
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    private static SingularAttribute<?, ?> attribute(Class<?> cls, String name,
+            boolean version, boolean association) {
+        return proxy(SingularAttribute.class, (p, method, args) -> {
+            if (method.getName().equals("getName"))
+                return name;
+            else if (method.getName().equals("isVersion"))
+                return version;
+            else if (method.getName().equals("isAssociation"))
+                return association;
+            else if (method.getName().equals("getJavaMember"))
+                return cls.getDeclaredField(name);
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> cls, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(cls.getClassLoader(), new Class<?>[] { cls },
+                (p, method, args) -> {
+                    if (method.getName().equals("equals"))
+                        return p == args[0];
+                    else if (method.getName().equals("hashCode"))
+                        return System.identityHashCode(p);
+                    return handler.invoke(p, method, args);
+                });
+    }
+
+    static final class Parent {
+        long version = 1;
+    }
+
+    static final class Child implements Entity<Child> {
+
+        final String id;
+        final Parent parent;
+        long version = 1;
+
+        Child(String id, Parent parent) {
+            this.id = id;
+            this.parent = parent;
+        }
+
+        @Override
+        public Serializable getId() {
+            return id;
+        }
+
+        @Override
+        public String uniqueId() {
+            return Child.class.getName() + ":" + id;
+        }
+
+        @Override
+        public Child signal(Event<Child> event) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Child signal(Event<Child> event, Duration delay) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Child signal(Event<Child> event, long time) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Child event(Event<Child> event) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public EntityHelper helper() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
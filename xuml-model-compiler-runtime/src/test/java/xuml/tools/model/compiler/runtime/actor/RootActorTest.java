@@ -0,0 +1,98 @@
+package xuml.tools.model.compiler.runtime.actor;
+
+import static org.junit.Assert.assertEquals;
+import static xuml.tools.model.compiler.runtime.TestEntity.waitFor;
+
+import org.junit.Test;
+
+import xuml.tools.model.compiler.runtime.FakeEntityManagerFactory;
+import xuml.tools.model.compiler.runtime.Signaller;
+import xuml.tools.model.compiler.runtime.SignallerMetrics;
+import xuml.tools.model.compiler.runtime.TestEntity;
+import xuml.tools.model.compiler.runtime.TestEntity.TestEvent;
+
+public class RootActorTest {
+
+    @Test
+    public void testActorStoppedOnceSignalsProcessedByDefault() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf, "");
+        try {
+            SignallerMetrics metrics = signaller.getMetrics();
+            signal("1", "a", 1);
+            waitFor(() -> metrics.getActorsPassivated() == 1);
+            signal("1", "b", 2);
+            waitFor(() -> metrics.getActorsPassivated() == 2);
+            assertEquals(2, metrics.getActorsCreated());
+            assertEquals(0, metrics.getLiveActors());
+        } finally {
+            close(signaller);
+        }
+    }
+
+    @Test
+    public void testIdleActorKeptUntilIdleTimeout() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf,
+                "xuml.entity.passivation.idle-timeout = 500ms");
+        try {
+            SignallerMetrics metrics = signaller.getMetrics();
+            signal("1", "a", 1);
+            signal("1", "b", 2);
+            // the second signal reused the first actor
+            assertEquals(1, metrics.getActorsCreated());
+            waitFor(() -> metrics.getActorsPassivated() == 1);
+            signal("1", "c", 3);
+            assertEquals(2, metrics.getActorsCreated());
+        } finally {
+            close(signaller);
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIdleActorsStoppedBeyondLimit() throws Exception {
+        FakeEntityManagerFactory emf = TestEntity.createEntityManagerFactory();
+        Signaller signaller = TestEntity.createSignaller(emf,
+                "xuml.root.shards = 1\n" + "xuml.entity.passivation.idle-timeout = 1h\n"
+                        + "xuml.entity.passivation.max-live-actors = 2");
+        try {
+            SignallerMetrics metrics = signaller.getMetrics();
+            signal("1", "a", 1);
+            signal("2", "a", 2);
+            assertEquals(0, metrics.getActorsPassivated());
+            // stops 1
+            signal("3", "a", 3);
+            assertEquals(1, metrics.getActorsPassivated());
+            // 2 is now used more recently than 3
+            signal("2", "b", 4);
+            assertEquals(3, metrics.getActorsCreated());
+            // stops 3
+            signal("1", "b", 5);
+            assertEquals(4, metrics.getActorsCreated());
+            assertEquals(2, metrics.getActorsPassivated());
+            signal("2", "c", 6);
+            assertEquals(4, metrics.getActorsCreated());
+            assertEquals(2, metrics.getLiveActors());
+        } finally {
+            close(signaller);
+        }
+    }
+
+    /**
+     * Signals the entity and waits until the event has been processed and the
+     * root actor has been told so.
+     */
+    private static void signal(String id, String event, int processed)
+            throws InterruptedException {
+        TestEntity.get(id).signal(new TestEvent(event));
+        waitFor(() -> TestEntity.processed.size() == processed);
+        // let CloseEntityActor reach the root actor
+        Thread.sleep(100);
+    }
+
+    private static void close(Signaller signaller) {
+        signaller.close();
+        signaller.stop();
+    }
+
+}
@@ -0,0 +1,90 @@
+package xuml.tools.model.compiler.runtime.timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import xuml.tools.model.compiler.runtime.timer.TimerWheel.Timeout;
+
+public class TimerWheelTest {
+
+    @Test
+    public void testTimerFiresWhenDueAndIsRemoved() {
+        TimerWheel<String> wheel = new TimerWheel<String>(10, 8, 2, 0);
+        Timeout<String> timeout = wheel.schedule(95, "a");
+        List<String> expired = Lists.newArrayList();
+        wheel.advance(90, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(100, expired);
+        assertEquals(Lists.newArrayList("a"), expired);
+        assertEquals(0, wheel.size());
+        assertFalse(timeout.isPending());
+    }
+
+    @Test
+    public void testCancelledTimerDoesNotFire() {
+        TimerWheel<String> wheel = new TimerWheel<String>(10, 8, 2, 0);
+        Timeout<String> timeout = wheel.schedule(1000, "a");
+        assertTrue(wheel.cancel(timeout));
+        assertFalse(wheel.cancel(timeout));
+        List<String> expired = Lists.newArrayList();
+        wheel.advance(2000, expired);
+        assertTrue(expired.isEmpty());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testTimerInThePastFiresOnNextTick() {
+        TimerWheel<String> wheel = new TimerWheel<String>(10, 8, 2, 1000);
+        wheel.schedule(500, "a");
+        List<String> expired = Lists.newArrayList();
+        wheel.advance(1010, expired);
+        assertEquals(Lists.newArrayList("a"), expired);
+    }
+
+    @Test
+    public void testManyTimersBeyondTopLevelFireOnTimeExactlyOnce() {
+        Random random = new Random(1);
+        long start = 1000000;
+        // covers 10 * 8^3 = 5120ms so most timers overflow the top level
+        TimerWheel<Long> wheel = new TimerWheel<Long>(10, 8, 3, start);
+        Set<Long> expected = Sets.newHashSet();
+        List<Timeout<Long>> timeouts = Lists.newArrayList();
+        for (int i = 0; i < 2000; i++) {
+            long time = start + random.nextInt(200000);
+            if (expected.add(time))
+                timeouts.add(wheel.schedule(time, time));
+        }
+        for (int i = 0; i < 200; i++) {
+            Timeout<Long> timeout = timeouts.get(random.nextInt(timeouts.size()));
+            if (wheel.cancel(timeout))
+                expected.remove(timeout.getPayload());
+        }
+        List<Long> fired = Lists.newArrayList();
+        List<Long> expired = Lists.newArrayList();
+        long now = start;
+        while (now < start + 300000) {
+            now += random.nextInt(50);
+            wheel.advance(now, expired);
+            for (long time : expired) {
+                assertTrue(time <= now);
+                assertTrue(now - time < 60);
+            }
+            fired.addAll(expired);
+            expired.clear();
+        }
+        assertEquals(expected.size(), fired.size());
+        assertEquals(expected, Sets.newHashSet(fired));
+        assertEquals(0, wheel.size());
+    }
+
+}
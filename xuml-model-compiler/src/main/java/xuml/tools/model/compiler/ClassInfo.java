@@ -27,10 +27,13 @@ import com.google.common.collect.Sets;
 
 import jakarta.xml.bind.JAXBElement;
 import jakarta.xml.bind.JAXBException;
+import xuml.tools.miuml.metamodel.extensions.jaxb.Coalesce;
 import xuml.tools.miuml.metamodel.extensions.jaxb.Documentation;
 import xuml.tools.miuml.metamodel.extensions.jaxb.Find;
 import xuml.tools.miuml.metamodel.extensions.jaxb.Generation;
+import xuml.tools.miuml.metamodel.extensions.jaxb.Index;
 import xuml.tools.miuml.metamodel.extensions.jaxb.Marshaller;
+import xuml.tools.miuml.metamodel.extensions.jaxb.Priority;
 import xuml.tools.miuml.metamodel.jaxb.ActivePerspective;
 import xuml.tools.miuml.metamodel.jaxb.Association;
 import xuml.tools.miuml.metamodel.jaxb.AssociativeReference;
@@ -71,6 +74,7 @@ import xuml.tools.model.compiler.info.MyEvent;
 import xuml.tools.model.compiler.info.MyFind;
 import xuml.tools.model.compiler.info.MyIdAttribute;
 import xuml.tools.model.compiler.info.MyIndependentAttribute;
+import xuml.tools.model.compiler.info.MyIndex;
 import xuml.tools.model.compiler.info.MyJoinColumn;
 import xuml.tools.model.compiler.info.MyJoinTable;
 import xuml.tools.model.compiler.info.MyParameter;
@@ -499,10 +503,35 @@ public class ClassInfo {
         List<MyParameter> parameters = getParameters(signature);
 
         MyEvent myEvent = new MyEvent(event.getName(), Util.toClassSimpleName(event.getName()),
-                parameters, stateName, getStateSignatureInterfaceName(stateName), isCreationEvent);
+                parameters, stateName, getStateSignatureInterfaceName(stateName), isCreationEvent,
+                isCoalescible(event), getPriority(event));
         return myEvent;
     }
 
+    private int getPriority(Event event) {
+        int priority = 0;
+        for (Extension ext : event.getExtension()) {
+            for (Object any : ext.getAny()) {
+                Object e = getJaxbElementValue(any);
+                if (e instanceof Priority)
+                    priority = ((Priority) e).getPriority();
+            }
+        }
+        return priority;
+    }
+
+    private boolean isCoalescible(Event event) {
+        boolean coalesce = false;
+        for (Extension ext : event.getExtension()) {
+            for (Object any : ext.getAny()) {
+                Object e = getJaxbElementValue(any);
+                if (e instanceof Coalesce)
+                    coalesce = ((Coalesce) e).isCoalesce();
+            }
+        }
+        return coalesce;
+    }
+
     private List<MyParameter> getParameters(final StateModelSignature signature) {
         List<MyParameter> parameters = Lists.newArrayList();
         for (StateModelParameter p : signature.getStateModelParameter()) {
@@ -1101,6 +1130,39 @@ public class ClassInfo {
         return finds;
     }
 
+    /**
+     * Returns the indexes to create for the table other than those on join
+     * columns: one for each <b>Find</b> and <b>Index</b> extension and one on
+     * the state column.
+     * 
+     * @return
+     */
+    List<MyIndex> getIndexes() {
+        List<MyIndex> list = newArrayList();
+        for (MyFind find : getFinders()) {
+            List<String> cols = newArrayList();
+            for (MyIndependentAttribute attribute : find.getAttributes())
+                cols.add(attribute.getColumnName());
+            list.add(new MyIndex(null, cols));
+        }
+        for (Extension ext : cls.getExtension()) {
+            for (Object any : ext.getAny()) {
+                Object e = getJaxbElementValue(any);
+                if (e != null && e instanceof Index) {
+                    Index index = (Index) e;
+                    List<String> cols = newArrayList();
+                    for (xuml.tools.miuml.metamodel.extensions.jaxb.Attribute attribute : index
+                            .getAttribute())
+                        cols.add(nameManager.toColumnName(cls.getName(), attribute.getName()));
+                    list.add(new MyIndex(index.getName(), cols));
+                }
+            }
+        }
+        if (hasBehaviour())
+            list.add(new MyIndex(null, Lists.newArrayList("state")));
+        return list;
+    }
+
     public MyTypeDefinition getTypeDefinition(String name) {
         AtomicType t = lookups.getAtomicType(name);
         if (t instanceof SymbolicType)
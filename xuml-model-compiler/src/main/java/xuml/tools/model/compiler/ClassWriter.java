@@ -6,18 +6,24 @@ import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
+import javax.persistence.AttributeConverter;
 import javax.persistence.Basic;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
+import javax.persistence.Convert;
 import javax.persistence.DiscriminatorColumn;
 import javax.persistence.DiscriminatorType;
 import javax.persistence.DiscriminatorValue;
@@ -29,6 +35,7 @@ import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Inheritance;
 import javax.persistence.InheritanceType;
 import javax.persistence.JoinColumn;
@@ -37,6 +44,8 @@ import javax.persistence.JoinTable;
 import javax.persistence.Lob;
 import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
 import javax.persistence.PrePersist;
@@ -46,9 +55,16 @@ import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 import javax.persistence.Transient;
 import javax.persistence.UniqueConstraint;
+import javax.persistence.Version;
 
 import org.apache.commons.lang.StringEscapeUtils;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
@@ -65,6 +81,7 @@ import xuml.tools.model.compiler.info.MyEvent;
 import xuml.tools.model.compiler.info.MyFind;
 import xuml.tools.model.compiler.info.MyIdAttribute;
 import xuml.tools.model.compiler.info.MyIndependentAttribute;
+import xuml.tools.model.compiler.info.MyIndex;
 import xuml.tools.model.compiler.info.MyJoinColumn;
 import xuml.tools.model.compiler.info.MyJoinTable;
 import xuml.tools.model.compiler.info.MyParameter;
@@ -75,9 +92,14 @@ import xuml.tools.model.compiler.info.MyTransition;
 import xuml.tools.model.compiler.info.MyType;
 import xuml.tools.model.compiler.info.MyTypeDefinition;
 import xuml.tools.model.compiler.runtime.BehaviourFactoryNotSetException;
+import xuml.tools.model.compiler.runtime.CoalescibleEvent;
 import xuml.tools.model.compiler.runtime.CreationEvent;
 import xuml.tools.model.compiler.runtime.EntityHelper;
 import xuml.tools.model.compiler.runtime.Event;
+import xuml.tools.model.compiler.runtime.KryoFields;
+import xuml.tools.model.compiler.runtime.OrdinalEvent;
+import xuml.tools.model.compiler.runtime.PriorityEvent;
+import xuml.tools.model.compiler.runtime.QueryStreams;
 import xuml.tools.model.compiler.runtime.RelationshipNotEstablishedException;
 import xuml.tools.model.compiler.runtime.Signaller;
 import xuml.tools.model.compiler.runtime.TooManySpecializationsException;
@@ -94,19 +116,61 @@ public class ClassWriter {
     private static final String STATE_COMMENT = "For internal use only by the state machine but is persisted by the jpa provider.";
     private static final String MEMBER_MODIFIERS = "private";
     private static final int MAX_VARCHAR_LENGTH = 65535;
+    private static final int MAX_INDEX_NAME_LENGTH = 60;
     public static boolean useJpaJoinedStrategyForSpecialization = false;
+    private static final String KRYO_SERIALIZER_CLASS_NAME = "KryoSerializer";
+    private static final Map<String, String> KRYO_FIELD_READERS = createKryoFieldReaders();
+    // registered by Kryo itself or by Util so the generated KryoRegistrations
+    // need not register them
+    private static final Set<String> KRYO_REGISTERED_TYPES = Sets.newHashSet(
+            Arrays.asList("int", "long", "short", "byte", "char", "float", "double", "boolean",
+                    Integer.class.getName(), Long.class.getName(), Short.class.getName(),
+                    Byte.class.getName(), Character.class.getName(), Float.class.getName(),
+                    Double.class.getName(), Boolean.class.getName(), String.class.getName(),
+                    "byte[]", Date.class.getName(), BigDecimal.class.getName(),
+                    BigInteger.class.getName()));
     private final ClassInfo info;
+    // codes persisted for the states keyed by state java identifier, absent
+    // if the state is persisted as a string
+    private final Optional<Map<String, Short>> stateCodes;
+    // if false the generated entity relies on being confined to one thread at
+    // a time (as entity actors ensure) rather than locking
+    private final boolean synchronize;
+    // if true the entity has a version column
+    private final boolean versioned;
+    // column names of each set of join columns written so far, indexed on
+    // the class's table
+    private final Set<List<String>> joinColumnNames = Sets.newLinkedHashSet();
+
+    private static Map<String, String> createKryoFieldReaders() {
+        Map<String, String> map = Maps.newHashMap();
+        map.put(String.class.getName(), "readString");
+        map.put(Integer.class.getName(), "readInteger");
+        map.put(Long.class.getName(), "readLong");
+        map.put(Double.class.getName(), "readDouble");
+        map.put(Boolean.class.getName(), "readBoolean");
+        map.put(Date.class.getName(), "readDate");
+        map.put("byte[]", "readBytes");
+        return map;
+    }
 
     public ClassWriter(ClassInfo info) {
+        this(info, Optional.<Map<String, Short>> absent(), true, false);
+    }
+
+    public ClassWriter(ClassInfo info, Optional<Map<String, Short>> stateCodes,
+            boolean synchronize, boolean versioned) {
         this.info = info;
+        this.stateCodes = stateCodes;
+        this.synchronize = synchronize;
+        this.versioned = versioned;
     }
 
     public String generate() {
         Set<String> validationMethods = Sets.newTreeSet();
+        joinColumnNames.clear();
         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         PrintStream out = new PrintStream(bytes);
-        writeClassJavadoc(out, info);
-        writeClassAnnotation(out, info);
         writeClassDeclaration(out, info);
         writeConstructors(out, info);
         writeEntityHelper(out, info);
@@ -114,12 +178,14 @@ public class ClassWriter {
         writeUniqueIdMethod(out, info);
         writeNonIdIndependentAttributeMembers(out, info, validationMethods);
         writeStateMember(out, info);
+        writeVersionMember(out, info);
         writeReferenceMembers(out, info, validationMethods);
         writeSuperclassValidationCheck(out, info, validationMethods);
         writePreUpdateCheck(out, info, validationMethods);
         writeIdGetterAndSetter(out, info);
         writeNonIdIndependentAttributeGettersAndSetters(out, info);
         writeStateGetterAndSetter(out, info);
+        writeVersionGetter(out, info);
         writeStates(out, info);
         writeEvents(out, info);
         writeSignalMethods(out, info);
@@ -138,13 +204,20 @@ public class ClassWriter {
         writeQueryMethods(out, info);
 
         writeClassClose(out);
+        // written after the body so that the indexes include the join
+        // columns written with the reference members
+        ByteArrayOutputStream annotationBytes = new ByteArrayOutputStream();
+        PrintStream annotation = new PrintStream(annotationBytes);
+        writeClassJavadoc(annotation, info);
+        writeClassAnnotation(annotation, info);
         ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
         PrintStream header = new PrintStream(headerBytes);
         writePackage(header, info);
         writeImports(header, info);
         out.close();
+        annotation.close();
         header.close();
-        return headerBytes.toString() + bytes.toString();
+        return headerBytes.toString() + annotationBytes.toString() + bytes.toString();
     }
 
     private void writeSuperclassValidationCheck(PrintStream out, ClassInfo info,
@@ -184,9 +257,10 @@ public class ClassWriter {
     private void writeClassAnnotation(PrintStream out, ClassInfo info) {
         out.format("@%s\n", info.addType(Entity.class));
         List<List<String>> uniqueConstraints = info.getUniqueConstraintColumnNames();
+        List<MyIndex> indexes = getIndexes(info, uniqueConstraints);
+        out.format("@%s(schema=\"%s\", name=\"%s\"", info.addType(Table.class),
+                info.getSchema(), info.getTable());
         if (uniqueConstraints.size() >= 1) {
-            out.format("@%s(schema=\"%s\", name=\"%s\",\n", info.addType(Table.class),
-                    info.getSchema(), info.getTable());
             StringBuilder s = new StringBuilder();
             for (List<String> list : uniqueConstraints) {
                 if (s.length() > 0)
@@ -194,17 +268,68 @@ public class ClassWriter {
                 s.append("        @" + info.addType(UniqueConstraint.class) + "(columnNames={"
                         + getCommaDelimitedQuoted(list) + "})");
             }
-            out.format("    uniqueConstraints={\n");
-            out.format("%s})\n", s);
-        } else {
-            out.format("@%s(schema=\"%s\", name=\"%s\")\n", info.addType(Table.class),
-                    info.getSchema(), info.getTable());
+            out.format(",\n    uniqueConstraints={\n");
+            out.format("%s}", s);
         }
+        if (indexes.size() >= 1) {
+            StringBuilder s = new StringBuilder();
+            for (MyIndex index : indexes) {
+                if (s.length() > 0)
+                    s.append(",\n");
+                s.append("        @" + info.addType(Index.class) + "(name=\"" + index.getName()
+                        + "\", columnList=\"" + Joiner.on(",").join(index.getColumnNames())
+                        + "\")");
+            }
+            out.format(",\n    indexes={\n");
+            out.format("%s}", s);
+        }
+        out.format(")\n");
+
+        writeNamedQueries(out, info);
 
         if (useJpaJoinedStrategyForSpecialization)
             writeJpaInheritanceAnnotations(out, info);
     }
 
+    /**
+     * Returns the indexes on the class's table for its finders, join columns,
+     * index extensions and state column. Column sets that are already indexed
+     * by a unique constraint or by an earlier index are left out.
+     * 
+     * @param info
+     * @param uniqueConstraints
+     * @return indexes with names
+     */
+    private List<MyIndex> getIndexes(ClassInfo info, List<List<String>> uniqueConstraints) {
+        List<MyIndex> candidates = Lists.newArrayList();
+        for (List<String> cols : joinColumnNames)
+            candidates.add(new MyIndex(null, cols));
+        candidates.addAll(info.getIndexes());
+        Set<Set<String>> unique = Sets.newHashSet();
+        for (List<String> cols : uniqueConstraints)
+            unique.add(Sets.newHashSet(cols));
+        Set<List<String>> done = Sets.newHashSet();
+        List<MyIndex> list = Lists.newArrayList();
+        for (MyIndex index : candidates) {
+            List<String> cols = index.getColumnNames();
+            if (cols.isEmpty() || unique.contains(Sets.newHashSet(cols)) || !done.add(cols))
+                continue;
+            String name = index.getName() != null ? index.getName()
+                    : getIndexName(info.getTable(), cols);
+            list.add(new MyIndex(name, cols));
+        }
+        return list;
+    }
+
+    private static String getIndexName(String table, List<String> columnNames) {
+        String name = "idx_" + table + "_" + Joiner.on("_").join(columnNames);
+        // keep within the identifier length limits of common databases
+        if (name.length() > MAX_INDEX_NAME_LENGTH)
+            name = name.substring(0, MAX_INDEX_NAME_LENGTH - 9) + "_"
+                    + String.format("%08x", name.hashCode());
+        return name;
+    }
+
     private void writeJpaInheritanceAnnotations(PrintStream out, ClassInfo info) {
 
         if (info.isSuperclass()) {
@@ -324,6 +449,24 @@ public class ClassWriter {
         out.format("        return Context.create(%s.class, creationEvent);\n",
                 info.getJavaClassSimpleName());
         out.format("    }\n\n");
+
+        jd(out, "Static asynchronous creator method using CreationEvent.", "    ");
+        out.format("    public static %s<%s> createAsync(%s<%s> creationEvent) {\n",
+                info.addType(CompletableFuture.class), info.getJavaClassSimpleName(),
+                info.addType(CreationEvent.class), info.getJavaClassSimpleName());
+        out.format("        return Context.createAsync(%s.class, creationEvent);\n",
+                info.getJavaClassSimpleName());
+        out.format("    }\n\n");
+
+        jd(out, "Static creator method using CreationEvents. Entities are persisted\n"
+                + "in chunked transactions.", "    ");
+        out.format("    public static %s<%s> createAll(%s<? extends %s<%s>> creationEvents) {\n",
+                info.addType(List.class), info.getJavaClassSimpleName(),
+                info.addType(Iterable.class), info.addType(CreationEvent.class),
+                info.getJavaClassSimpleName());
+        out.format("        return Context.createAll(%s.class, creationEvents);\n",
+                info.getJavaClassSimpleName());
+        out.format("    }\n\n");
     }
 
     private void writeBehaviourFields(PrintStream out, ClassInfo info, String factoryTypeName,
@@ -394,7 +537,8 @@ public class ClassWriter {
         out.format("    private %s _helper;\n\n", info.addType(EntityHelper.class));
 
         jd(out, "Returns the Helper for this instance.", "    ");
-        out.format("    public synchronized %s helper() {\n", info.addType(EntityHelper.class));
+        out.format("    public %s%s helper() {\n", synchronize ? "synchronized " : "",
+                info.addType(EntityHelper.class));
         out.format("        if (_helper==null)\n");
         out.format("            _helper = new %s(signaller,this);\n",
                 info.addType(EntityHelper.class));
@@ -424,6 +568,8 @@ public class ClassWriter {
 
             writeEmbeddedIdBuilder(out, info);
 
+            writeEmbeddedIdKryoSerializer(out, info);
+
             out.format("    }\n\n");
         }
     }
@@ -511,6 +657,73 @@ public class ClassWriter {
 
     }
 
+    private void writeEmbeddedIdKryoSerializer(PrintStream out, ClassInfo info) {
+        String idClassName = info.getEmbeddedIdSimpleClassName();
+        jd(out, "Kryo serializer registered by the generated KryoRegistrations.", "        ");
+        out.format("        public static final class %s extends %s<%s> {\n\n",
+                KRYO_SERIALIZER_CLASS_NAME, info.addType(Serializer.class), idClassName);
+        out.format("            @%s\n", info.addType(Override.class));
+        out.format("            public void write(%s kryo, %s output, %s id) {\n",
+                info.addType(Kryo.class), info.addType(Output.class), idClassName);
+        for (MyIdAttribute member : info.getPrimaryIdAttributeMembers())
+            out.format("                %s;\n", kryoWrite(info, typeName(member.getType().getType()),
+                    "id." + member.getFieldName()));
+        out.format("            }\n\n");
+        out.format("            @%s\n", info.addType(Override.class));
+        out.format("            public %1$s read(%2$s kryo, %3$s input, Class<? extends %1$s> type) {\n",
+                idClassName, info.addType(Kryo.class), info.addType(Input.class));
+        out.format("                %1$s id = new %1$s();\n", idClassName);
+        for (MyIdAttribute member : info.getPrimaryIdAttributeMembers())
+            out.format("                id.%s = %s;\n", member.getFieldName(),
+                    kryoRead(info, typeName(member.getType().getType())));
+        out.format("                return id;\n");
+        out.format("            }\n");
+        out.format("        }\n\n");
+    }
+
+    private static String typeName(Type type) {
+        return type.getBase() + (type.isArray() ? "[]" : "");
+    }
+
+    /**
+     * Returns the types of the fields that the generated Kryo serializers of
+     * the class write as objects and that must be registered because Util
+     * requires registration once KryoRegistrations are used.
+     *
+     * @param info
+     * @return type names
+     */
+    static Set<String> kryoObjectFieldTypes(ClassInfo info) {
+        Set<String> types = Sets.newLinkedHashSet();
+        if (info.hasCompositeId())
+            for (MyIdAttribute member : info.getPrimaryIdAttributeMembers())
+                types.add(typeName(member.getType().getType()));
+        for (MyEvent event : info.getEvents())
+            for (MyParameter p : event.getParameters())
+                types.add(p.getType());
+        types.removeAll(KRYO_FIELD_READERS.keySet());
+        types.removeAll(KRYO_REGISTERED_TYPES);
+        return types;
+    }
+
+    private static String kryoWrite(ClassInfo info, String typeName, String expression) {
+        if (KRYO_FIELD_READERS.containsKey(typeName))
+            return String.format("%s.write(output, %s)", info.addType(KryoFields.class),
+                    expression);
+        else
+            return String.format("kryo.writeObjectOrNull(output, %s, %s.class)", expression,
+                    info.addType(typeName));
+    }
+
+    private static String kryoRead(ClassInfo info, String typeName) {
+        String reader = KRYO_FIELD_READERS.get(typeName);
+        if (reader != null)
+            return String.format("%s.%s(input)", info.addType(KryoFields.class), reader);
+        else
+            return String.format("kryo.readObjectOrNull(input, %s.class)",
+                    info.addType(typeName));
+    }
+
     private void writeEmbeddedIdDeclaration(PrintStream out, ClassInfo info) {
         out.format("    @%s\n", info.addType(Embeddable.class));
         out.format("    @%s(\"serial\")\n", info.addType(SuppressWarnings.class));
@@ -738,10 +951,29 @@ public class ClassWriter {
             info.addType(Column.class);
             jd(out, STATE_COMMENT, "    ");
             out.format("    @%s(name=\"state\",nullable=false)\n", info.addType(Column.class));
+            if (stateCodes.isPresent())
+                out.format("    @%s(converter=StateConverter.class)\n",
+                        info.addType(Convert.class));
             out.format("    %s String state;\n\n", MEMBER_MODIFIERS);
         }
     }
 
+    private boolean hasVersionMember(ClassInfo info) {
+        // a subclass inherits the version of its superclass
+        return versioned && !(useJpaJoinedStrategyForSpecialization && info.isSubclass());
+    }
+
+    private void writeVersionMember(PrintStream out, ClassInfo info) {
+        if (hasVersionMember(info)) {
+            jd(out, "Incremented by the jpa provider on every update so that writes by others are detected.",
+                    "    ");
+            out.format("    @%s\n", info.addType(Version.class));
+            out.format("    @%s(name=\"xuml_version\",nullable=false)\n",
+                    info.addType(Column.class));
+            out.format("    %s long xumlVersion;\n\n", MEMBER_MODIFIERS);
+        }
+    }
+
     private void writeReferenceMembers(PrintStream out, ClassInfo info,
             Set<String> validationMethods) {
         for (MyReferenceMember ref : info.getReferenceMembers()) {
@@ -935,9 +1167,12 @@ public class ClassWriter {
     private void writeJoinColumnsAnnotation(PrintStream out, MyReferenceMember ref,
             boolean nullable, boolean insertable, boolean updatable) {
         HashSet<String> cols = new HashSet<String>();
+        List<String> colList = Lists.newArrayList();
         for (MyJoinColumn col : ref.getJoinColumns()) {
             cols.add(col.getThisColumnName());
+            colList.add(col.getThisColumnName());
         }
+        joinColumnNames.add(colList);
 
         boolean twice = false;
         info.getSpecializations();
@@ -1004,6 +1239,15 @@ public class ClassWriter {
         }
     }
 
+    private void writeVersionGetter(PrintStream out, ClassInfo info) {
+        if (hasVersionMember(info)) {
+            jd(out, "Returns the version of this entity maintained by the jpa provider.", "    ");
+            out.format("    public long getXumlVersion(){\n");
+            out.format("        return xumlVersion;\n");
+            out.format("    }\n\n");
+        }
+    }
+
     private void writeStates(PrintStream out, ClassInfo info) {
         if (info.hasBehaviour()) {
             jd(out, "The list of all states from the state machine for this entity.", "    ");
@@ -1018,9 +1262,42 @@ public class ClassWriter {
             }
             out.format(";\n");
             out.format("    }\n\n");
+            if (stateCodes.isPresent())
+                writeStateConverter(out, info);
         }
     }
 
+    private void writeStateConverter(PrintStream out, ClassInfo info) {
+        Map<String, Short> codes = stateCodes.get();
+        jd(out, "Persists the state as a smallint code. The codes are kept in the\n"
+                + "state codes file of the code generator and must not be changed.", "    ");
+        out.format("    public static class StateConverter implements %s<String, %s> {\n\n",
+                info.addType(AttributeConverter.class), info.addType(Short.class));
+        out.format("        @%s\n", info.addType(Override.class));
+        out.format("        public Short convertToDatabaseColumn(String state) {\n");
+        out.format("            if (state == null)\n");
+        out.format("                return null;\n");
+        out.format("            switch (state) {\n");
+        for (Entry<String, Short> entry : codes.entrySet())
+            out.format("            case \"%s\": return %s;\n", entry.getKey(), entry.getValue());
+        out.format("            default: throw new %s(\"unknown state: \" + state);\n",
+                info.addType(IllegalArgumentException.class));
+        out.format("            }\n");
+        out.format("        }\n\n");
+        out.format("        @%s\n", info.addType(Override.class));
+        out.format("        public String convertToEntityAttribute(Short code) {\n");
+        out.format("            if (code == null)\n");
+        out.format("                return null;\n");
+        out.format("            switch (code) {\n");
+        for (Entry<String, Short> entry : codes.entrySet())
+            out.format("            case %s: return \"%s\";\n", entry.getValue(), entry.getKey());
+        out.format("            default: throw new %s(\"unknown state code: \" + code);\n",
+                info.addType(IllegalArgumentException.class));
+        out.format("            }\n");
+        out.format("        }\n");
+        out.format("    }\n\n");
+    }
+
     private void writeEvents(PrintStream out, ClassInfo info) {
         List<MyEvent> events = info.getEvents();
         if (events.size() == 0)
@@ -1050,7 +1327,8 @@ public class ClassWriter {
             out.format("        }\n\n");
         }
 
-        for (MyEvent event : info.getEvents()) {
+        for (int ordinal = 0; ordinal < events.size(); ordinal++) {
+            MyEvent event = events.get(ordinal);
             String stateSignatureImplements;
             if (event.getStateName() != null)
                 stateSignatureImplements = ", " + event.getStateSignatureInterfaceSimpleName();
@@ -1062,14 +1340,27 @@ public class ClassWriter {
                         + info.getJavaClassSimpleName() + ">";
             } else
                 creationEventImplements = "";
+            String coalescibleEventImplements;
+            if (event.isCoalescible())
+                coalescibleEventImplements = ", " + info.addType(CoalescibleEvent.class) + "<"
+                        + info.getJavaClassSimpleName() + ">";
+            else
+                coalescibleEventImplements = "";
+            String priorityEventImplements;
+            if (event.getPriority() != 0)
+                priorityEventImplements = ", " + info.addType(PriorityEvent.class) + "<"
+                        + info.getJavaClassSimpleName() + ">";
+            else
+                priorityEventImplements = "";
             out.println();
             jd(out, "Event implementation for event '" + event.getName() + "'", "        ");
 
             out.format("        @%s(\"serial\")\n", info.addType(SuppressWarnings.class));
-            out.format("        public static class %s implements %s<%s>, %s%s%s {\n\n",
-                    event.getSimpleClassName(), info.addType(Event.class),
+            out.format("        public static class %s implements %s<%s>, %s%s%s%s%s {\n\n",
+                    event.getSimpleClassName(), info.addType(OrdinalEvent.class),
                     info.getJavaClassSimpleName(), info.addType(Serializable.class),
-                    stateSignatureImplements, creationEventImplements);
+                    stateSignatureImplements, creationEventImplements,
+                    coalescibleEventImplements, priorityEventImplements);
 
             // add signature key method
             StringBuffer signature = new StringBuffer();
@@ -1083,8 +1374,22 @@ public class ClassWriter {
 
             out.format("            public String signatureKey() {\n");
             out.format("                return signatureKey;\n");
+            out.format("            }\n\n");
+
+            // trailing underscore so it cannot clash with a parameter field
+            out.format("            public static final int ORDINAL_ = %s;\n\n", ordinal);
+            out.format("            @%s\n", info.addType(Override.class));
+            out.format("            public int ordinal() {\n");
+            out.format("                return ORDINAL_;\n");
             out.format("            }\n");
 
+            if (event.getPriority() != 0) {
+                out.format("\n            @%s\n", info.addType(Override.class));
+                out.format("            public int priority() {\n");
+                out.format("                return %s;\n", event.getPriority());
+                out.format("            }\n");
+            }
+
             StringBuilder constructorBody = new StringBuilder();
             for (MyParameter p : event.getParameters()) {
                 constructorBody.append(String.format(
@@ -1161,6 +1466,8 @@ public class ClassWriter {
 
             out.format("            }\n");
 
+            writeEventKryoSerializer(out, info, event);
+
             if (event.getParameters().size() > 0) {
                 out.println();
                 out.format("            @%s\n", info.addType(Override.class));
@@ -1182,6 +1489,38 @@ public class ClassWriter {
         out.format("    }\n\n");
     }
 
+    private void writeEventKryoSerializer(PrintStream out, ClassInfo info, MyEvent event) {
+        String eventClassName = event.getSimpleClassName();
+        out.println();
+        jd(out, "Kryo serializer registered by the generated KryoRegistrations.",
+                "            ");
+        out.format("            public static final class %s extends %s<%s> {\n\n",
+                KRYO_SERIALIZER_CLASS_NAME, info.addType(Serializer.class), eventClassName);
+        out.format("                @%s\n", info.addType(Override.class));
+        out.format("                public void write(%s kryo, %s output, %s event) {\n",
+                info.addType(Kryo.class), info.addType(Output.class), eventClassName);
+        for (MyParameter p : event.getParameters())
+            out.format("                    %s;\n",
+                    kryoWrite(info, p.getType(), "event." + p.getFieldName()));
+        out.format("                }\n\n");
+        out.format("                @%s\n", info.addType(Override.class));
+        out.format(
+                "                public %1$s read(%2$s kryo, %3$s input, Class<? extends %1$s> type) {\n",
+                eventClassName, info.addType(Kryo.class), info.addType(Input.class));
+        // arguments are evaluated left to right so are read in written order
+        out.format("                    return new %s(", eventClassName);
+        boolean first = true;
+        for (MyParameter p : event.getParameters()) {
+            if (!first)
+                out.format(",\n                            ");
+            out.format("%s", kryoRead(info, p.getType()));
+            first = false;
+        }
+        out.format(");\n");
+        out.format("                }\n");
+        out.format("            }\n");
+    }
+
     private void writePreUpdateCheck(PrintStream out, ClassInfo info,
             Set<String> validationMethods) {
         jd(out, "Calls all validation methods just before updating database.", "    ");
@@ -1433,59 +1772,91 @@ public class ClassWriter {
         out.format("    @%s\n", info.addType(Override.class));
         out.format("    public %s event(%s<%s> event){\n\n", info.getJavaClassSimpleName(),
                 info.addType(Event.class), info.getJavaClassSimpleName());
-        if (info.hasBehaviour()) {
+        if (info.hasBehaviour() && !info.getEvents().isEmpty()) {
+            List<MyTransition> transitions = info.getTransitions();
             out.format("        helper().beforeEvent();\n\n");
-            out.format("        // process the event\n");
-            boolean first = true;
-            for (MyEvent event : info.getEvents()) {
-                out.format("        ");
-                if (!first)
-                    out.format("else ");
-                out.format("if (event instanceof Events.%s){\n", event.getSimpleClassName());
-                out.format("            processEvent((Events.%s) event);\n",
-                        event.getSimpleClassName());
-                out.format("        }\n");
-                first = false;
+            out.format("        // process the event, an unknown state has no transitions\n");
+            out.format("        int from = stateRow(state);\n");
+            out.format("        int transition = from == -1 ? -1\n");
+            out.format("                : TRANSITIONS[from][((%s<%s>) event).ordinal()];\n",
+                    info.addType(OrdinalEvent.class), info.getJavaClassSimpleName());
+            out.format("        switch (transition) {\n");
+            for (int i = 0; i < transitions.size(); i++) {
+                MyTransition transition = transitions.get(i);
+                out.format("        case %s:\n", i);
+                out.format("            state=State.%s.toString();\n",
+                        info.getStateAsJavaIdentifier(transition.getToState()));
+                String onEntry = String.format("_behaviour.onEntry%s((Events.%s) event);",
+                        Util.upperFirst(Util.toJavaIdentifier(transition.getToState())),
+                        transition.getEventSimpleClassName());
+                if (synchronize) {
+                    out.format("            synchronized(this) {\n");
+                    out.format("                %s\n", onEntry);
+                    out.format("            }\n");
+                } else
+                    out.format("            %s\n", onEntry);
+                out.format("            break;\n");
             }
+            out.format("        default:\n");
+            out.format("            // no transition for the event from the current state\n");
+            out.format("            break;\n");
+            out.format("        }\n");
             out.println();
             out.format("        helper().afterEvent();\n");
         }
         out.format("        return this;\n");
         out.format("    }\n\n");
-        if (info.hasBehaviour()) {
-            for (MyEvent event : info.getEvents()) {
-
-                jd(out, "Synchronously perform the change.", "    ");
-
-                out.format("    private void processEvent(Events.%s event){\n",
-                        event.getSimpleClassName());
-                boolean first = true;
-                for (MyTransition transition : info.getTransitions()) {
-                    // constraint is no event overloading
-                    if (transition.getEventName().equals(event.getName())) {
-                        if (first)
-                            out.format("        if");
-                        else
-                            out.format("        else if");
-                        first = false;
-                        if (transition.getFromState() == null)
-                            // handle creation state
-                            out.format(" (state==null){\n");
-                        else
-                            out.format(" (state.equals(State.%s.toString())){\n",
-                                    info.getStateAsJavaIdentifier(transition.getFromState()));
-                        out.format("            state=State.%s.toString();\n",
-                                info.getStateAsJavaIdentifier(transition.getToState()));
-                        out.format("            synchronized(this) {\n");
-                        out.format("                _behaviour.onEntry%s(event);\n",
-                                Util.upperFirst(Util.toJavaIdentifier(transition.getToState())));
-                        out.format("            }\n");
-                        out.format("        }\n");
-                    }
-                }
-                out.format("    }\n\n");
+        if (info.hasBehaviour() && !info.getEvents().isEmpty())
+            writeTransitionTable(out, info);
+    }
+
+    /**
+     * Writes the table of transitions indexed by
+     * {@code [state ordinal + 1][event ordinal]} (row 0 being no state) giving
+     * the index of the transition in {@link ClassInfo#getTransitions()} or -1,
+     * and the stateRow method that maps the state attribute to its row.
+     */
+    private void writeTransitionTable(PrintStream out, ClassInfo info) {
+        List<String> states = Lists.newArrayList(info.getStateNames());
+        List<MyEvent> events = info.getEvents();
+        List<MyTransition> transitions = info.getTransitions();
+        int[][] table = new int[states.size() + 1][events.size()];
+        for (int[] row : table)
+            Arrays.fill(row, -1);
+        for (int i = 0; i < transitions.size(); i++) {
+            MyTransition transition = transitions.get(i);
+            int from = transition.getFromState() == null ? 0
+                    : states.indexOf(transition.getFromState()) + 1;
+            if (from == 0 && transition.getFromState() != null)
+                throw new RuntimeException("state not found: " + transition.getFromState());
+            for (int j = 0; j < events.size(); j++)
+                // constraint is no event overloading
+                if (events.get(j).getName().equals(transition.getEventName()))
+                    table[from][j] = i;
+        }
+        out.format("    private static final int[][] TRANSITIONS = {\n");
+        for (int[] row : table) {
+            out.format("        {");
+            for (int j = 0; j < row.length; j++) {
+                if (j > 0)
+                    out.format(",");
+                out.format("%s", row[j]);
             }
+            out.format("},\n");
         }
+        out.format("    };\n\n");
+        jd(out, "Returns the row of TRANSITIONS for the state, 0 for no state or -1 if\n"
+                + "the state is not one of this class's states.", "    ");
+        out.format("    private static int stateRow(String state) {\n");
+        out.format("        if (state == null)\n");
+        out.format("            return 0;\n");
+        out.format("        switch (state) {\n");
+        for (int i = 0; i < states.size(); i++)
+            out.format("        case \"%s\": return %s;\n",
+                    info.getStateAsJavaIdentifier(states.get(i)), i + 1);
+        out.format("        default: return -1;\n");
+        out.format("        }\n");
+        out.format("    }\n\n");
     }
 
     private void writeStaticCreateMethods(PrintStream out, ClassInfo info) {
@@ -1813,92 +2184,128 @@ public class ClassWriter {
         out.format("        }\n");
         out.format("    }\n\n");
 
+        String name = info.getJavaClassSimpleName();
+        jd(out, "Returns all instances using the named query {@code " + name + ".selectAll}.",
+                "    ");
+        out.format("    public static %s<%s> findAll() {\n", info.addType(List.class), name);
+        out.format("        %s em = Context.createEntityManager();\n",
+                info.addType(EntityManager.class));
+        out.format("        try {\n");
+        out.format("            return findAll(em);\n");
+        out.format("        } finally {\n");
+        out.format("            em.close();\n");
+        out.format("        }\n");
+        out.format("    }\n\n");
+        out.format("    public static %s<%s> findAll(%s em) {\n", info.addType(List.class), name,
+                info.addType(EntityManager.class));
+        out.format("        return em.createNamedQuery(\"%s.selectAll\", %s.class).getResultList();\n",
+                name, name);
+        out.format("    }\n\n");
+        jd(out, "Streams all instances. Consume and close the stream while the\n"
+                + "EntityManager is open.", "    ");
+        out.format("    public static %s<%s> streamAll(%s em) {\n", info.addType(Stream.class),
+                name, info.addType(EntityManager.class));
+        out.format("        return %s.stream(em.createNamedQuery(\"%s.selectAll\", %s.class));\n",
+                info.addType(QueryStreams.class), name, name);
+        out.format("    }\n\n");
+        jd(out, "Returns the number of instances using the named query {@code " + name
+                + ".count}.", "    ");
+        out.format("    public static long count() {\n");
+        out.format("        %s em = Context.createEntityManager();\n",
+                info.addType(EntityManager.class));
+        out.format("        try {\n");
+        out.format("            return count(em);\n");
+        out.format("        } finally {\n");
+        out.format("            em.close();\n");
+        out.format("        }\n");
+        out.format("    }\n\n");
+        out.format("    public static long count(%s em) {\n", info.addType(EntityManager.class));
+        out.format("        return em.createNamedQuery(\"%s.count\", %s.class).getSingleResult();\n",
+                name, info.addType(Long.class));
+        out.format("    }\n\n");
+
         for (MyFind find : info.getFinders()) {
-            jd(out, "Static finder method generated due to xuml-tools extension <b>Find</b>.",
-                    "    ");
-            StringBuffer findBy = new StringBuffer();
+            String findBy = getFindBy(find);
+            StringBuilder parameters = new StringBuilder();
+            StringBuilder arguments = new StringBuilder();
+            StringBuilder setParameters = new StringBuilder();
             for (MyIndependentAttribute attribute : find.getAttributes()) {
-                findBy.append(Util.upperFirst(attribute.getFieldName()));
-            }
-
-            out.format("    public static %s<%s> findBy%s(", info.addType(List.class),
-                    info.getJavaClassSimpleName(), findBy.toString());
-            {
-                boolean first = true;
-                for (MyIndependentAttribute attribute : find.getAttributes()) {
-                    if (!first)
-                        out.format(", ");
-                    out.format("%s %s", info.addType(attribute.getType().getType()),
-                            attribute.getFieldName());
-                    first = false;
+                if (parameters.length() > 0) {
+                    parameters.append(", ");
+                    arguments.append(", ");
                 }
+                parameters.append(info.addType(attribute.getType().getType()) + " "
+                        + attribute.getFieldName());
+                arguments.append(attribute.getFieldName());
+                setParameters.append(String.format("\n            .setParameter(\"%s\", %s)",
+                        attribute.getFieldName(), attribute.getFieldName()));
             }
-            out.format(") {\n");
+            String query = String.format("em.createNamedQuery(\"%s.findBy%s\", %s.class)%s",
+                    name, findBy, name, setParameters);
+
+            jd(out, "Static finder method generated due to xuml-tools extension <b>Find</b>.",
+                    "    ");
+            out.format("    public static %s<%s> findBy%s(%s) {\n", info.addType(List.class),
+                    name, findBy, parameters);
             out.format("        %s em = Context.createEntityManager();\n",
                     info.addType(EntityManager.class));
-            out.format("        @%s(\"unchecked\")\n", info.addType(SuppressWarnings.class));
-            out.format("        %s<%s> list = em.createQuery(\"select e from %s e where ",
-                    info.addType(List.class), info.getJavaClassSimpleName(),
-                    info.getJavaClassSimpleName());
-            {
-                boolean first = true;
-                for (MyIndependentAttribute attribute : find.getAttributes()) {
-                    if (!first)
-                        out.format(" and ");
-                    out.format("e.%s=:%s", attribute.getFieldName(), attribute.getFieldName());
-                    first = false;
-                }
-            }
-            out.format("\")");
-            for (MyIndependentAttribute attribute : find.getAttributes()) {
-                out.format("\n            .setParameter(\"%s\", %s)", attribute.getFieldName(),
-                        attribute.getFieldName());
-            }
-            out.format("\n            .getResultList();\n");
-            out.format("\n      em.close();\n");
-            out.format("        return list;\n");
+            out.format("        try {\n");
+            out.format("            return findBy%s(em, %s);\n", findBy, arguments);
+            out.format("        } finally {\n");
+            out.format("            em.close();\n");
+            out.format("        }\n");
             out.format("    }\n\n");
 
             jd(out, "Static finder method generated due to xuml-tools extension <b>Find</b>.",
                     "    ");
+            out.format("    public static %s<%s> findBy%s(%s em, %s) {\n", info.addType(List.class),
+                    name, findBy, info.addType(EntityManager.class), parameters);
+            out.format("        return %s\n            .getResultList();\n", query);
+            out.format("    }\n\n");
 
-            out.format("    public static %s<%s> findBy%s(%s em, ", info.addType(List.class),
-                    info.getJavaClassSimpleName(), findBy.toString(),
-                    info.addType(EntityManager.class));
-            {
-                boolean first = true;
-                for (MyIndependentAttribute attribute : find.getAttributes()) {
-                    if (!first)
-                        out.format(", ");
-                    out.format("%s %s", info.addType(attribute.getType().getType()),
-                            attribute.getFieldName());
-                    first = false;
-                }
-            }
-            out.format(") {\n");
-            out.format("        @%s(\"unchecked\")\n", info.addType(SuppressWarnings.class));
-            out.format("        %s<%s> list = em.createQuery(\"select e from %s e where ",
-                    info.addType(List.class), info.getJavaClassSimpleName(),
-                    info.getJavaClassSimpleName());
-            {
-                boolean first = true;
-                for (MyIndependentAttribute attribute : find.getAttributes()) {
-                    if (!first)
-                        out.format(" and ");
-                    out.format("e.%s=:%s", attribute.getFieldName(), attribute.getFieldName());
-                    first = false;
-                }
-            }
-            out.format("\")");
-            for (MyIndependentAttribute attribute : find.getAttributes()) {
-                out.format("\n            .setParameter(\"%s\", %s)", attribute.getFieldName(),
-                        attribute.getFieldName());
-            }
-            out.format("\n            .getResultList();\n");
-            out.format("        return list;\n");
+            jd(out, "Streaming finder generated due to xuml-tools extension <b>Find</b>.\n"
+                    + "Consume and close the stream while the EntityManager is open.", "    ");
+            out.format("    public static %s<%s> streamBy%s(%s em, %s) {\n",
+                    info.addType(Stream.class), name, findBy, info.addType(EntityManager.class),
+                    parameters);
+            out.format("        return %s.stream(%s);\n", info.addType(QueryStreams.class), query);
             out.format("    }\n\n");
+        }
+    }
+
+    private static String getFindBy(MyFind find) {
+        StringBuilder findBy = new StringBuilder();
+        for (MyIndependentAttribute attribute : find.getAttributes())
+            findBy.append(Util.upperFirst(attribute.getFieldName()));
+        return findBy.toString();
+    }
 
+    /**
+     * Writes the queries used by the static finders as named queries so that
+     * they are parsed once when the persistence unit starts.
+     */
+    private void writeNamedQueries(PrintStream out, ClassInfo info) {
+        String name = info.getJavaClassSimpleName();
+        List<String> queries = Lists.newArrayList();
+        queries.add(namedQuery(info, name + ".selectAll", "select e from " + name + " e"));
+        queries.add(namedQuery(info, name + ".count", "select count(e) from " + name + " e"));
+        for (MyFind find : info.getFinders()) {
+            StringBuilder where = new StringBuilder();
+            for (MyIndependentAttribute attribute : find.getAttributes()) {
+                if (where.length() > 0)
+                    where.append(" and ");
+                where.append("e." + attribute.getFieldName() + "=:" + attribute.getFieldName());
+            }
+            queries.add(namedQuery(info, name + ".findBy" + getFindBy(find),
+                    "select e from " + name + " e where " + where));
         }
+        out.format("@%s({\n", info.addType(NamedQueries.class));
+        out.format("%s})\n", Joiner.on(",\n").join(queries));
+    }
+
+    private static String namedQuery(ClassInfo info, String name, String query) {
+        return String.format("    @%s(name=\"%s\", query=\"%s\")", info.addType(NamedQuery.class),
+                name, query);
     }
 
     private void writeClassClose(PrintStream out) {
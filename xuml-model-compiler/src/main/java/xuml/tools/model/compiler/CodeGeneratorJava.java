@@ -10,6 +10,9 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.math.BigInteger;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -19,6 +22,9 @@ import javax.persistence.EntityManagerFactory;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 
 import jakarta.xml.bind.JAXBElement;
 import xuml.tools.miuml.metamodel.jaxb.Class;
@@ -27,10 +33,14 @@ import xuml.tools.miuml.metamodel.jaxb.LocalEffectiveSignalingEvent;
 import xuml.tools.miuml.metamodel.jaxb.ModeledDomain;
 import xuml.tools.miuml.metamodel.jaxb.Subsystem;
 import xuml.tools.miuml.metamodel.jaxb.SubsystemElement;
+import xuml.tools.model.compiler.info.MyEvent;
 import xuml.tools.model.compiler.runtime.CreationEvent;
+import xuml.tools.model.compiler.runtime.DeadLetterSignal;
 import xuml.tools.model.compiler.runtime.Entity;
 import xuml.tools.model.compiler.runtime.Event;
+import xuml.tools.model.compiler.runtime.KryoRegistrar;
 import xuml.tools.model.compiler.runtime.QueuedSignal;
+import xuml.tools.model.compiler.runtime.SignalBatch;
 import xuml.tools.model.compiler.runtime.SignalProcessorListenerFactory;
 import xuml.tools.model.compiler.runtime.Signaller;
 
@@ -53,11 +63,49 @@ public class CodeGeneratorJava {
     private final String implementationPackageName;
     private final File implementationSourceDirectory;
     private final boolean overwriteImplementation;
+    private final Optional<StateCodes> stateCodes;
+    private final boolean synchronizeEntities;
+    private final boolean versionEntities;
+    private final KryoIds kryoIds;
 
     public CodeGeneratorJava(Domains domains, String domainName, String domainPackageName,
             String domainSchema, File entitySourceDirectory, File resourcesDirectory,
             String implementationPackageName, File implementationSourceDirectory,
             boolean generatePersistenceXml, boolean overwriteImplementation) {
+        this(domains, domainName, domainPackageName, domainSchema, entitySourceDirectory,
+                resourcesDirectory, implementationPackageName, implementationSourceDirectory,
+                generatePersistenceXml, overwriteImplementation, Optional.<File> absent(), true,
+                false, Optional.<File> absent());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param stateCodesFile
+     *            if present entity states are persisted as smallint codes
+     *            kept in this file (created or extended as needed) rather
+     *            than as strings
+     * @param synchronizeEntities
+     *            if false generated entities don't lock, relying on entity
+     *            actors confining each entity to one thread at a time
+     * @param versionEntities
+     *            if true generated entities have a version column so that
+     *            optimistic locking and entity caching can detect writes by
+     *            others
+     * @param kryoIdsFile
+     *            if present the Kryo registration ids of event and id classes
+     *            are kept in this file (created or extended as needed) so
+     *            they stay the same as the model changes and registration is
+     *            required at runtime. If absent the generated serializers are
+     *            used but classes are not registered and class names are
+     *            written as before.
+     */
+    public CodeGeneratorJava(Domains domains, String domainName, String domainPackageName,
+            String domainSchema, File entitySourceDirectory, File resourcesDirectory,
+            String implementationPackageName, File implementationSourceDirectory,
+            boolean generatePersistenceXml, boolean overwriteImplementation,
+            Optional<File> stateCodesFile, boolean synchronizeEntities,
+            boolean versionEntities, Optional<File> kryoIdsFile) {
         Preconditions.checkNotNull(domains);
         Preconditions.checkNotNull(domainName);
         Preconditions.checkNotNull(domainPackageName);
@@ -66,6 +114,8 @@ public class CodeGeneratorJava {
         Preconditions.checkNotNull(resourcesDirectory);
         Preconditions.checkNotNull(implementationPackageName);
         Preconditions.checkNotNull(implementationSourceDirectory);
+        Preconditions.checkNotNull(stateCodesFile);
+        Preconditions.checkNotNull(kryoIdsFile);
 
         this.domains = domains;
         this.entitySourceDirectory = entitySourceDirectory;
@@ -78,6 +128,13 @@ public class CodeGeneratorJava {
         this.domainPackageName = domainPackageName;
         this.domainSchema = domainSchema;
         this.nameManager = new NameManager();
+        this.synchronizeEntities = synchronizeEntities;
+        this.versionEntities = versionEntities;
+        this.kryoIds = new KryoIds(kryoIdsFile);
+        if (stateCodesFile.isPresent())
+            this.stateCodes = Optional.of(new StateCodes(stateCodesFile.get()));
+        else
+            this.stateCodes = Optional.absent();
     }
 
     public static Builder builder() {
@@ -103,6 +160,10 @@ public class CodeGeneratorJava {
         if (generatePersistenceXml)
             createPersistenceXml(domain, new File(resourcesDirectory, "META-INF/persistence.xml"));
         createContext(domain, entitySourceDirectory, lookups);
+        createKryoRegistrations(domain, entitySourceDirectory);
+        if (stateCodes.isPresent())
+            stateCodes.get().save();
+        kryoIds.save();
         log("finished generation");
     }
 
@@ -215,6 +276,7 @@ public class CodeGeneratorJava {
             classes.add(info.getClassFullName());
         }
         classes.add(QueuedSignal.class.getName());
+        classes.add(DeadLetterSignal.class.getName());
         String xml = new PersistenceXmlWriter().generate(classes);
         return xml;
     }
@@ -236,6 +298,20 @@ public class CodeGeneratorJava {
                 types.addType(QueuedSignal.class));
         out.format("        return signaller.queuedSignals();\n");
         out.format("    }\n\n");
+        out.format("    public static %s<%s> deadLetters(%s after, int maxResults) {\n",
+                types.addType(List.class), types.addType(DeadLetterSignal.class),
+                types.addType(DeadLetterSignal.class));
+        out.format("        return signaller.deadLetters(after, maxResults);\n");
+        out.format("    }\n\n");
+        out.format("    public static %s signalBatch() {\n", types.addType(SignalBatch.class));
+        out.format("        return signaller.signalBatch();\n");
+        out.format("    }\n\n");
+        out.format("    public static boolean redrive(String deadLetterId) {\n");
+        out.format("        return signaller.redrive(deadLetterId);\n");
+        out.format("    }\n\n");
+        out.format("    public static void deleteDeadLetter(String deadLetterId) {\n");
+        out.format("        signaller.deleteDeadLetter(deadLetterId);\n");
+        out.format("    }\n\n");
         out.format(
                 "    public static <T extends %s<T>> String persistSignal(String fromEntityUniqueId, Object id, Class<T> cls, %s<T> event, long time, %s<Long> repeatIntervalMs, String entityUniqueId) {\n",
                 types.addType(Entity.class), types.addType(Event.class),
@@ -253,6 +329,19 @@ public class CodeGeneratorJava {
                 types.addType(CreationEvent.class));
         out.format("        return signaller.create(cls,event);\n");
         out.format("    }\n\n");
+        out.format(
+                "    public static <T extends %s<T>> %s<T> createAsync(%s<T> cls, %s<T> event) {\n",
+                types.addType(Entity.class), types.addType(CompletableFuture.class),
+                types.addType(java.lang.Class.class), types.addType(CreationEvent.class));
+        out.format("        return signaller.createAsync(cls,event);\n");
+        out.format("    }\n\n");
+        out.format(
+                "    public static <T extends %s<T>> %s<T> createAll(%s<T> cls, %s<? extends %s<T>> events) {\n",
+                types.addType(Entity.class), types.addType(List.class),
+                types.addType(java.lang.Class.class), types.addType(Iterable.class),
+                types.addType(CreationEvent.class));
+        out.format("        return signaller.createAll(cls,events);\n");
+        out.format("    }\n\n");
         out.format(
                 "    public synchronized static void setEntityManagerFactory(%s emf, String entityActorPoolSizeProperty) {\n",
                 types.addType(EntityManagerFactory.class));
@@ -266,8 +355,18 @@ public class CodeGeneratorJava {
         out.format(
                 "    public synchronized static void setEntityManagerFactory(%s emf, int entityActorPoolSize) {\n",
                 types.addType(EntityManagerFactory.class));
-        out.format("        signaller = new %s(emf, entityActorPoolSize, listenerFactory);\n",
-                types.addType(Signaller.class), types.addType(Signaller.class));
+        out.format("        setEntityManagerFactory(emf, entityActorPoolSize, %s.empty());\n",
+                types.addType(ConfigFactory.class));
+        out.format("    }\n\n");
+
+        out.format(
+                "    public synchronized static void setEntityManagerFactory(%s emf, int entityActorPoolSize, %s config) {\n",
+                types.addType(EntityManagerFactory.class), types.addType(Config.class));
+        out.format("        %s.register(new KryoRegistrations());\n",
+                types.addType(xuml.tools.model.compiler.runtime.Util.class));
+        out.format(
+                "        signaller = new %s(emf, entityActorPoolSize, listenerFactory, config);\n",
+                types.addType(Signaller.class));
         for (
 
         Subsystem subsystem : domain.getSubsystem())
@@ -339,7 +438,7 @@ public class CodeGeneratorJava {
         out.format("    }\n\n");
 
         out.format("    public static %s em() {\n", types.addType(EntityManager.class));
-        out.format("        return signaller.getInfo().getCurrentEntityManager();\n");
+        out.format("        return signaller.getCurrentEntityManager();\n");
         out.format("    }\n\n");
 
         out.format("}");
@@ -366,12 +465,83 @@ public class CodeGeneratorJava {
 
     }
 
+    private void createKryoRegistrations(ModeledDomain domain, File destination) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+
+        TypeRegister types = new TypeRegister();
+        out.format("/**\n");
+        out.format(" * Registers the event and id classes of this domain with their generated\n");
+        out.format(" * serializers.\n");
+        out.format(" */\n");
+        out.format("public class KryoRegistrations implements %s {\n\n",
+                types.addType(KryoRegistrar.class));
+        out.format("    @%s\n", types.addType(Override.class));
+        out.format("    public void register(%s kryo) {\n",
+                types.addType(com.esotericsoftware.kryo.Kryo.class));
+        // explicit ids so that stored signals still read back after the
+        // model (and so the order of registration) changes. Without an ids
+        // file only serializers are set and class names are still written.
+        boolean ids = kryoIds.isPersisted();
+        Set<String> fieldTypes = Sets.newTreeSet();
+        List<String> names = Lists.newArrayList();
+        for (Class cls : getClasses(domain)) {
+            ClassInfo info = createClassInfo(cls);
+            String className = info.getJavaClassSimpleName();
+            if (info.hasCompositeId())
+                names.add(className + "." + info.getEmbeddedIdSimpleClassName());
+            for (MyEvent event : info.getEvents())
+                names.add(className + ".Events." + event.getSimpleClassName());
+            fieldTypes.addAll(ClassWriter.kryoObjectFieldTypes(info));
+        }
+        for (String name : names) {
+            if (ids)
+                out.format("        kryo.register(%1$s.class, new %1$s.KryoSerializer(), %2$s);\n",
+                        name, kryoIds.id(domainPackageName + "." + name));
+            else
+                out.format("        kryo.addDefaultSerializer(%1$s.class,"
+                        + " new %1$s.KryoSerializer());\n", name);
+        }
+        // other types of event parameters and id fields written by the
+        // generated serializers
+        if (ids)
+            for (String type : fieldTypes)
+                out.format("        kryo.register(%s.class, %s);\n", type, kryoIds.id(type));
+        out.format("    }\n\n");
+        if (!ids) {
+            out.format("    @%s\n", types.addType(Override.class));
+            out.format("    public boolean requiresRegistration() {\n");
+            out.format("        // no kryo ids file so ids would change with the model\n");
+            out.format("        return false;\n");
+            out.format("    }\n\n");
+        }
+        out.format("}");
+        out.close();
+
+        String s = "package " + domainPackageName + ";\n\n";
+        s += types.getImports(domainPackageName + ".KryoRegistrations") + "\n";
+        s += bytes.toString();
+
+        File file = new File(destination,
+                domainPackageName.replace(".", "/") + "/KryoRegistrations.java");
+        writeToFile(s.getBytes(), file);
+    }
+
     private static void log(String message) {
         java.lang.System.out.println(message);
     }
 
     private void createEntityJavaSource(Class cls, File destination, Lookups lookups) {
-        ClassWriter w = new ClassWriter(createClassInfo(cls));
+        ClassInfo info = createClassInfo(cls);
+        Optional<Map<String, Short>> codes;
+        if (stateCodes.isPresent() && info.hasBehaviour()) {
+            List<String> states = Lists.newArrayList();
+            for (String state : info.getStateNames())
+                states.add(info.getStateAsJavaIdentifier(state));
+            codes = Optional.of(stateCodes.get().codes(info.getJavaClassSimpleName(), states));
+        } else
+            codes = Optional.absent();
+        ClassWriter w = new ClassWriter(info, codes, synchronizeEntities, versionEntities);
         String java = w.generate();
         File file = new File(destination, getClassFilename(cls));
         writeToFile(java.getBytes(), file);
@@ -422,6 +592,10 @@ public class CodeGeneratorJava {
         private final String implementationPackageName = "not used yet";
         private File implementationSourceDirectory;
         private final boolean overwriteImplementation = false;
+        private Optional<File> stateCodesFile = Optional.absent();
+        private boolean synchronizeEntities = true;
+        private boolean versionEntities = false;
+        private Optional<File> kryoIdsFile = Optional.absent();
 
         private Builder() {
 
@@ -472,12 +646,74 @@ public class CodeGeneratorJava {
             return this;
         }
 
+        /**
+         * Persist entity states as smallint codes rather than strings. The
+         * codes are kept in the given file which should be kept under source
+         * control so that codes stay the same as the model changes.
+         * 
+         * @param file
+         * @return this
+         */
+        public Builder compactState(File file) {
+            this.stateCodesFile = Optional.of(file);
+            return this;
+        }
+
+        /**
+         * If false generated entities don't synchronize helper creation or
+         * on entry procedures. Entity actors already process one signal at a
+         * time per entity so the locks only add overhead (and pin virtual
+         * threads). Set {@code xuml.entity.check-thread-confinement} to
+         * verify confinement while testing. Default is true.
+         * 
+         * @param synchronize
+         * @return this
+         */
+        public Builder synchronizeEntities(boolean synchronize) {
+            this.synchronizeEntities = synchronize;
+            return this;
+        }
+
+        /**
+         * If true generated entities have a version column (mapped with
+         * {@code @Version}). Writes by others to a versioned entity are then
+         * detected at commit and when an entity cached by its actor
+         * ({@code xuml.entity.cache.enabled}) is reused. Default is false.
+         * 
+         * @param version
+         * @return this
+         */
+        public Builder versionEntities(boolean version) {
+            this.versionEntities = version;
+            return this;
+        }
+
+        /**
+         * Keep the Kryo registration ids of event and id classes in the given
+         * file, which should be kept under source control (and shared by the
+         * domains of an application) so that stored signals can still be read
+         * as the model changes. Registration is then required at runtime and
+         * ids are written instead of class names, so signals stored before
+         * the file was first used must be processed (the signal store
+         * drained) before upgrading. Without a file classes are not
+         * registered (only their serializers set) and class names are
+         * written.
+         * 
+         * @param file
+         * @return this
+         */
+        public Builder kryoIds(File file) {
+            this.kryoIdsFile = Optional.of(file);
+            return this;
+        }
+
         public CodeGeneratorJava build() {
             if (implementationSourceDirectory == null)
                 implementationSourceDirectory = entitySourceDirectory;
             return new CodeGeneratorJava(domains, domainName, domainPackageName, domainSchema,
                     entitySourceDirectory, resourcesDirectory, implementationPackageName,
-                    implementationSourceDirectory, generatePersistenceXml, overwriteImplementation);
+                    implementationSourceDirectory, generatePersistenceXml, overwriteImplementation,
+                    stateCodesFile, synchronizeEntities, versionEntities, kryoIdsFile);
         }
 
     }
@@ -0,0 +1,104 @@
+package xuml.tools.model.compiler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+
+/**
+ * The Kryo registration ids of the classes registered by the generated
+ * {@code KryoRegistrations}. The ids are kept in a properties file (keys are
+ * class names) that should be kept under source control and shared by all the
+ * domains of an application. A class keeps its id for as long as the file
+ * does, a new class is given the next unused id and the id of a removed class
+ * is never reused, so signals already serialized still read back after the
+ * model is edited. Without a file there are no stable ids so the generated
+ * registrations only set serializers and leave registration optional (see
+ * {@link #isPersisted()}).
+ */
+final class KryoIds {
+
+    // leaves room for the classes Kryo and Util register themselves
+    static final int FIRST_ID = 100;
+
+    private final Optional<File> file;
+    // sorted so the file diffs well
+    private final TreeMap<String, Integer> ids = Maps.newTreeMap();
+    private boolean changed;
+
+    KryoIds(Optional<File> file) {
+        this.file = file;
+        if (file.isPresent() && file.get().exists())
+            load();
+    }
+
+    private void load() {
+        Properties p = new Properties();
+        try (InputStream is = new FileInputStream(file.get())) {
+            p.load(is);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        for (String key : p.stringPropertyNames())
+            ids.put(key, Integer.parseInt(p.getProperty(key).trim()));
+    }
+
+    /**
+     * Returns true if the ids are kept in a file and so can be written in
+     * place of class names.
+     *
+     * @return true if there is a file
+     */
+    boolean isPersisted() {
+        return file.isPresent();
+    }
+
+    /**
+     * Returns the registration id of the class assigning the next unused id
+     * if it does not have one yet.
+     *
+     * @param className
+     * @return id
+     */
+    int id(String className) {
+        Integer id = ids.get(className);
+        if (id == null) {
+            int max = FIRST_ID - 1;
+            for (int value : ids.values())
+                max = Math.max(max, value);
+            id = max + 1;
+            ids.put(className, id);
+            changed = true;
+        }
+        return id;
+    }
+
+    /**
+     * Writes the file (if any) if ids have been assigned since it was loaded.
+     */
+    void save() {
+        if (!changed || !file.isPresent())
+            return;
+        file.get().getAbsoluteFile().getParentFile().mkdirs();
+        try (OutputStream os = new FileOutputStream(file.get())) {
+            StringBuilder s = new StringBuilder();
+            s.append("# Kryo registration ids of generated classes, keep under source control.\n");
+            s.append("# Do not change or reuse an id once signals have been stored with it.\n");
+            for (Entry<String, Integer> entry : ids.entrySet())
+                s.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+            os.write(s.toString().getBytes("ISO-8859-1"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        changed = false;
+    }
+
+}
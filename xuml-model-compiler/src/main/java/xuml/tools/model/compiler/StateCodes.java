@@ -0,0 +1,101 @@
+package xuml.tools.model.compiler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import com.google.common.collect.Maps;
+
+/**
+ * The smallint codes that states are persisted as when generating with a
+ * compact state column. The codes are kept in a properties file (keys are
+ * {@code <class>.<STATE>}) that should be kept under source control. A state
+ * keeps its code for as long as the file does, a new state is given the next
+ * unused code for its class and the code of a removed state is never reused,
+ * so rows already persisted still read back as the right state after the
+ * model is edited.
+ */
+final class StateCodes {
+
+    private final File file;
+    // sorted so the file diffs well
+    private final TreeMap<String, Short> codes = Maps.newTreeMap();
+    private boolean changed;
+
+    StateCodes(File file) {
+        this.file = file;
+        if (file.exists())
+            load();
+    }
+
+    private void load() {
+        Properties p = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            p.load(is);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        for (String key : p.stringPropertyNames())
+            codes.put(key, Short.parseShort(p.getProperty(key).trim()));
+    }
+
+    /**
+     * Returns the codes of the given states of the class assigning codes to
+     * states that don't have one yet.
+     *
+     * @param className
+     * @param states
+     *            state java identifiers
+     * @return codes keyed by state
+     */
+    Map<String, Short> codes(String className, Collection<String> states) {
+        String prefix = className + ".";
+        int max = -1;
+        for (Entry<String, Short> entry : codes.entrySet())
+            if (entry.getKey().startsWith(prefix))
+                max = Math.max(max, entry.getValue());
+        Map<String, Short> map = Maps.newLinkedHashMap();
+        for (String state : states) {
+            Short code = codes.get(prefix + state);
+            if (code == null) {
+                max++;
+                if (max > Short.MAX_VALUE)
+                    throw new RuntimeException("too many state codes for " + className);
+                code = (short) max;
+                codes.put(prefix + state, code);
+                changed = true;
+            }
+            map.put(state, code);
+        }
+        return map;
+    }
+
+    /**
+     * Writes the file if codes have been assigned since it was loaded.
+     */
+    void save() {
+        if (!changed)
+            return;
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try (OutputStream os = new FileOutputStream(file)) {
+            StringBuilder s = new StringBuilder();
+            s.append("# smallint codes persisted for entity states, keep under source control.\n");
+            s.append("# Do not change or reuse a code once rows have been persisted with it.\n");
+            for (Entry<String, Short> entry : codes.entrySet())
+                s.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+            os.write(s.toString().getBytes("ISO-8859-1"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        changed = false;
+    }
+
+}
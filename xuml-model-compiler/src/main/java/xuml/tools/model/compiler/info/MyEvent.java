@@ -14,19 +14,24 @@ public class MyEvent {
     private final String stateName;
     private final String stateSignatureInterfaceSimpleName;
     private final boolean creates;
+    private final boolean coalescible;
+    private final int priority;
 
     public List<MyParameter> getParameters() {
         return parameters;
     }
 
     public MyEvent(String name, String simpleClassName, List<MyParameter> parameters,
-            String stateName, String stateSignatureInterfaceSimpleName, boolean creates) {
+            String stateName, String stateSignatureInterfaceSimpleName, boolean creates,
+            boolean coalescible, int priority) {
         Preconditions.checkNotNull(parameters);
         this.name = name;
         this.simpleClassName = simpleClassName;
         this.stateName = stateName;
         this.stateSignatureInterfaceSimpleName = stateSignatureInterfaceSimpleName;
         this.creates = creates;
+        this.coalescible = coalescible;
+        this.priority = priority;
         this.parameters = parameters;
     }
 
@@ -59,4 +64,24 @@ public class MyEvent {
     public boolean getCreates() {
         return creates;
     }
+
+    /**
+     * Returns true if a newer signal of this event replaces an unprocessed one
+     * sent to the same entity.
+     * 
+     * @return
+     */
+    public boolean isCoalescible() {
+        return coalescible;
+    }
+
+    /**
+     * Returns the priority of signals of this event, higher is processed
+     * sooner. 0 is the default.
+     * 
+     * @return
+     */
+    public int getPriority() {
+        return priority;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,41 @@
+package xuml.tools.model.compiler.info;
+
+import java.util.List;
+
+public class MyIndex {
+
+    private final String name;
+    private final List<String> columnNames;
+
+    /**
+     * Constructor.
+     * 
+     * @param name
+     *            null to derive a name from the table and columns
+     * @param columnNames
+     */
+    public MyIndex(String name, List<String> columnNames) {
+        this.name = name;
+        this.columnNames = columnNames;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("MyIndex [name=");
+        builder.append(name);
+        builder.append(", columnNames=");
+        builder.append(columnNames);
+        builder.append("]");
+        return builder.toString();
+    }
+
+}
@@ -1,10 +1,17 @@
 package xuml.tools.model.compiler;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
 import xuml.tools.miuml.metamodel.jaxb.Marshaller;
 
 public class CodeGeneratorJavaTest {
@@ -90,6 +97,74 @@ public class CodeGeneratorJavaTest {
         generateClassesForDomain("extensions");
     }
 
+    @Test
+    public void testExtensionsGenerateNamedQueriesAndStreamFinders()
+            throws IOException {
+        generateClassesForDomain("extensions");
+        String a = Files.toString(new File("target/generated/extensions/A.java"),
+                Charsets.UTF_8);
+        assertContains(a, "@NamedQuery(name=\"A.selectAll\", query=\"select e from A e\")");
+        assertContains(a, "@NamedQuery(name=\"A.count\", query=\"select count(e) from A e\")");
+        assertContains(a, "@NamedQuery(name=\"A.findByEmailPostcode\", "
+                + "query=\"select e from A e where e.email=:email and e.postcode=:postcode\")");
+        assertContains(a, "em.createNamedQuery(\"A.findByEmailPostcode\", A.class)");
+        assertContains(a, "public static Stream<A> streamAll(EntityManager em)");
+        assertContains(a, "public static Stream<A> streamByEmailPostcode(EntityManager em,");
+        assertContains(a, "QueryStreams.stream(em.createNamedQuery(\"A.selectAll\", A.class))");
+    }
+
+    @Test
+    public void testExtensionsGenerateIndexes() throws IOException {
+        generateClassesForDomain("extensions");
+        String a = Files.toString(new File("target/generated/extensions/A.java"),
+                Charsets.UTF_8);
+        // the finder and the Index extension cover the same columns in
+        // different orders so both are indexed
+        assertContains(a, "@Index(name=\"idx_a_email_postcode\", columnList=\"email,postcode\")");
+        assertContains(a, "@Index(name=\"idx_a_postcode_email\", columnList=\"postcode,email\")");
+    }
+
+    @Test
+    public void testKryoRegistrationsWithoutIdsFileLeaveRegistrationOptional()
+            throws IOException {
+        generateClassesForDomain("extensions");
+        String s = Files.toString(
+                new File("target/generated/extensions/KryoRegistrations.java"), Charsets.UTF_8);
+        assertContains(s, "public boolean requiresRegistration()");
+        assertFalse(s.contains("kryo.register("));
+    }
+
+    @Test
+    public void testTransitionTableForTwoTransitionsToSameState() throws IOException {
+        generateClassesForDomain("two-transitions-to-same-state");
+        String a = Files.toString(
+                new File("target/generated/two_transitions_to_same_state/A.java"),
+                Charsets.UTF_8);
+        // events Create and First in declaration order
+        assertContains(a, "public static final int ORDINAL_ = 0;");
+        assertContains(a, "public static final int ORDINAL_ = 1;");
+        // rows are no state then the states sorted by name, cells are the
+        // transition index (creation last) or -1 for no transition
+        assertContains(a, "    private static final int[][] TRANSITIONS = {\n"
+                + "        {2,-1},\n" // creation
+                + "        {-1,0},\n" // Created
+                + "        {-1,-1},\n" // State1 has no transitions
+                + "        {-1,1},\n" // State2
+                + "    };");
+        assertContains(a, "        if (state == null)\n            return 0;");
+        assertContains(a, "        case \"CREATED\": return 1;");
+        assertContains(a, "        case \"STATE2\": return 3;");
+        // an unknown persisted state has no transitions
+        assertContains(a, "        default: return -1;");
+        assertContains(a, "        int transition = from == -1 ? -1\n"
+                + "                : TRANSITIONS[from][((OrdinalEvent<A>) event).ordinal()];");
+        assertContains(a, "        case 2:\n            state=State.CREATED.toString();");
+    }
+
+    private static void assertContains(String s, String expected) {
+        assertTrue("expected generated source to contain " + expected, s.contains(expected));
+    }
+
     @Test
     public void testCodeGenerationForManyToMany() throws FileNotFoundException {
         generateClassesForDomain("many-to-many");
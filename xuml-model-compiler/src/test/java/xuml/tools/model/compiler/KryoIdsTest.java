@@ -0,0 +1,43 @@
+package xuml.tools.model.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+
+public class KryoIdsTest {
+
+    @Test
+    public void testIdsSurviveModelEdits() {
+        File file = new File(Files.createTempDir(), "kryo-ids.properties");
+        KryoIds ids = new KryoIds(Optional.of(file));
+        assertTrue(ids.isPersisted());
+        assertEquals(KryoIds.FIRST_ID, ids.id("a.Order.Events.Create"));
+        assertEquals(KryoIds.FIRST_ID + 1, ids.id("a.Order.Events.Send"));
+        assertEquals(KryoIds.FIRST_ID, ids.id("a.Order.Events.Create"));
+        ids.save();
+
+        // Create removed and registered after a new class
+        ids = new KryoIds(Optional.of(file));
+        assertEquals(KryoIds.FIRST_ID + 2, ids.id("a.Order.Events.Deliver"));
+        assertEquals(KryoIds.FIRST_ID + 1, ids.id("a.Order.Events.Send"));
+        ids.save();
+
+        ids = new KryoIds(Optional.of(file));
+        assertEquals(KryoIds.FIRST_ID + 2, ids.id("a.Order.Events.Deliver"));
+        assertEquals(KryoIds.FIRST_ID, ids.id("a.Order.Events.Create"));
+        assertEquals(KryoIds.FIRST_ID + 3, ids.id("java.sql.Timestamp"));
+    }
+
+    @Test
+    public void testWithoutFileIdsAreNotPersisted() {
+        assertFalse(new KryoIds(Optional.<File> absent()).isPersisted());
+    }
+
+}
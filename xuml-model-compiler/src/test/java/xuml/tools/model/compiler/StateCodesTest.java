@@ -0,0 +1,37 @@
+package xuml.tools.model.compiler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class StateCodesTest {
+
+    @Test
+    public void testCodesSurviveModelEdits() {
+        File file = new File(Files.createTempDir(), "state-codes.properties");
+        StateCodes codes = new StateCodes(file);
+        Map<String, Short> map = codes.codes("Order", Arrays.asList("CREATED", "SENT"));
+        assertEquals((short) 0, (short) map.get("CREATED"));
+        assertEquals((short) 1, (short) map.get("SENT"));
+        assertEquals((short) 0, (short) codes.codes("Depot", Arrays.asList("OPEN")).get("OPEN"));
+        codes.save();
+
+        // SENT removed and DELIVERED added
+        codes = new StateCodes(file);
+        map = codes.codes("Order", Arrays.asList("CREATED", "DELIVERED"));
+        assertEquals((short) 0, (short) map.get("CREATED"));
+        assertEquals((short) 2, (short) map.get("DELIVERED"));
+        codes.save();
+
+        map = new StateCodes(file).codes("Order", Arrays.asList("SENT", "DELIVERED"));
+        assertEquals((short) 1, (short) map.get("SENT"));
+        assertEquals((short) 2, (short) map.get("DELIVERED"));
+    }
+
+}
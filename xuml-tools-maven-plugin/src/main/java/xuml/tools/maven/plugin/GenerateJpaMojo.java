@@ -126,6 +126,48 @@ public class GenerateJpaMojo extends AbstractMojo {
      */
     private boolean generatePersistenceXml;
 
+    /**
+     * If and only if true entity states are persisted as smallint codes
+     * rather than strings.
+     * 
+     * @parameter default-value="false"
+     */
+    private boolean compactState;
+
+    /**
+     * Codes persisted for entity states when compactState is true. The file
+     * is created or extended as states are added to the model and should be
+     * kept under source control.
+     * 
+     * @parameter default-value="${basedir}/src/main/xuml/state-codes.properties"
+     */
+    private File stateCodesFile;
+
+    /**
+     * If false generated entities don't lock, relying on entity actors
+     * processing one signal at a time per entity.
+     * 
+     * @parameter default-value="true"
+     */
+    private boolean synchronizeEntities;
+
+    /**
+     * If and only if true generated entities have a version column so that
+     * entities cached by entity actors can be checked for writes by others.
+     * 
+     * @parameter default-value="false"
+     */
+    private boolean versionEntities;
+
+    /**
+     * Kryo registration ids of the generated event and id classes. The file
+     * is created or extended as classes are added to the model and should be
+     * kept under source control so that stored signals can still be read.
+     * 
+     * @parameter default-value="${basedir}/src/main/xuml/kryo-ids.properties"
+     */
+    private File kryoIdsFile;
+
     /**
      * Root package name of the generated classes.
      * 
@@ -156,7 +198,9 @@ public class GenerateJpaMojo extends AbstractMojo {
     private void generate(xuml.tools.miuml.metamodel.jaxb.Domains domains) {
         new CodeGeneratorJava(domains, domain, packageName, schema, outputSourceDirectory,
                 resourcesDirectory, implementationPackageName, implementationSourceDirectory,
-                generatePersistenceXml, implementationOverwrite).generate();
+                generatePersistenceXml, implementationOverwrite,
+                compactState ? Optional.of(stateCodesFile) : Optional.<File> absent(),
+                synchronizeEntities, versionEntities, Optional.of(kryoIdsFile)).generate();
     }
 
     private void generateClassDiagrams(xuml.tools.miuml.metamodel.jaxb.Domains domains) {